@@ -88,6 +88,14 @@ public class DefaultHttpChunkTrailer implements HttpChunkTrailer {
         return headers.getHeaderNames();
     }
 
+    /**
+     * @return the number of bytes of the headers once encoded, without the
+     *         empty line that ends them
+     */
+    int getEncodedHeadersSize() {
+        return headers.getEncodedSize();
+    }
+
     public ChannelBuffer getContent() {
         return ChannelBuffers.EMPTY_BUFFER;
     }
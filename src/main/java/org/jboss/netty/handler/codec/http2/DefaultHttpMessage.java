@@ -107,8 +107,7 @@ public class DefaultHttpMessage implements HttpMessage {
     }
 
     public String getHeader(final String name) {
-        List<String> values = getHeaders(name);
-        return values.size() > 0 ? values.get(0) : null;
+        return headers.getFirstHeader(name);
     }
 
     public List<String> getHeaders(final String name) {
@@ -127,6 +126,70 @@ public class DefaultHttpMessage implements HttpMessage {
         return headers.getHeaderNames();
     }
 
+    /**
+     * Returns the number of headers.  With {@link #getHeaderName(int)},
+     * {@link #getHeaderValue(int)} and {@link #indexOfHeader(String, int)}, it
+     * allows to iterate over the headers without allocating any list:
+     * <pre>
+     * for (int i = message.indexOfHeader(name, 0); i >= 0; i = message.indexOfHeader(name, i + 1)) {
+     *     String value = message.getHeaderValue(i);
+     *     ...
+     * }
+     * </pre>
+     * The positions are valid until the headers are modified.
+     */
+    public int getHeaderCount() {
+        return headers.size();
+    }
+
+    /**
+     * Returns the name of the header at the given position, between 0 and
+     * {@link #getHeaderCount()} - 1.
+     */
+    public String getHeaderName(int position) {
+        return headers.getName(position);
+    }
+
+    /**
+     * Returns the value of the header at the given position, between 0 and
+     * {@link #getHeaderCount()} - 1.
+     */
+    public String getHeaderValue(int position) {
+        return headers.getValue(position);
+    }
+
+    /**
+     * Returns the position of the first header with the specified name at or
+     * after the specified position, or {@code -1} if there is no such header.
+     */
+    public int indexOfHeader(final String name, int fromPosition) {
+        return headers.indexOf(name, fromPosition);
+    }
+
+    /**
+     * Replaces all the headers by the given raw header block, parsed only when
+     * needed.  See {@link HttpHeaders#setRawHeaders}.
+     */
+    void setRawHeaders(ChannelBuffer raw, int[] rawIndex, int rawCount) {
+        headers.setRawHeaders(raw, rawIndex, rawCount);
+    }
+
+    /**
+     * @return the raw header block if the headers were neither modified nor
+     *         parsed since it was set, or null
+     */
+    ChannelBuffer getRawHeaders() {
+        return headers.getRawHeaders();
+    }
+
+    /**
+     * @return the number of bytes of the headers once encoded, without the
+     *         empty line that ends them
+     */
+    int getEncodedHeadersSize() {
+        return headers.getEncodedSize();
+    }
+
     public HttpVersion getProtocolVersion() {
         return version;
     }
@@ -162,10 +225,10 @@ public class DefaultHttpMessage implements HttpMessage {
     }
 
     void appendHeaders(StringBuilder buf) {
-        for (Map.Entry<String, String> e: getHeaders()) {
-            buf.append(e.getKey());
+        for (int i = 0; i < headers.size(); i ++) {
+            buf.append(headers.getName(i));
             buf.append(": ");
-            buf.append(e.getValue());
+            buf.append(headers.getValue(i));
             buf.append(StringUtil.NEWLINE);
         }
     }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.codec.http2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.handler.traffic.GlobalTrafficShapingHandler;
+import org.jboss.netty.handler.traffic.TrafficCounter;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A {@link ChannelHandler} that rejects new {@link HttpRequest}s with a
+ * {@code "503 Service Unavailable"} response while the server is overloaded.
+ * The overload signal combines:
+ * <ul>
+ * <li>the global throughput (read and write) computed by the
+ *     {@link TrafficCounter} of a {@link GlobalTrafficShapingHandler},</li>
+ * <li>the number of {@link HttpRequest}s received whose response is not written yet,</li>
+ * <li>the number of bytes whose write is not completed yet.</li>
+ * </ul>
+ * The server becomes overloaded as soon as one of those values exceeds its maximum
+ * (0 means no maximum), and stays overloaded until all of them are back under
+ * {@code lowWaterPercent} percent of their maximum, so as to not flap around the limits.<br>
+ * <br>
+ * The rejection response is encoded once at construction, with a {@code "Retry-After"}
+ * header, and the connection is closed once it is written.
+ * Only one instance is to be created and shared by all pipelines.
+ * Insert this handler after {@link HttpRequestDecoder} and {@link HttpResponseEncoder}
+ * in the {@link ChannelPipeline}:
+ * <pre>
+ * {@link ChannelPipeline} p = ...;
+ * ...
+ * p.addLast("decoder", new {@link HttpRequestDecoder}());
+ * p.addLast("encoder", new {@link HttpResponseEncoder}());
+ * p.addLast("admission", <b>admissionHandler</b>);
+ * p.addLast("handler", new HttpRequestHandler());
+ * </pre>
+ *
+ * @author Frederic Bregier
+ */
+@Sharable
+public class HttpAdmissionHandler extends SimpleChannelHandler {
+    /**
+     * Default percentage of the maximums under which the server is no more overloaded
+     */
+    public static final int DEFAULT_LOW_WATER_PERCENT = 80;
+
+    /**
+     * Default delay in seconds sent in the Retry-After header
+     */
+    public static final int DEFAULT_RETRY_AFTER = 5;
+
+    private final TrafficCounter trafficCounter;
+    private final long maxThroughput;
+    private final int maxInFlightRequests;
+    private final long maxPendingWriteBytes;
+    private final int lowWaterPercent;
+    private final ChannelBuffer rejectResponse;
+
+    private final AtomicInteger inFlightRequests = new AtomicInteger(0);
+    private final AtomicLong pendingWriteBytes = new AtomicLong(0);
+    private final AtomicLong rejectedRequests = new AtomicLong(0);
+    private volatile boolean overloaded;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param trafficCounter
+     *        the global {@link TrafficCounter}, or {@code null} if the
+     *        throughput is not to be checked
+     * @param maxThroughput
+     *        the maximum read and write throughput in bytes/s (0 means no maximum)
+     * @param maxInFlightRequests
+     *        the maximum number of requests whose response is not written yet
+     *        (0 means no maximum)
+     * @param maxPendingWriteBytes
+     *        the maximum number of bytes whose write is not completed yet
+     *        (0 means no maximum)
+     * @param lowWaterPercent
+     *        the percentage of the maximums under which the server is no more overloaded
+     * @param retryAfter
+     *        the delay in seconds sent back in the {@code "Retry-After"} header
+     */
+    public HttpAdmissionHandler(TrafficCounter trafficCounter,
+            long maxThroughput, int maxInFlightRequests,
+            long maxPendingWriteBytes, int lowWaterPercent, int retryAfter) {
+        if (lowWaterPercent <= 0 || lowWaterPercent > 100) {
+            throw new IllegalArgumentException(
+                    "lowWaterPercent must be between 1 and 100: " +
+                    lowWaterPercent);
+        }
+        if (retryAfter < 0) {
+            throw new IllegalArgumentException(
+                    "retryAfter must be a positive integer: " + retryAfter);
+        }
+        this.trafficCounter = trafficCounter;
+        this.maxThroughput = maxThroughput;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+        this.lowWaterPercent = lowWaterPercent;
+        rejectResponse = ChannelBuffers.unmodifiableBuffer(ChannelBuffers
+                .copiedBuffer(HttpVersion.HTTP_1_1.getText() + ' ' +
+                        HttpResponseStatus.SERVICE_UNAVAILABLE + "\r\n" +
+                        HttpHeaders.Names.RETRY_AFTER + ": " + retryAfter +
+                        "\r\n" + HttpHeaders.Names.CONTENT_LENGTH + ": 0\r\n" +
+                        HttpHeaders.Names.CONNECTION + ": " +
+                        HttpHeaders.Values.CLOSE + "\r\n\r\n",
+                        CharsetUtil.US_ASCII));
+    }
+
+    /**
+     * Creates a new instance with the default low water percentage and Retry-After delay.
+     *
+     * @param trafficCounter
+     *        the global {@link TrafficCounter}, or {@code null} if the
+     *        throughput is not to be checked
+     * @param maxThroughput
+     *        the maximum read and write throughput in bytes/s (0 means no maximum)
+     * @param maxInFlightRequests
+     *        the maximum number of requests whose response is not written yet
+     *        (0 means no maximum)
+     * @param maxPendingWriteBytes
+     *        the maximum number of bytes whose write is not completed yet
+     *        (0 means no maximum)
+     */
+    public HttpAdmissionHandler(TrafficCounter trafficCounter,
+            long maxThroughput, int maxInFlightRequests,
+            long maxPendingWriteBytes) {
+        this(trafficCounter, maxThroughput, maxInFlightRequests,
+                maxPendingWriteBytes, DEFAULT_LOW_WATER_PERCENT,
+                DEFAULT_RETRY_AFTER);
+    }
+
+    /**
+     * Returns {@code true} if the server is currently overloaded, updating the
+     * overload signal from the current values.
+     */
+    public boolean isOverloaded() {
+        if (overloaded) {
+            if (!exceeds(lowWaterPercent)) {
+                overloaded = false;
+            }
+        } else if (exceeds(100)) {
+            overloaded = true;
+        }
+        return overloaded;
+    }
+
+    /**
+     * @param percent
+     * @return True if one of the values exceeds the given percentage of its maximum
+     */
+    private boolean exceeds(int percent) {
+        if (maxInFlightRequests > 0 &&
+                inFlightRequests.get() * 100L > maxInFlightRequests * (long) percent) {
+            return true;
+        }
+        if (maxPendingWriteBytes > 0 &&
+                pendingWriteBytes.get() * 100 > maxPendingWriteBytes * percent) {
+            return true;
+        }
+        if (maxThroughput > 0 && trafficCounter != null) {
+            long throughput = trafficCounter.getLastReadThroughput() +
+                    trafficCounter.getLastWriteThroughput();
+            if (throughput * 100 > maxThroughput * percent) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class AdmissionState {
+        /**
+         * Requests of this channel whose response is not written yet
+         */
+        final AtomicInteger inFlight = new AtomicInteger(0);
+
+        /**
+         * True if the current request was rejected, so its chunks are to be dropped
+         */
+        volatile boolean rejecting;
+
+        AdmissionState() {
+            super();
+        }
+    }
+
+    private static AdmissionState getState(ChannelHandlerContext ctx) {
+        AdmissionState state = (AdmissionState) ctx.getAttachment();
+        if (state == null) {
+            state = new AdmissionState();
+            ctx.setAttachment(state);
+        }
+        return state;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof HttpRequest) {
+            AdmissionState state = getState(ctx);
+            if (isOverloaded()) {
+                state.rejecting = true;
+                rejectedRequests.incrementAndGet();
+                ChannelFuture future = Channels.future(ctx.getChannel());
+                Channels.write(ctx, future, rejectResponse.duplicate());
+                future.addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            state.rejecting = false;
+            state.inFlight.incrementAndGet();
+            inFlightRequests.incrementAndGet();
+        } else if (msg instanceof HttpChunk) {
+            AdmissionState state = (AdmissionState) ctx.getAttachment();
+            if (state != null && state.rejecting) {
+                // Chunks of a rejected request
+                return;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object msg = e.getMessage();
+        final long size;
+        boolean complete = false;
+        if (msg instanceof HttpMessage) {
+            HttpMessage m = (HttpMessage) msg;
+            size = m.getContent().readableBytes();
+            complete = !m.isChunked();
+        } else if (msg instanceof HttpChunk) {
+            HttpChunk chunk = (HttpChunk) msg;
+            size = chunk.getContent().readableBytes();
+            complete = chunk.isLast();
+        } else if (msg instanceof ChannelBuffer) {
+            size = ((ChannelBuffer) msg).readableBytes();
+        } else {
+            size = 0;
+        }
+        if (complete) {
+            AdmissionState state = (AdmissionState) ctx.getAttachment();
+            if (state != null && decrementIfPositive(state.inFlight)) {
+                inFlightRequests.decrementAndGet();
+            }
+        }
+        if (size > 0) {
+            pendingWriteBytes.addAndGet(size);
+            e.getFuture().addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future)
+                        throws Exception {
+                    pendingWriteBytes.addAndGet(-size);
+                }
+            });
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        AdmissionState state = (AdmissionState) ctx.getAttachment();
+        if (state != null) {
+            int remaining = state.inFlight.getAndSet(0);
+            if (remaining > 0) {
+                inFlightRequests.addAndGet(-remaining);
+            }
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private static boolean decrementIfPositive(AtomicInteger counter) {
+        for (;;) {
+            int current = counter.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests whose response is not written yet.
+     */
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    /**
+     * Returns the number of bytes whose write is not completed yet.
+     */
+    public long getPendingWriteBytes() {
+        return pendingWriteBytes.get();
+    }
+
+    /**
+     * Returns the number of requests rejected since the creation of this handler.
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpAdmission with In Flight: " + inFlightRequests.get() +
+                " Pending Write: " + pendingWriteBytes.get() +
+                " Rejected: " + rejectedRequests.get() + " Overloaded: " +
+                overloaded;
+    }
+}
@@ -108,7 +108,7 @@ public class HttpClientCodec implements ChannelUpstreamHandler,
         protected Object decode(ChannelHandlerContext ctx, Channel channel,
                 ChannelBuffer buffer, State state) throws Exception {
             if (done) {
-                return buffer.readBytes(actualReadableBytes());
+                return buffer.readBytes(buffer.readableBytes());
             } else {
                 return super.decode(ctx, channel, buffer, state);
             }
@@ -18,6 +18,7 @@ package org.jboss.netty.handler.codec.http2;
 import java.nio.charset.Charset;
 import java.util.List;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.util.CharsetUtil;
 
 /**
@@ -75,6 +76,43 @@ class HttpCodecUtil {
         super();
     }
 
+    /**
+     * @return the bytes of the given String, each char being written as one byte,
+     *         or as '?' beyond 0xFF
+     */
+    static byte[] encodeAscii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i ++) {
+            char c = s.charAt(i);
+            bytes[i] = c > 0xFF? (byte) '?' : (byte) c;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the given String in one pass, each char being written as one byte,
+     * or as '?' beyond 0xFF, directly into the array of the buffer if it has one
+     */
+    static void writeAscii(ChannelBuffer buf, String s) {
+        int length = s.length();
+        buf.ensureWritableBytes(length);
+        int writerIndex = buf.writerIndex();
+        if (buf.hasArray()) {
+            byte[] array = buf.array();
+            int offset = buf.arrayOffset() + writerIndex;
+            for (int i = 0; i < length; i ++) {
+                char c = s.charAt(i);
+                array[offset + i] = c > 0xFF? (byte) '?' : (byte) c;
+            }
+        } else {
+            for (int i = 0; i < length; i ++) {
+                char c = s.charAt(i);
+                buf.setByte(writerIndex + i, c > 0xFF? '?' : c);
+            }
+        }
+        buf.writerIndex(writerIndex + length);
+    }
+
     static void validateHeaderName(String name) {
         if (name == null) {
             throw new NullPointerException("name");
@@ -161,6 +199,17 @@ class HttpCodecUtil {
     }
 
     static boolean isTransferEncodingChunked(HttpMessage m) {
+        if (m instanceof DefaultHttpMessage) {
+            // Without allocating the list of the values
+            DefaultHttpMessage message = (DefaultHttpMessage) m;
+            for (int i = message.indexOfHeader(HttpHeaders.Names.TRANSFER_ENCODING, 0); i >= 0;
+                    i = message.indexOfHeader(HttpHeaders.Names.TRANSFER_ENCODING, i + 1)) {
+                if (message.getHeaderValue(i).equalsIgnoreCase(HttpHeaders.Values.CHUNKED)) {
+                    return true;
+                }
+            }
+            return false;
+        }
         List<String> chunked = m.getHeaders(HttpHeaders.Names.TRANSFER_ENCODING);
         if (chunked.isEmpty()) {
             return false;
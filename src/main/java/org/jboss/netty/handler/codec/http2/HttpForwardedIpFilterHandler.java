@@ -0,0 +1,326 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.codec.http2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.handler.ipfilter.IpAddresses;
+import org.jboss.netty.handler.ipfilter.IpFilterRuleHandler;
+import org.jboss.netty.handler.ipfilter.IpFilteringHandler;
+import org.jboss.netty.handler.ipfilter.IpSet;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A {@link ChannelHandler} that applies the rules of an {@link IpFilterRuleHandler} to the
+ * address of the client given by the proxies (such as load balancers) in the
+ * {@code "Forwarded"} or {@code "X-Forwarded-For"} header of each {@link HttpRequest},
+ * where an {@link IpFilteringHandler} would only see the address of the last proxy.<br>
+ * <br>
+ * Since any client can send those headers, they are only used when the remote address of
+ * the connection is one of the trusted proxies. Each proxy appending the address it received
+ * the request from, the hops are then read from the last one: the first address that is not
+ * a trusted proxy is the address of the client. If all the hops are trusted proxies, the
+ * first one is used, and if a hop is not a valid IP address (such as {@code "unknown"}), the
+ * last trusted proxy is used. The {@code "Forwarded"} header is used when present, otherwise
+ * the {@code "X-Forwarded-For"} header.<br>
+ * <br>
+ * The headers are parsed by hand, without any regular expression, split or name resolution,
+ * and the client address is kept per connection with the headers it was read from, so that
+ * the next requests of a keep-alive connection with the same headers are not parsed again.
+ * The rules themselves are checked for each request, with the compiled form of the
+ * {@link IpFilterRuleHandler} (and its decision cache if any), so that a change of the rules
+ * applies at once.<br>
+ * <br>
+ * A refused request gets a {@code "403 Forbidden"} response, encoded once at construction,
+ * and the connection is closed once it is written.
+ * Only one instance is to be created and shared by all pipelines.
+ * Insert this handler after {@link HttpRequestDecoder} and {@link HttpResponseEncoder}
+ * in the {@link ChannelPipeline}:
+ * <pre>
+ * {@link ChannelPipeline} p = ...;
+ * ...
+ * p.addLast("decoder", new {@link HttpRequestDecoder}());
+ * p.addLast("encoder", new {@link HttpResponseEncoder}());
+ * p.addLast("forwardedFilter", <b>forwardedIpFilterHandler</b>);
+ * p.addLast("handler", new HttpRequestHandler());
+ * </pre>
+ *
+ * @author Frederic Bregier
+ */
+@Sharable
+public class HttpForwardedIpFilterHandler extends SimpleChannelUpstreamHandler {
+    /**
+     * Standard header of the proxies (RFC 7239)
+     */
+    public static final String FORWARDED = "Forwarded";
+
+    /**
+     * De facto header of the proxies
+     */
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private final IpFilterRuleHandler ruleHandler;
+    private final IpSet trustedProxies;
+    private final ChannelBuffer refuseResponse;
+
+    private final AtomicLong refusedRequests = new AtomicLong(0);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param ruleHandler
+     *        the {@link IpFilterRuleHandler} whose rules are applied to the client address
+     * @param trustedProxies
+     *        the addresses of the proxies whose headers are trusted
+     */
+    public HttpForwardedIpFilterHandler(IpFilterRuleHandler ruleHandler,
+            IpSet trustedProxies) {
+        if (ruleHandler == null) {
+            throw new NullPointerException("ruleHandler");
+        }
+        if (trustedProxies == null) {
+            throw new NullPointerException("trustedProxies");
+        }
+        this.ruleHandler = ruleHandler;
+        this.trustedProxies = trustedProxies;
+        refuseResponse = ChannelBuffers.unmodifiableBuffer(ChannelBuffers
+                .copiedBuffer(HttpVersion.HTTP_1_1.getText() + ' ' +
+                        HttpResponseStatus.FORBIDDEN + "\r\n" +
+                        HttpHeaders.Names.CONTENT_LENGTH + ": 0\r\n" +
+                        HttpHeaders.Names.CONNECTION + ": " +
+                        HttpHeaders.Values.CLOSE + "\r\n\r\n",
+                        CharsetUtil.US_ASCII));
+    }
+
+    private static final class ForwardedState {
+        /**
+         * Headers the client address was read from (null if not read from the headers)
+         */
+        List<String> headers;
+
+        /**
+         * Client address of the last request
+         */
+        InetAddress client;
+
+        /**
+         * True if the current request was refused, so its chunks are to be dropped
+         */
+        boolean refusing;
+
+        ForwardedState() {
+            super();
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof HttpRequest) {
+            ForwardedState state = (ForwardedState) ctx.getAttachment();
+            if (state == null) {
+                state = new ForwardedState();
+                ctx.setAttachment(state);
+            }
+            InetAddress client = getClientAddress(state, e.getRemoteAddress(),
+                    (HttpRequest) msg);
+            if (client != null && !ruleHandler.isAllowed(client)) {
+                state.refusing = true;
+                refusedRequests.incrementAndGet();
+                ChannelFuture future = Channels.future(ctx.getChannel());
+                Channels.write(ctx, future, refuseResponse.duplicate());
+                future.addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            state.refusing = false;
+        } else if (msg instanceof HttpChunk) {
+            ForwardedState state = (ForwardedState) ctx.getAttachment();
+            if (state != null && state.refusing) {
+                // Chunks of a refused request
+                return;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * @param state
+     * @param remoteAddress
+     * @param request
+     * @return the address of the client, or null if unknown
+     */
+    private InetAddress getClientAddress(ForwardedState state,
+            SocketAddress remoteAddress, HttpRequest request) {
+        if (!(remoteAddress instanceof InetSocketAddress)) {
+            return null;
+        }
+        InetAddress remote = ((InetSocketAddress) remoteAddress).getAddress();
+        if (!trustedProxies.contains(remote)) {
+            // the headers are not to be trusted
+            return remote;
+        }
+        boolean forwarded = true;
+        List<String> headers = request.getHeaders(FORWARDED);
+        if (headers.isEmpty()) {
+            forwarded = false;
+            headers = request.getHeaders(X_FORWARDED_FOR);
+        }
+        if (state.client != null && headers.equals(state.headers)) {
+            // same headers as the previous request of this connection
+            return state.client;
+        }
+        InetAddress client = remote;
+        hops: for (int i = headers.size() - 1; i >= 0; i --) {
+            String value = headers.get(i);
+            int end = value.length();
+            while (end >= 0) {
+                int start = value.lastIndexOf(',', end - 1) + 1;
+                InetAddress hop = forwarded? parseForwardedElement(value,
+                        start, end) : parseHop(value, start, end);
+                if (hop == null) {
+                    // not a valid address: the last trusted proxy is used
+                    break hops;
+                }
+                client = hop;
+                if (!trustedProxies.contains(hop)) {
+                    break hops;
+                }
+                end = start - 1;
+            }
+        }
+        state.headers = headers;
+        state.client = client;
+        return client;
+    }
+
+    /**
+     * @param value
+     * @param start
+     * @param end
+     * @return the address of the "for" parameter of the Forwarded element value[start, end[,
+     *          or null if there is none or if it is not a valid IP address
+     */
+    private static InetAddress parseForwardedElement(String value, int start,
+            int end) {
+        int pair = start;
+        while (pair < end) {
+            int pairEnd = value.indexOf(';', pair);
+            if (pairEnd < 0 || pairEnd > end) {
+                pairEnd = end;
+            }
+            int name = skipSpaces(value, pair, pairEnd);
+            if (name + 3 < pairEnd &&
+                    value.regionMatches(true, name, "for", 0, 3)) {
+                int equal = skipSpaces(value, name + 3, pairEnd);
+                if (equal < pairEnd && value.charAt(equal) == '=') {
+                    return parseHop(value, equal + 1, pairEnd);
+                }
+            }
+            pair = pairEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @param value
+     * @param start
+     * @param end
+     * @return the address of the hop value[start, end[ (an IPv4 or IPv6 address, possibly
+     *          quoted, within brackets or with a port), or null if it is not a valid IP address
+     */
+    private static InetAddress parseHop(String value, int start, int end) {
+        start = skipSpaces(value, start, end);
+        while (end > start && isSpace(value.charAt(end - 1))) {
+            end --;
+        }
+        if (end - start >= 2 && value.charAt(start) == '"' &&
+                value.charAt(end - 1) == '"') {
+            start ++;
+            end --;
+        }
+        if (start == end) {
+            return null;
+        }
+        if (value.charAt(start) == '[') {
+            // [IPv6] or [IPv6]:port
+            int bracket = value.indexOf(']', start);
+            if (bracket < 0 || bracket >= end) {
+                return null;
+            }
+            start ++;
+            end = bracket;
+        } else {
+            int colon = value.indexOf(':', start);
+            if (colon >= 0 && colon < end) {
+                int next = value.indexOf(':', colon + 1);
+                if (next < 0 || next >= end) {
+                    // IPv4:port
+                    end = colon;
+                }
+            }
+        }
+        byte[] address = IpAddresses.parse(value.substring(start, end));
+        if (address == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // this should never happen since the length is valid
+            return null;
+        }
+    }
+
+    private static int skipSpaces(String value, int start, int end) {
+        while (start < end && isSpace(value.charAt(start))) {
+            start ++;
+        }
+        return start;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Returns the number of requests refused since the creation of this handler.
+     */
+    public long getRefusedRequests() {
+        return refusedRequests.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpForwardedIpFilter with Refused: " + refusedRequests.get();
+    }
+}
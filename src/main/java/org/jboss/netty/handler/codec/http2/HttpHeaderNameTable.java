@@ -0,0 +1,226 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.codec.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http2.HttpHeaders.Names;
+
+/**
+ * Table of the well-known header names, used by {@link HttpMessageDecoder} to
+ * return one shared String instance for each of them instead of allocating a
+ * new one per decoded header, and by {@link HttpMessageEncoder} to write them
+ * from their bytes encoded once.<br>
+ * <br>
+ * The names are found by their exact bytes, in their standard form and in lower
+ * case, with an open addressing hash table built once. A second table finds the
+ * encoded form of a name String from its (cached) hash code.
+ *
+ * @author Frederic Bregier
+ *
+ */
+final class HttpHeaderNameTable {
+    /**
+     * The well-known header names in their standard form
+     */
+    private static final String[] KNOWN_NAMES = {
+        Names.ACCEPT,
+        Names.ACCEPT_CHARSET,
+        Names.ACCEPT_ENCODING,
+        Names.ACCEPT_LANGUAGE,
+        Names.ACCEPT_RANGES,
+        Names.ACCEPT_PATCH,
+        Names.AGE,
+        Names.ALLOW,
+        Names.AUTHORIZATION,
+        Names.CACHE_CONTROL,
+        Names.CONNECTION,
+        Names.CONTENT_BASE,
+        Names.CONTENT_ENCODING,
+        Names.CONTENT_LANGUAGE,
+        Names.CONTENT_LENGTH,
+        Names.CONTENT_LOCATION,
+        Names.CONTENT_TRANSFER_ENCODING,
+        Names.CONTENT_MD5,
+        Names.CONTENT_RANGE,
+        Names.CONTENT_TYPE,
+        Names.COOKIE,
+        Names.DATE,
+        Names.ETAG,
+        Names.EXPECT,
+        Names.EXPIRES,
+        Names.FROM,
+        Names.HOST,
+        Names.IF_MATCH,
+        Names.IF_MODIFIED_SINCE,
+        Names.IF_NONE_MATCH,
+        Names.IF_RANGE,
+        Names.IF_UNMODIFIED_SINCE,
+        Names.LAST_MODIFIED,
+        Names.LOCATION,
+        Names.MAX_FORWARDS,
+        Names.ORIGIN,
+        Names.PRAGMA,
+        Names.PROXY_AUTHENTICATE,
+        Names.PROXY_AUTHORIZATION,
+        Names.RANGE,
+        Names.REFERER,
+        Names.RETRY_AFTER,
+        Names.SEC_WEBSOCKET_KEY1,
+        Names.SEC_WEBSOCKET_KEY2,
+        Names.SEC_WEBSOCKET_LOCATION,
+        Names.SEC_WEBSOCKET_ORIGIN,
+        Names.SEC_WEBSOCKET_PROTOCOL,
+        Names.SERVER,
+        Names.SET_COOKIE,
+        Names.SET_COOKIE2,
+        Names.TE,
+        Names.TRAILER,
+        Names.TRANSFER_ENCODING,
+        Names.UPGRADE,
+        Names.USER_AGENT,
+        Names.VARY,
+        Names.VIA,
+        Names.WARNING,
+        Names.WEBSOCKET_LOCATION,
+        Names.WEBSOCKET_ORIGIN,
+        Names.WEBSOCKET_PROTOCOL,
+        Names.WWW_AUTHENTICATE,
+        "Forwarded",
+        "Keep-Alive",
+        "X-Forwarded-For",
+    };
+
+    /**
+     * Size of the table, a power of 2 far larger than the number of names
+     */
+    private static final int TABLE_SIZE = 512;
+
+    private static final int MASK = TABLE_SIZE - 1;
+
+    private static final String[] names = new String[TABLE_SIZE];
+
+    private static final byte[][] nameBytes = new byte[TABLE_SIZE][];
+
+    /**
+     * The names by the hash code of their String, and their encoded form followed
+     * by ": "
+     */
+    private static final String[] encodedNames = new String[TABLE_SIZE];
+
+    private static final byte[][] encodedBytes = new byte[TABLE_SIZE][];
+
+    static {
+        for (String name: KNOWN_NAMES) {
+            add(name);
+            add(name.toLowerCase());
+        }
+        for (String name: names) {
+            if (name != null) {
+                addEncoded(name);
+            }
+        }
+    }
+
+    private HttpHeaderNameTable() {
+        super();
+    }
+
+    private static void add(String name) {
+        byte[] bytes = new byte[name.length()];
+        int h = 0;
+        for (int i = 0; i < bytes.length; i ++) {
+            bytes[i] = (byte) name.charAt(i);
+            h = 31 * h + bytes[i];
+        }
+        int i = h & MASK;
+        while (names[i] != null) {
+            if (names[i].equals(name)) {
+                return;
+            }
+            i = i + 1 & MASK;
+        }
+        names[i] = name;
+        nameBytes[i] = bytes;
+    }
+
+    private static void addEncoded(String name) {
+        byte[] bytes = new byte[name.length() + 2];
+        for (int i = 0; i < name.length(); i ++) {
+            bytes[i] = (byte) name.charAt(i);
+        }
+        bytes[name.length()] = HttpCodecUtil.COLON;
+        bytes[name.length() + 1] = HttpCodecUtil.SP;
+        int i = name.hashCode() & MASK;
+        while (encodedNames[i] != null) {
+            i = i + 1 & MASK;
+        }
+        encodedNames[i] = name;
+        encodedBytes[i] = bytes;
+    }
+
+    /**
+     * @param name
+     * @return the bytes of the given well-known header name followed by ": ",
+     *         not to be modified, or null if it is not a well-known header name
+     */
+    static byte[] getEncoded(String name) {
+        int i = name.hashCode() & MASK;
+        for (;;) {
+            String known = encodedNames[i];
+            if (known == null) {
+                return null;
+            }
+            if (known == name || known.equals(name)) {
+                return encodedBytes[i];
+            }
+            i = i + 1 & MASK;
+        }
+    }
+
+    /**
+     * @param buffer
+     * @param index the index of the first byte of the name
+     * @param length the length of the name
+     * @return the shared instance of the header name made of the given bytes, or
+     *         null if it is not a well-known header name
+     */
+    static String lookup(ChannelBuffer buffer, int index, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i ++) {
+            h = 31 * h + buffer.getByte(index + i);
+        }
+        int i = h & MASK;
+        for (;;) {
+            byte[] bytes = nameBytes[i];
+            if (bytes == null) {
+                return null;
+            }
+            if (bytes.length == length && equals(bytes, buffer, index)) {
+                return names[i];
+            }
+            i = i + 1 & MASK;
+        }
+    }
+
+    private static boolean equals(byte[] bytes, ChannelBuffer buffer, int index) {
+        for (int i = 0; i < bytes.length; i ++) {
+            if (bytes[i] != buffer.getByte(index + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -15,12 +15,14 @@
  */
 package org.jboss.netty.handler.codec.http2;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 
 /**
  * Provides the constants for the standard HTTP header names and values and
@@ -689,7 +691,16 @@ public class HttpHeaders {
         message.setHeader(Names.HOST, value);
     }
 
-    private static final int BUCKET_SIZE = 17;
+    /**
+     * Number of headers above which they are indexed by a hash table, under which
+     * they are found by a linear scan
+     */
+    private static final int HASH_THRESHOLD = 16;
+
+    /**
+     * Initial number of headers of the arrays
+     */
+    private static final int INITIAL_CAPACITY = 8;
 
     private static int hash(String name) {
         int h = 0;
@@ -734,15 +745,146 @@ public class HttpHeaders {
         return true;
     }
 
-    private static int index(int hash) {
-        return hash % BUCKET_SIZE;
-    }
+    /**
+     * The names and values of the headers in order, the name of the i-th header
+     * at 2 * i and its value at 2 * i + 1, or null while there is no header
+     */
+    private String[] pairs;
+
+    /**
+     * The hash of the name of each header
+     */
+    private int[] hashes;
+
+    private int size;
+
+    /**
+     * The number of bytes of the headers once encoded as "name: value\r\n" lines
+     */
+    private int encodedSize;
+
+    /**
+     * Above HASH_THRESHOLD headers, for each bucket the position + 1 of its last
+     * header, or 0, else null
+     */
+    private int[] buckets;
+
+    /**
+     * Above HASH_THRESHOLD headers, for each header the position + 1 of the previous
+     * header of the same bucket, or 0, else null
+     */
+    private int[] nexts;
+
+    /**
+     * The raw header block, as "name: value\r\n" lines, while the headers are
+     * not materialized into entries, or null
+     */
+    private ChannelBuffer raw;
 
-    private final Entry[] entries = new Entry[BUCKET_SIZE];
-    private final Entry head = new Entry(-1, null, null);
+    /**
+     * For each raw header, the indexes in raw of its name start, name end and
+     * value end, its value starting 2 bytes after its name end
+     */
+    private int[] rawIndex;
+
+    private int rawCount;
 
     HttpHeaders() {
-        head.before = head.after = head;
+        super();
+    }
+
+    /**
+     * Replaces all the headers by the given raw header block, parsed into
+     * entries only when needed.  Until then, the headers are looked up by name
+     * directly in the raw bytes.
+     *
+     * @param raw the "name: value\r\n" lines of the headers
+     * @param rawIndex for each header, the indexes in raw of its name start,
+     *        name end and value end, its value starting 2 bytes after its name end
+     * @param rawCount the number of headers
+     */
+    void setRawHeaders(ChannelBuffer raw, int[] rawIndex, int rawCount) {
+        clearHeaders();
+        this.raw = raw;
+        this.rawIndex = rawIndex;
+        this.rawCount = rawCount;
+    }
+
+    /**
+     * @return the raw header block if the headers were neither modified nor
+     *         materialized since {@link #setRawHeaders}, or null
+     */
+    ChannelBuffer getRawHeaders() {
+        return raw;
+    }
+
+    /**
+     * Parse the raw headers, if any, into entries
+     */
+    private void materialize() {
+        ChannelBuffer raw = this.raw;
+        if (raw == null) {
+            return;
+        }
+        this.raw = null;
+        int[] rawIndex = this.rawIndex;
+        this.rawIndex = null;
+        for (int i = 0; i < rawCount; i ++) {
+            int nameStart = rawIndex[i * 3];
+            int nameEnd = rawIndex[i * 3 + 1];
+            String name = HttpHeaderNameTable.lookup(raw, nameStart, nameEnd - nameStart);
+            if (name == null) {
+                name = rawString(raw, nameStart, nameEnd);
+            }
+            addHeader(name, rawString(raw, nameEnd + 2, rawIndex[i * 3 + 2]));
+        }
+        rawCount = 0;
+    }
+
+    /**
+     * @return the position of the next raw header named name at or after from,
+     *         or -1 if none
+     */
+    private int findRaw(String name, int from) {
+        int length = name.length();
+        for (int i = from; i < rawCount; i ++) {
+            int nameStart = rawIndex[i * 3];
+            if (rawIndex[i * 3 + 1] - nameStart != length) {
+                continue;
+            }
+            int j;
+            for (j = 0; j < length; j ++) {
+                char c1 = name.charAt(j);
+                char c2 = (char) (raw.getByte(nameStart + j) & 0xFF);
+                if (c1 != c2) {
+                    if (c1 >= 'A' && c1 <= 'Z') {
+                        c1 += 32;
+                    }
+                    if (c2 >= 'A' && c2 <= 'Z') {
+                        c2 += 32;
+                    }
+                    if (c1 != c2) {
+                        break;
+                    }
+                }
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String rawValue(int i) {
+        return rawString(raw, rawIndex[i * 3 + 1] + 2, rawIndex[i * 3 + 2]);
+    }
+
+    private static String rawString(ChannelBuffer raw, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i ++) {
+            chars[i] = (char) (raw.getByte(start + i) & 0xFF);
+        }
+        return new String(chars);
     }
 
     void validateHeaderName(String name) {
@@ -750,78 +892,158 @@ public class HttpHeaders {
     }
 
     void addHeader(final String name, final Object value) {
+        materialize();
         validateHeaderName(name);
         String strVal = toString(value);
         HttpCodecUtil.validateHeaderValue(strVal);
-        int h = hash(name);
-        int i = index(h);
-        addHeader0(h, i, name, strVal);
+        addHeader0(hash(name), name, strVal);
+    }
+
+    private void addHeader0(int h, final String name, final String value) {
+        int size = this.size;
+        if (pairs == null) {
+            pairs = new String[INITIAL_CAPACITY << 1];
+            hashes = new int[INITIAL_CAPACITY];
+        } else if (size == hashes.length) {
+            String[] newPairs = new String[size << 2];
+            System.arraycopy(pairs, 0, newPairs, 0, size << 1);
+            pairs = newPairs;
+            int[] newHashes = new int[size << 1];
+            System.arraycopy(hashes, 0, newHashes, 0, size);
+            hashes = newHashes;
+            if (buckets != null) {
+                // rebuilt below with the new capacity
+                buckets = null;
+            }
+        }
+        pairs[size << 1] = name;
+        pairs[(size << 1) + 1] = value;
+        hashes[size] = h;
+        this.size = ++ size;
+        encodedSize += encodedSize(name, value);
+        if (buckets != null) {
+            link(size - 1);
+        } else if (size > HASH_THRESHOLD) {
+            buildIndex();
+        }
+    }
+
+    /**
+     * Build the hash index of all the headers
+     */
+    private void buildIndex() {
+        int capacity = hashes.length;
+        int tableSize = 1;
+        while (tableSize < capacity) {
+            tableSize <<= 1;
+        }
+        buckets = new int[tableSize];
+        nexts = new int[capacity];
+        for (int i = 0; i < size; i ++) {
+            link(i);
+        }
+    }
+
+    private void link(int position) {
+        int bucket = hashes[position] & buckets.length - 1;
+        nexts[position] = buckets[bucket];
+        buckets[bucket] = position + 1;
+    }
+
+    private boolean matches(int position, int h, String name) {
+        return hashes[position] == h && eq(name, pairs[position << 1]);
     }
 
-    private void addHeader0(int h, int i, final String name, final String value) {
-        // Update the hash table.
-        Entry e = entries[i];
-        Entry newEntry;
-        entries[i] = newEntry = new Entry(h, name, value);
-        newEntry.next = e;
+    /**
+     * @return the position of the first header named name at or after from,
+     *         or -1 if none
+     */
+    private int indexOf0(int h, String name, int from) {
+        if (buckets == null) {
+            for (int i = from; i < size; i ++) {
+                if (matches(i, h, name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        // The chain goes from the last header to the first one.
+        int found = -1;
+        for (int p = buckets[h & buckets.length - 1]; p > from; p = nexts[p - 1]) {
+            if (matches(p - 1, h, name)) {
+                found = p - 1;
+            }
+        }
+        return found;
+    }
 
-        // Update the linked list.
-        newEntry.addBefore(head);
+    /**
+     * @return the position of the last header named name, or -1 if none
+     */
+    private int lastIndexOf0(int h, String name) {
+        if (buckets == null) {
+            for (int i = size - 1; i >= 0; i --) {
+                if (matches(i, h, name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        for (int p = buckets[h & buckets.length - 1]; p > 0; p = nexts[p - 1]) {
+            if (matches(p - 1, h, name)) {
+                return p - 1;
+            }
+        }
+        return -1;
     }
 
     void removeHeader(final String name) {
         if (name == null) {
             throw new NullPointerException("name");
         }
-        int h = hash(name);
-        int i = index(h);
-        removeHeader0(h, i, name);
+        materialize();
+        removeHeader0(hash(name), name);
     }
 
-    private void removeHeader0(int h, int i, String name) {
-        Entry e = entries[i];
-        if (e == null) {
+    private void removeHeader0(int h, String name) {
+        if (indexOf0(h, name, 0) < 0) {
             return;
         }
-
-        for (;;) {
-            if (e.hash == h && eq(name, e.key)) {
-                e.remove();
-                Entry next = e.next;
-                if (next != null) {
-                    entries[i] = next;
-                    e = next;
-                } else {
-                    entries[i] = null;
-                    return;
-                }
+        String[] pairs = this.pairs;
+        int size = this.size;
+        int j = 0;
+        for (int i = 0; i < size; i ++) {
+            if (matches(i, h, name)) {
+                encodedSize -= encodedSize(pairs[i << 1], pairs[(i << 1) + 1]);
             } else {
-                break;
+                if (i != j) {
+                    pairs[j << 1] = pairs[i << 1];
+                    pairs[(j << 1) + 1] = pairs[(i << 1) + 1];
+                    hashes[j] = hashes[i];
+                }
+                j ++;
             }
         }
-
-        for (;;) {
-            Entry next = e.next;
-            if (next == null) {
-                break;
-            }
-            if (next.hash == h && eq(name, next.key)) {
-                e.next = next.next;
-                next.remove();
-            } else {
-                e = next;
-            }
+        for (int i = j << 1; i < size << 1; i ++) {
+            pairs[i] = null;
+        }
+        this.size = j;
+        if (j > HASH_THRESHOLD) {
+            buildIndex();
+        } else {
+            buckets = null;
+            nexts = null;
         }
     }
 
     void setHeader(final String name, final Object value) {
+        materialize();
         validateHeaderName(name);
         String strVal = toString(value);
         HttpCodecUtil.validateHeaderValue(strVal);
         int h = hash(name);
-        int i = index(h);
-        removeHeader0(h, i, name);
-        addHeader0(h, i, name, strVal);
+        removeHeader0(h, name);
+        addHeader0(h, name, strVal);
     }
 
     void setHeader(final String name, final Iterable<?> values) {
@@ -829,94 +1051,176 @@ public class HttpHeaders {
             throw new NullPointerException("values");
         }
 
+        materialize();
         validateHeaderName(name);
 
         int h = hash(name);
-        int i = index(h);
 
-        removeHeader0(h, i, name);
+        removeHeader0(h, name);
         for (Object v: values) {
             if (v == null) {
                 break;
             }
             String strVal = toString(v);
             HttpCodecUtil.validateHeaderValue(strVal);
-            addHeader0(h, i, name, strVal);
+            addHeader0(h, name, strVal);
         }
     }
 
     void clearHeaders() {
-        for (int i = 0; i < entries.length; i ++) {
-            entries[i] = null;
+        raw = null;
+        rawIndex = null;
+        rawCount = 0;
+        if (pairs != null) {
+            for (int i = 0; i < size << 1; i ++) {
+                pairs[i] = null;
+            }
         }
-        head.before = head.after = head;
+        size = 0;
+        encodedSize = 0;
+        buckets = null;
+        nexts = null;
     }
 
+    /**
+     * @return the value of the last header named name, or null if none
+     */
     String getHeader(final String name) {
         if (name == null) {
             throw new NullPointerException("name");
         }
-
-        int h = hash(name);
-        int i = index(h);
-        Entry e = entries[i];
-        while (e != null) {
-            if (e.hash == h && eq(name, e.key)) {
-                return e.value;
+        if (raw != null) {
+            // The last one, as the most recently added entry
+            int last = -1;
+            for (int i = findRaw(name, 0); i >= 0; i = findRaw(name, i + 1)) {
+                last = i;
             }
-
-            e = e.next;
+            return last < 0? null : rawValue(last);
         }
-        return null;
+
+        int i = lastIndexOf0(hash(name), name);
+        return i < 0? null : pairs[(i << 1) + 1];
+    }
+
+    /**
+     * @return the value of the first header named name, or null if none
+     */
+    String getFirstHeader(final String name) {
+        int i = indexOf(name, 0);
+        return i < 0? null : getValue(i);
     }
 
     List<String> getHeaders(final String name) {
         if (name == null) {
             throw new NullPointerException("name");
         }
-
-        LinkedList<String> values = new LinkedList<String>();
+        List<String> values = new ArrayList<String>(2);
+        if (raw != null) {
+            for (int i = findRaw(name, 0); i >= 0; i = findRaw(name, i + 1)) {
+                values.add(rawValue(i));
+            }
+            return values;
+        }
 
         int h = hash(name);
-        int i = index(h);
-        Entry e = entries[i];
-        while (e != null) {
-            if (e.hash == h && eq(name, e.key)) {
-                values.addFirst(e.value);
-            }
-            e = e.next;
+        for (int i = indexOf0(h, name, 0); i >= 0; i = indexOf0(h, name, i + 1)) {
+            values.add(pairs[(i << 1) + 1]);
         }
         return values;
     }
 
     List<Map.Entry<String, String>> getHeaders() {
+        materialize();
         List<Map.Entry<String, String>> all =
-            new LinkedList<Map.Entry<String, String>>();
-
-        Entry e = head.after;
-        while (e != head) {
-            all.add(e);
-            e = e.after;
+            new ArrayList<Map.Entry<String, String>>(size);
+        for (int i = 0; i < size; i ++) {
+            all.add(new Entry(this, i));
         }
         return all;
     }
 
     boolean containsHeader(String name) {
-        return getHeader(name) != null;
+        return indexOf(name, 0) >= 0;
     }
 
     Set<String> getHeaderNames() {
+        materialize();
         Set<String> names =
             new TreeSet<String>(CaseIgnoringComparator.INSTANCE);
-
-        Entry e = head.after;
-        while (e != head) {
-            names.add(e.key);
-            e = e.after;
+        for (int i = 0; i < size; i ++) {
+            names.add(pairs[i << 1]);
         }
         return names;
     }
 
+    /**
+     * @return the number of headers
+     */
+    int size() {
+        return raw != null? rawCount : size;
+    }
+
+    /**
+     * @return the number of bytes of the headers once encoded as
+     *         "name: value\r\n" lines, one byte per char
+     */
+    int getEncodedSize() {
+        return raw != null? raw.readableBytes() : encodedSize;
+    }
+
+    private static int encodedSize(String name, String value) {
+        return name.length() + value.length() + 4;
+    }
+
+    /**
+     * @return the position of the first header named name at or after from,
+     *         or -1 if none
+     */
+    int indexOf(String name, int from) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        if (from < 0) {
+            from = 0;
+        }
+        if (raw != null) {
+            return findRaw(name, from);
+        }
+        return indexOf0(hash(name), name, from);
+    }
+
+    /**
+     * @return the name of the header at the given position
+     */
+    String getName(int position) {
+        checkPosition(position);
+        if (raw != null) {
+            int nameStart = rawIndex[position * 3];
+            int nameEnd = rawIndex[position * 3 + 1];
+            String name = HttpHeaderNameTable.lookup(raw, nameStart, nameEnd - nameStart);
+            return name != null? name : rawString(raw, nameStart, nameEnd);
+        }
+        return pairs[position << 1];
+    }
+
+    /**
+     * @return the value of the header at the given position
+     */
+    String getValue(int position) {
+        checkPosition(position);
+        if (raw != null) {
+            return rawValue(position);
+        }
+        return pairs[(position << 1) + 1];
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException(
+                    "position: " + position + " (expected: 0-" + (size() - 1) + ')');
+        }
+    }
+
     private static String toString(Object value) {
         if (value == null) {
             return null;
@@ -924,29 +1228,21 @@ public class HttpHeaders {
         return value.toString();
     }
 
+    /**
+     * View of one header, whose value is set in the headers while the header is
+     * still at the same position
+     */
     private static final class Entry implements Map.Entry<String, String> {
-        final int hash;
-        final String key;
-        String value;
-        Entry next;
-        Entry before, after;
-
-        Entry(int hash, String key, String value) {
-            this.hash = hash;
-            this.key = key;
-            this.value = value;
-        }
-
-        void remove() {
-            before.after = after;
-            after.before = before;
-        }
-
-        void addBefore(Entry e) {
-            after  = e;
-            before = e.before;
-            before.after = this;
-            after.before = this;
+        private final HttpHeaders headers;
+        private final int position;
+        private final String key;
+        private String value;
+
+        Entry(HttpHeaders headers, int position) {
+            this.headers = headers;
+            this.position = position;
+            key = headers.pairs[position << 1];
+            value = headers.pairs[(position << 1) + 1];
         }
 
         public String getKey() {
@@ -964,6 +1260,12 @@ public class HttpHeaders {
             HttpCodecUtil.validateHeaderValue(value);
             String oldValue = this.value;
             this.value = value;
+            String[] pairs = headers.pairs;
+            if (headers.raw == null && position < headers.size &&
+                    pairs[position << 1] == key) {
+                headers.encodedSize += value.length() - pairs[(position << 1) + 1].length();
+                pairs[(position << 1) + 1] = value;
+            }
             return oldValue;
         }
 
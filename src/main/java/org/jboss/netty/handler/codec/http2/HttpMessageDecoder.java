@@ -15,15 +15,19 @@
  */
 package org.jboss.netty.handler.codec.http2;
 
-import java.util.List;
+import java.net.SocketAddress;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
+import org.jboss.netty.util.CharsetUtil;
 
 /**
  * Decodes {@link ChannelBuffer}s into {@link HttpMessage}s and
@@ -88,6 +92,42 @@ import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
  * {@link ChannelPipeline}.  However, please note that your server might not
  * be as memory efficient as without the aggregator.
  *
+ * <h3>Incremental decoding</h3>
+ *
+ * This decoder does not replay its input: the initial line, the headers, the
+ * chunk sizes and the trailing headers are read as a state machine which keeps
+ * the partial line and the header being read between two received buffers.
+ * Therefore each byte is scanned only once, even when a large header block is
+ * received in many small fragments.  Only the content waiting to be complete
+ * is kept in an internal buffer.
+ * The lines are searched and split directly in the received bytes: the value
+ * of each header is allocated once, and the well-known header names (such as
+ * {@link HttpHeaders.Names#HOST}) are shared instances.
+ *
+ * <h3>Content as slices</h3>
+ *
+ * By default the content of each {@link HttpMessage} and {@link HttpChunk} is
+ * copied out of the received buffers.  When {@code sliceContent} is enabled,
+ * the content is a slice of the received buffer instead, so that the body bytes
+ * are never copied by this decoder.  A buffer a slice was taken from is never
+ * compacted nor written over again: what is left of it is copied into a new
+ * internal buffer, and the sliced buffer is freed once no slice references it
+ * anymore.  This assumes that the received buffers are not reused by the
+ * transport, which is the case of the buffers created by the default buffer
+ * factories.
+ *
+ * <h3>Lazy headers</h3>
+ *
+ * When {@code lazyHeaders} is enabled, the headers of a {@link DefaultHttpMessage}
+ * are not parsed into Strings while decoding: the header block is kept as
+ * "name: value" lines in one buffer owned by the message, with the offsets of
+ * each name and value.  A header looked up by name is then found directly in
+ * these bytes, and the whole block is parsed into headers only when they are
+ * modified or listed.  If the headers are left untouched, {@link HttpMessageEncoder}
+ * writes this block as is, which saves most of the work of a proxy.  The names
+ * and the values are validated on the bytes as they are read, as they would be
+ * once parsed.
+ *
  * <h3>Extensibility</h3>
  *
  * Please note that this decoder is designed to be extended to implement
@@ -104,16 +144,64 @@ import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
  *
  * @apiviz.landmark
  */
-public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDecoder.State> {
+public abstract class HttpMessageDecoder extends SimpleChannelUpstreamHandler {
 
     private final int maxInitialLineLength;
     private final int maxHeaderSize;
     private final int maxChunkSize;
+    private final boolean sliceContent;
+    private final boolean lazyHeaders;
+    private ChannelBuffer cumulation;
+
+    /**
+     * True if a slice of the cumulation was taken, so that it cannot be compacted
+     */
+    private boolean cumulationSliced;
+    private State state = State.SKIP_CONTROL_CHARS;
     private HttpMessage message;
     private ChannelBuffer content;
     private long chunkSize;
     private int headerSize;
 
+    /**
+     * The bytes of the partial line read so far, kept between the calls to decode
+     */
+    private ChannelBuffer partialLine;
+
+    /**
+     * The buffer holding the last line read, and the bounds of this line
+     * without its CRLF
+     */
+    private ChannelBuffer lineBuffer;
+    private int lineStart;
+    private int lineEnd;
+
+    /**
+     * Reused to build the Strings out of the bytes
+     */
+    private char[] chars = new char[64];
+
+    /**
+     * The header (or trailing header) read so far, not added yet since the
+     * next line may continue its value
+     */
+    private String name;
+    private String value;
+    private HttpChunkTrailer trailer;
+
+    /**
+     * In the lazy headers mode, the raw header block being read, and for each
+     * header the indexes of its name start, name end and value end
+     */
+    private ChannelBuffer rawHeaders;
+    private int[] rawIndex;
+    private int rawCount;
+
+    /**
+     * The name start, name end, value start and value end of the last header split
+     */
+    private final int[] headerBounds = new int[4];
+
     /**
      * The internal state of {@link HttpMessageDecoder}.
      * <em>Internal use only</em>.
@@ -128,7 +216,6 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
         SKIP_CONTROL_CHARS,
         READ_INITIAL,
         READ_HEADER,
-        READ_VARIABLE_LENGTH_CONTENT,
         READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS,
         READ_FIXED_LENGTH_CONTENT,
         READ_FIXED_LENGTH_CONTENT_AS_CHUNKS,
@@ -153,8 +240,33 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
      */
     protected HttpMessageDecoder(
             int maxInitialLineLength, int maxHeaderSize, int maxChunkSize) {
+        this(maxInitialLineLength, maxHeaderSize, maxChunkSize, false);
+    }
 
-        super(State.SKIP_CONTROL_CHARS, true);
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     */
+    protected HttpMessageDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent) {
+        this(maxInitialLineLength, maxHeaderSize, maxChunkSize, sliceContent,
+                false);
+    }
+
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     * @param lazyHeaders True to parse the headers of each {@link DefaultHttpMessage}
+     *        only when they are needed
+     */
+    protected HttpMessageDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent, boolean lazyHeaders) {
 
         if (maxInitialLineLength <= 0) {
             throw new IllegalArgumentException(
@@ -174,33 +286,158 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
         this.maxInitialLineLength = maxInitialLineLength;
         this.maxHeaderSize = maxHeaderSize;
         this.maxChunkSize = maxChunkSize;
+        this.sliceContent = sliceContent;
+        this.lazyHeaders = lazyHeaders;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object m = e.getMessage();
+        if (!(m instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        ChannelBuffer input = (ChannelBuffer) m;
+        if (!input.readable()) {
+            return;
+        }
+
+        if (cumulation == null) {
+            // Decode the input directly, and keep only what is left.
+            callDecode(ctx, e.getChannel(), input, e.getRemoteAddress());
+            if (input.readable()) {
+                cumulation = newCumulation(e.getChannel(), input);
+            }
+        } else {
+            ChannelBuffer cumulation = this.cumulation;
+            if (cumulationSliced) {
+                // Leave the sliced bytes untouched.
+                cumulation = newCumulation(e.getChannel(), cumulation);
+                this.cumulation = cumulation;
+            } else {
+                cumulation.discardReadBytes();
+            }
+            cumulation.writeBytes(input);
+            callDecode(ctx, e.getChannel(), cumulation, e.getRemoteAddress());
+            if (!cumulation.readable()) {
+                this.cumulation = null;
+            }
+        }
     }
 
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, State state) throws Exception {
+    public void channelDisconnected(ChannelHandlerContext ctx,
+            ChannelStateEvent e) throws Exception {
+        cleanup(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx,
+            ChannelStateEvent e) throws Exception {
+        cleanup(ctx, e);
+    }
+
+    private ChannelBuffer newCumulation(Channel channel, ChannelBuffer remaining) {
+        cumulationSliced = false;
+        ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer(
+                Math.max(256, remaining.readableBytes()),
+                channel.getConfig().getBufferFactory());
+        cumulation.writeBytes(remaining);
+        return cumulation;
+    }
+
+    private void callDecode(ChannelHandlerContext ctx, Channel channel,
+            ChannelBuffer buffer, SocketAddress remoteAddress) throws Exception {
+        while (buffer.readable()) {
+            int oldReaderIndex = buffer.readerIndex();
+            Object result = decode(ctx, channel, buffer, state);
+            if (result == null) {
+                if (oldReaderIndex == buffer.readerIndex()) {
+                    // Wait for more bytes.
+                    break;
+                }
+                continue;
+            }
+            if (oldReaderIndex == buffer.readerIndex()) {
+                throw new IllegalStateException(
+                        "decode() method must read at least one byte " +
+                        "if it returned a frame (caused by: " + getClass() + ")");
+            }
+            fireMessageReceived(ctx, result, remoteAddress);
+        }
+    }
+
+    private void cleanup(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        try {
+            ChannelBuffer cumulation = this.cumulation;
+            if (cumulation != null) {
+                this.cumulation = null;
+                callDecode(ctx, e.getChannel(), cumulation, null);
+            }
+
+            // The end of the connection ends a content without length.
+            if (state == State.READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS) {
+                reset();
+                fireMessageReceived(ctx, HttpChunk.LAST_CHUNK, null);
+            }
+        } finally {
+            ctx.sendUpstream(e);
+        }
+    }
+
+    private static void fireMessageReceived(ChannelHandlerContext ctx,
+            Object result, SocketAddress remoteAddress) {
+        if (result instanceof Object[]) {
+            for (Object r: (Object[]) result) {
+                Channels.fireMessageReceived(ctx, r, remoteAddress);
+            }
+        } else {
+            Channels.fireMessageReceived(ctx, result, remoteAddress);
+        }
+    }
+
+    /**
+     * Decodes what can be decoded from the buffer in the given state. Unlike a
+     * replaying decoder, the bytes read are never read again: a partial line or
+     * header block is kept in this decoder until the next call, and null is
+     * returned once all the readable bytes are consumed.
+     *
+     * @return the decoded message, chunk or array of them, or null if nothing
+     *         could be decoded yet
+     */
+    protected Object decode(ChannelHandlerContext ctx, Channel channel,
+            ChannelBuffer buffer, State state) throws Exception {
         switch (state) {
         case SKIP_CONTROL_CHARS: {
-            try {
-                skipControlCharacters(buffer);
-                checkpoint(State.READ_INITIAL);
-            } finally {
-                checkpoint();
+            if (!skipControlCharacters(buffer)) {
+                return null;
             }
+            this.state = State.READ_INITIAL;
         }
         case READ_INITIAL: {
-            String[] initialLine = splitInitialLine(readLine(buffer, maxInitialLineLength));
+            if (!readLine(buffer, maxInitialLineLength)) {
+                return null;
+            }
+            String[] initialLine = splitInitialLine(
+                    toString(lineBuffer, lineStart, lineEnd));
             if (initialLine.length < 3) {
                 // Invalid initial line - ignore.
-                checkpoint(State.SKIP_CONTROL_CHARS);
+                this.state = State.SKIP_CONTROL_CHARS;
                 return null;
             }
 
             message = createMessage(initialLine);
-            checkpoint(State.READ_HEADER);
+            this.state = State.READ_HEADER;
         }
         case READ_HEADER: {
             State nextState = readHeaders(buffer);
-            checkpoint(nextState);
+            if (nextState == null) {
+                return null;
+            }
+            this.state = nextState;
             if (nextState == State.READ_CHUNK_SIZE) {
                 // Chunked encoding
                 message.setChunked(true);
@@ -210,8 +447,10 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
                 // No content is expected.
                 // Remove the headers which are not supposed to be present not
                 // to confuse subsequent handlers.
-                message.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
-                return message;
+                if (message.containsHeader(HttpHeaders.Names.TRANSFER_ENCODING)) {
+                    message.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+                }
+                return reset();
             } else {
                 long contentLength = HttpHeaders.getContentLength(message, -1);
                 if (contentLength == 0 || contentLength == -1 && isDecodingRequest()) {
@@ -223,66 +462,47 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
                 case READ_FIXED_LENGTH_CONTENT:
                     if (contentLength > maxChunkSize) {
                         // Generate HttpMessage first.  HttpChunks will follow.
-                        checkpoint(State.READ_FIXED_LENGTH_CONTENT_AS_CHUNKS);
+                        this.state = State.READ_FIXED_LENGTH_CONTENT_AS_CHUNKS;
                         message.setChunked(true);
                         // chunkSize will be decreased as the READ_FIXED_LENGTH_CONTENT_AS_CHUNKS
                         // state reads data chunk by chunk.
-                        chunkSize = HttpHeaders.getContentLength(message, -1);
-                        return message;
-                    }
-                    break;
-                case READ_VARIABLE_LENGTH_CONTENT:
-                    if (buffer.readableBytes() > maxChunkSize) {
-                        // Generate HttpMessage first.  HttpChunks will follow.
-                        checkpoint(State.READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS);
-                        message.setChunked(true);
+                        chunkSize = contentLength;
                         return message;
                     }
                     break;
+                case READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS:
+                    // The end of the content is the end of the connection:
+                    // generate HttpMessage first.  HttpChunks will follow.
+                    message.setChunked(true);
+                    return message;
                 }
             }
             // We return null here, this forces decode to be called again where we will decode the content
             return null;
         }
-        case READ_VARIABLE_LENGTH_CONTENT: {
-            if (content == null) {
-                content = ChannelBuffers.dynamicBuffer(channel.getConfig().getBufferFactory());
-            }
-            //this will cause a replay error until the channel is closed where this will read what's left in the buffer
-            content.writeBytes(buffer.readBytes(buffer.readableBytes()));
-            return reset();
-        }
         case READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS: {
             // Keep reading data as a chunk until the end of connection is reached.
             int chunkSize = Math.min(maxChunkSize, buffer.readableBytes());
-            HttpChunk chunk = new DefaultHttpChunk(buffer.readBytes(chunkSize));
-
-            if (!buffer.readable()) {
-                // Reached to the end of the connection.
-                reset();
-                if (!chunk.isLast()) {
-                    // Append the last chunk.
-                    return new Object[] { chunk, HttpChunk.LAST_CHUNK };
-                }
-            }
-            return chunk;
+            return new DefaultHttpChunk(readContent(buffer, chunkSize));
         }
         case READ_FIXED_LENGTH_CONTENT: {
             //we have a content-length so we just read the correct number of bytes
-            readFixedLengthContent(buffer);
+            long length = HttpHeaders.getContentLength(message, -1);
+            assert length <= Integer.MAX_VALUE;
+            if (buffer.readableBytes() < length) {
+                return null;
+            }
+            content = readContent(buffer, (int) length);
             return reset();
         }
         case READ_FIXED_LENGTH_CONTENT_AS_CHUNKS: {
             long chunkSize = this.chunkSize;
-            HttpChunk chunk;
-            if (chunkSize > maxChunkSize) {
-                chunk = new DefaultHttpChunk(buffer.readBytes(maxChunkSize));
-                chunkSize -= maxChunkSize;
-            } else {
-                assert chunkSize <= Integer.MAX_VALUE;
-                chunk = new DefaultHttpChunk(buffer.readBytes((int) chunkSize));
-                chunkSize = 0;
+            int toRead = (int) Math.min(chunkSize, maxChunkSize);
+            if (buffer.readableBytes() < toRead) {
+                return null;
             }
+            HttpChunk chunk = new DefaultHttpChunk(readContent(buffer, toRead));
+            chunkSize -= toRead;
             this.chunkSize = chunkSize;
 
             if (chunkSize == 0) {
@@ -300,63 +520,65 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
          * read chunk, read and ignore the CRLF and repeat until 0
          */
         case READ_CHUNK_SIZE: {
-            String line = readLine(buffer, maxInitialLineLength);
-            int chunkSize = getChunkSize(line);
+            if (!readLine(buffer, maxInitialLineLength)) {
+                return null;
+            }
+            int chunkSize = getChunkSize(lineBuffer, lineStart, lineEnd);
             this.chunkSize = chunkSize;
             if (chunkSize == 0) {
-                checkpoint(State.READ_CHUNK_FOOTER);
+                this.state = State.READ_CHUNK_FOOTER;
                 return null;
             } else if (chunkSize > maxChunkSize) {
                 // A chunk is too large. Split them into multiple chunks again.
-                checkpoint(State.READ_CHUNKED_CONTENT_AS_CHUNKS);
+                this.state = State.READ_CHUNKED_CONTENT_AS_CHUNKS;
+                return null;
             } else {
-                checkpoint(State.READ_CHUNKED_CONTENT);
+                this.state = State.READ_CHUNKED_CONTENT;
             }
         }
         case READ_CHUNKED_CONTENT: {
             assert chunkSize <= Integer.MAX_VALUE;
-            HttpChunk chunk = new DefaultHttpChunk(buffer.readBytes((int) chunkSize));
-            checkpoint(State.READ_CHUNK_DELIMITER);
+            if (buffer.readableBytes() < chunkSize) {
+                return null;
+            }
+            HttpChunk chunk = new DefaultHttpChunk(readContent(buffer, (int) chunkSize));
+            this.state = State.READ_CHUNK_DELIMITER;
             return chunk;
         }
         case READ_CHUNKED_CONTENT_AS_CHUNKS: {
             long chunkSize = this.chunkSize;
-            HttpChunk chunk;
-            if (chunkSize > maxChunkSize) {
-                chunk = new DefaultHttpChunk(buffer.readBytes(maxChunkSize));
-                chunkSize -= maxChunkSize;
-            } else {
-                assert chunkSize <= Integer.MAX_VALUE;
-                chunk = new DefaultHttpChunk(buffer.readBytes((int) chunkSize));
-                chunkSize = 0;
+            int toRead = (int) Math.min(chunkSize, maxChunkSize);
+            if (buffer.readableBytes() < toRead) {
+                return null;
             }
+            HttpChunk chunk = new DefaultHttpChunk(readContent(buffer, toRead));
+            chunkSize -= toRead;
             this.chunkSize = chunkSize;
 
             if (chunkSize == 0) {
                 // Read all content.
-                checkpoint(State.READ_CHUNK_DELIMITER);
-            }
-
-            if (!chunk.isLast()) {
-                return chunk;
+                this.state = State.READ_CHUNK_DELIMITER;
             }
+            return chunk;
         }
         case READ_CHUNK_DELIMITER: {
-            for (;;) {
-                byte next = buffer.readByte();
-                if (next == HttpCodecUtil.CR) {
-                    if (buffer.readByte() == HttpCodecUtil.LF) {
-                        checkpoint(State.READ_CHUNK_SIZE);
-                        return null;
-                    }
-                } else if (next == HttpCodecUtil.LF) {
-                    checkpoint(State.READ_CHUNK_SIZE);
+            int readerIndex = buffer.readerIndex();
+            int writerIndex = buffer.writerIndex();
+            for (int i = readerIndex; i < writerIndex; i ++) {
+                if (buffer.getByte(i) == HttpCodecUtil.LF) {
+                    buffer.readerIndex(i + 1);
+                    this.state = State.READ_CHUNK_SIZE;
                     return null;
                 }
             }
+            buffer.readerIndex(writerIndex);
+            return null;
         }
         case READ_CHUNK_FOOTER: {
             HttpChunkTrailer trailer = readTrailingHeaders(buffer);
+            if (trailer == null) {
+                return null;
+            }
             if (maxChunkSize == 0) {
                 // Chunked encoding disabled.
                 return reset();
@@ -388,6 +610,19 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
         return false;
     }
 
+    /**
+     * @return the next length bytes, as a slice of the buffer if sliceContent
+     */
+    private ChannelBuffer readContent(ChannelBuffer buffer, int length) {
+        if (sliceContent) {
+            if (buffer == cumulation) {
+                cumulationSliced = true;
+            }
+            return buffer.readSlice(length);
+        }
+        return buffer.readBytes(length);
+    }
+
     private Object reset() {
         HttpMessage message = this.message;
         ChannelBuffer content = this.content;
@@ -398,62 +633,77 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
         }
         this.message = null;
 
-        checkpoint(State.SKIP_CONTROL_CHARS);
+        state = State.SKIP_CONTROL_CHARS;
         return message;
     }
 
-    private void skipControlCharacters(ChannelBuffer buffer) {
-        for (;;) {
-            char c = (char) buffer.readUnsignedByte();
+    /**
+     * @return False if all the readable bytes were control characters
+     */
+    private static boolean skipControlCharacters(ChannelBuffer buffer) {
+        int readerIndex = buffer.readerIndex();
+        int writerIndex = buffer.writerIndex();
+        for (int i = readerIndex; i < writerIndex; i ++) {
+            char c = (char) buffer.getUnsignedByte(i);
             if (!Character.isISOControl(c) &&
                 !Character.isWhitespace(c)) {
-                buffer.readerIndex(buffer.readerIndex() - 1);
-                break;
+                buffer.readerIndex(i);
+                return true;
             }
         }
+        buffer.readerIndex(writerIndex);
+        return false;
     }
 
-    private void readFixedLengthContent(ChannelBuffer buffer) {
-        long length = HttpHeaders.getContentLength(message, -1);
-        assert length <= Integer.MAX_VALUE;
-
-        if (content == null) {
-            content = buffer.readBytes((int) length);
-        } else {
-            content.writeBytes(buffer.readBytes((int) length));
-        }
-    }
-
+    /**
+     * @return the state following the headers, or null if the end of the
+     *         headers was not read yet
+     */
     private State readHeaders(ChannelBuffer buffer) throws TooLongFrameException {
-        headerSize = 0;
         final HttpMessage message = this.message;
-        String line = readHeader(buffer);
-        String name = null;
-        String value = null;
-        if (line.length() != 0) {
-            message.clearHeaders();
-            do {
-                char firstChar = line.charAt(0);
-                if (name != null && (firstChar == ' ' || firstChar == '\t')) {
-                    value = value + ' ' + line.trim();
+        final boolean lazy = lazyHeaders && message instanceof DefaultHttpMessage;
+        for (;;) {
+            if (!readHeader(buffer)) {
+                return null;
+            }
+            if (lineStart == lineEnd) {
+                break;
+            }
+            byte firstChar = lineBuffer.getByte(lineStart);
+            if (lazy) {
+                if (rawCount > 0 && (firstChar == HttpCodecUtil.SP || firstChar == HttpCodecUtil.HT)) {
+                    appendRawValue(lineBuffer, lineStart, lineEnd);
                 } else {
-                    if (name != null) {
-                        message.addHeader(name, value);
-                    }
-                    String[] header = splitHeader(line);
-                    name = header[0];
-                    value = header[1];
+                    appendRawHeader(lineBuffer, lineStart, lineEnd);
                 }
-
-                line = readHeader(buffer);
-            } while (line.length() != 0);
-
-            // Add the last header.
-            if (name != null) {
-                message.addHeader(name, value);
+            } else if (name != null && (firstChar == HttpCodecUtil.SP || firstChar == HttpCodecUtil.HT)) {
+                value = value + ' ' + trim(lineBuffer, lineStart, lineEnd);
+            } else {
+                if (name != null) {
+                    message.addHeader(name, value);
+                } else {
+                    message.clearHeaders();
+                }
+                splitHeader(lineBuffer, lineStart, lineEnd);
             }
         }
 
+        // Add the last header.
+        if (name != null) {
+            message.addHeader(name, value);
+            name = null;
+            value = null;
+        }
+        if (rawCount > 0) {
+            rawHeaders.writeByte(HttpCodecUtil.CR);
+            rawHeaders.writeByte(HttpCodecUtil.LF);
+            ((DefaultHttpMessage) message).setRawHeaders(rawHeaders, rawIndex, rawCount);
+            rawHeaders = null;
+            rawIndex = null;
+            rawCount = 0;
+        }
+        headerSize = 0;
+
         State nextState;
 
         if (isContentAlwaysEmpty(message)) {
@@ -469,124 +719,151 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
         } else if (HttpHeaders.getContentLength(message, -1) >= 0) {
             nextState = State.READ_FIXED_LENGTH_CONTENT;
         } else {
-            nextState = State.READ_VARIABLE_LENGTH_CONTENT;
+            nextState = State.READ_VARIABLE_LENGTH_CONTENT_AS_CHUNKS;
         }
         return nextState;
     }
 
+    /**
+     * @return the trailing headers, or null if the end of the trailing
+     *         headers was not read yet
+     */
     private HttpChunkTrailer readTrailingHeaders(ChannelBuffer buffer) throws TooLongFrameException {
-        headerSize = 0;
-        String line = readHeader(buffer);
-        String lastHeader = null;
-        if (line.length() != 0) {
-            HttpChunkTrailer trailer = new DefaultHttpChunkTrailer();
-            do {
-                char firstChar = line.charAt(0);
-                if (lastHeader != null && (firstChar == ' ' || firstChar == '\t')) {
-                    List<String> current = trailer.getHeaders(lastHeader);
-                    if (current.size() != 0) {
-                        int lastPos = current.size() - 1;
-                        String newString = current.get(lastPos) + line.trim();
-                        current.set(lastPos, newString);
-                    } else {
-                        // Content-Length, Transfer-Encoding, or Trailer
-                    }
-                } else {
-                    String[] header = splitHeader(line);
-                    String name = header[0];
-                    if (!name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH) &&
-                        !name.equalsIgnoreCase(HttpHeaders.Names.TRANSFER_ENCODING) &&
-                        !name.equalsIgnoreCase(HttpHeaders.Names.TRAILER)) {
-                        trailer.addHeader(name, header[1]);
-                    }
-                    lastHeader = name;
+        for (;;) {
+            if (!readHeader(buffer)) {
+                return null;
+            }
+            if (lineStart == lineEnd) {
+                break;
+            }
+            if (trailer == null) {
+                trailer = new DefaultHttpChunkTrailer();
+            }
+            byte firstChar = lineBuffer.getByte(lineStart);
+            if (name != null && (firstChar == HttpCodecUtil.SP || firstChar == HttpCodecUtil.HT)) {
+                value = value + ' ' + trim(lineBuffer, lineStart, lineEnd);
+            } else {
+                if (name != null) {
+                    addTrailingHeader(trailer, name, value);
                 }
+                splitHeader(lineBuffer, lineStart, lineEnd);
+            }
+        }
 
-                line = readHeader(buffer);
-            } while (line.length() != 0);
-
-            return trailer;
+        HttpChunkTrailer trailer = this.trailer;
+        if (name != null) {
+            addTrailingHeader(trailer, name, value);
+            name = null;
+            value = null;
         }
+        this.trailer = null;
+        headerSize = 0;
 
-        return HttpChunk.LAST_CHUNK;
+        return trailer == null? HttpChunk.LAST_CHUNK : trailer;
     }
 
-    private String readHeader(ChannelBuffer buffer) throws TooLongFrameException {
-        StringBuilder sb = new StringBuilder(64);
-        int headerSize = this.headerSize;
-
-        loop:
-        for (;;) {
-            char nextByte = (char) buffer.readByte();
-            headerSize ++;
-
-            switch (nextByte) {
-            case HttpCodecUtil.CR:
-                nextByte = (char) buffer.readByte();
-                headerSize ++;
-                if (nextByte == HttpCodecUtil.LF) {
-                    break loop;
-                }
-                break;
-            case HttpCodecUtil.LF:
-                break loop;
-            }
-
-            // Abort decoding if the header part is too large.
-            if (headerSize >= maxHeaderSize) {
-                throw new TooLongFrameException(
-                        "HTTP header is larger than " +
-                        maxHeaderSize + " bytes.");
+    private static void addTrailingHeader(HttpChunkTrailer trailer,
+            String name, String value) {
+        if (!name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH) &&
+            !name.equalsIgnoreCase(HttpHeaders.Names.TRANSFER_ENCODING) &&
+            !name.equalsIgnoreCase(HttpHeaders.Names.TRAILER)) {
+            trailer.addHeader(name, value);
+        }
+    }
 
-            }
+    /**
+     * @return True if the next header line was read, False if it is not complete yet
+     */
+    private boolean readHeader(ChannelBuffer buffer) throws TooLongFrameException {
+        int readerIndex = buffer.readerIndex();
+        boolean line = readLine(buffer, maxHeaderSize);
+        headerSize += buffer.readerIndex() - readerIndex;
 
-            sb.append(nextByte);
+        // Abort decoding if the header part is too large.
+        if (headerSize > maxHeaderSize) {
+            throw new TooLongFrameException(
+                    "HTTP header is larger than " +
+                    maxHeaderSize + " bytes.");
         }
-
-        this.headerSize = headerSize;
-        return sb.toString();
+        return line;
     }
 
     protected abstract boolean isDecodingRequest();
     protected abstract HttpMessage createMessage(String[] initialLine) throws Exception;
 
-    private int getChunkSize(String hex) {
-        hex = hex.trim();
-        for (int i = 0; i < hex.length(); i ++) {
-            char c = hex.charAt(i);
-            if (c == ';' || Character.isWhitespace(c) || Character.isISOControl(c)) {
-                hex = hex.substring(0, i);
+    private static int getChunkSize(ChannelBuffer buffer, int start, int end) {
+        start = findNonWhitespace(buffer, start, end);
+        int chunkSize = 0;
+        int i;
+        for (i = start; i < end; i ++) {
+            byte c = buffer.getByte(i);
+            if (c == HttpCodecUtil.SEMICOLON || isWhitespace(c) || Character.isISOControl(c)) {
                 break;
             }
+            int digit = Character.digit(c, 16);
+            if (digit < 0 || chunkSize > Integer.MAX_VALUE >>> 4) {
+                throw new NumberFormatException(
+                        "Invalid chunk size: " + buffer.toString(start, end - start, CharsetUtil.ISO_8859_1));
+            }
+            chunkSize = chunkSize << 4 | digit;
         }
-
-        return Integer.parseInt(hex, 16);
+        if (i == start) {
+            throw new NumberFormatException("Missing chunk size");
+        }
+        return chunkSize;
     }
 
-    private String readLine(ChannelBuffer buffer, int maxLineLength) throws TooLongFrameException {
-        StringBuilder sb = new StringBuilder(64);
-        int lineLength = 0;
-        while (true) {
-            byte nextByte = buffer.readByte();
-            if (nextByte == HttpCodecUtil.CR) {
-                nextByte = buffer.readByte();
-                if (nextByte == HttpCodecUtil.LF) {
-                    return sb.toString();
-                }
-            }
-            else if (nextByte == HttpCodecUtil.LF) {
-                return sb.toString();
+    /**
+     * Reads the readable bytes up to the end of the current line. The bytes of an
+     * incomplete line are kept until the next call, so that each byte is read once.
+     * The line is then given by lineBuffer, lineStart and lineEnd, valid until the
+     * next call.
+     *
+     * @return True if the line is complete, False if it is not complete yet
+     */
+    private boolean readLine(ChannelBuffer buffer, int maxLineLength) throws TooLongFrameException {
+        ChannelBuffer partialLine = this.partialLine;
+        int partialLength = partialLine == null? 0 : partialLine.readableBytes();
+        int length = buffer.bytesBefore(HttpCodecUtil.LF);
+        if (length < 0) {
+            // Keep the partial line (and its CR) for the next call.
+            if (partialLength + buffer.readableBytes() > maxLineLength + 1) {
+                throw new TooLongFrameException(
+                        "An HTTP line is larger than " + maxLineLength +
+                        " bytes.");
             }
-            else {
-                if (lineLength >= maxLineLength) {
-                    throw new TooLongFrameException(
-                            "An HTTP line is larger than " + maxLineLength +
-                            " bytes.");
-                }
-                lineLength ++;
-                sb.append((char) nextByte);
+            if (partialLine == null) {
+                partialLine = this.partialLine = ChannelBuffers.dynamicBuffer(64);
             }
+            partialLine.writeBytes(buffer);
+            return false;
+        }
+
+        if (partialLength == 0) {
+            // The whole line is in the buffer: read it in place.
+            int readerIndex = buffer.readerIndex();
+            lineBuffer = buffer;
+            lineStart = readerIndex;
+            lineEnd = readerIndex + length;
+            buffer.readerIndex(lineEnd + 1);
+        } else {
+            partialLine.writeBytes(buffer, length);
+            buffer.skipBytes(1);
+            lineBuffer = partialLine;
+            lineStart = partialLine.readerIndex();
+            lineEnd = partialLine.writerIndex();
+            // The bytes stay valid until the next write.
+            partialLine.clear();
+        }
+        if (lineEnd > lineStart && lineBuffer.getByte(lineEnd - 1) == HttpCodecUtil.CR) {
+            lineEnd --;
         }
+        if (lineEnd - lineStart > maxLineLength) {
+            throw new TooLongFrameException(
+                    "An HTTP line is larger than " + maxLineLength +
+                    " bytes.");
+        }
+        return true;
     }
 
     private String[] splitInitialLine(String sb) {
@@ -612,42 +889,181 @@ public abstract class HttpMessageDecoder extends ReplayingDecoder<HttpMessageDec
                 cStart < cEnd? sb.substring(cStart, cEnd) : "" };
     }
 
-    private String[] splitHeader(String sb) {
-        final int length = sb.length();
+    /**
+     * Sets headerBounds to the bounds of the name and of the value of the header
+     * read between start and end
+     */
+    private void findHeaderBounds(ChannelBuffer buffer, int start, int end) {
         int nameStart;
         int nameEnd;
         int colonEnd;
         int valueStart;
-        int valueEnd;
 
-        nameStart = findNonWhitespace(sb, 0);
-        for (nameEnd = nameStart; nameEnd < length; nameEnd ++) {
-            char ch = sb.charAt(nameEnd);
-            if (ch == ':' || Character.isWhitespace(ch)) {
+        nameStart = findNonWhitespace(buffer, start, end);
+        for (nameEnd = nameStart; nameEnd < end; nameEnd ++) {
+            byte b = buffer.getByte(nameEnd);
+            if (b == HttpCodecUtil.COLON || isWhitespace(b)) {
                 break;
             }
         }
 
-        for (colonEnd = nameEnd; colonEnd < length; colonEnd ++) {
-            if (sb.charAt(colonEnd) == ':') {
-                colonEnd ++;
+        int colon = buffer.bytesBefore(nameEnd, end - nameEnd, HttpCodecUtil.COLON);
+        colonEnd = colon < 0? end : nameEnd + colon + 1;
+
+        valueStart = findNonWhitespace(buffer, colonEnd, end);
+        int[] bounds = headerBounds;
+        bounds[0] = nameStart;
+        bounds[1] = nameEnd;
+        bounds[2] = valueStart;
+        bounds[3] = findEndOfString(buffer, valueStart, end);
+    }
+
+    /**
+     * Sets name and value to the header read between start and end, the name being
+     * the shared instance of a well-known header name if possible
+     */
+    private void splitHeader(ChannelBuffer buffer, int start, int end) {
+        findHeaderBounds(buffer, start, end);
+        int[] bounds = headerBounds;
+        name = HttpHeaderNameTable.lookup(buffer, bounds[0], bounds[1] - bounds[0]);
+        if (name == null) {
+            name = toString(buffer, bounds[0], bounds[1]);
+        }
+        value = toString(buffer, bounds[2], bounds[3]);
+    }
+
+    /**
+     * Appends the header read between start and end to the raw header block
+     */
+    private void appendRawHeader(ChannelBuffer buffer, int start, int end) {
+        findHeaderBounds(buffer, start, end);
+        int[] bounds = headerBounds;
+        validateHeaderName(buffer, bounds[0], bounds[1]);
+        validateHeaderValue(buffer, bounds[2], bounds[3]);
+
+        ChannelBuffer raw = rawHeaders;
+        if (raw == null) {
+            raw = rawHeaders = ChannelBuffers.dynamicBuffer(256);
+            rawIndex = new int[3 * 16];
+        } else if (rawCount > 0) {
+            raw.writeByte(HttpCodecUtil.CR);
+            raw.writeByte(HttpCodecUtil.LF);
+        }
+        if (rawIndex.length < 3 * (rawCount + 1)) {
+            int[] newIndex = new int[rawIndex.length << 1];
+            System.arraycopy(rawIndex, 0, newIndex, 0, rawIndex.length);
+            rawIndex = newIndex;
+        }
+        int i = 3 * rawCount ++;
+        rawIndex[i] = raw.writerIndex();
+        raw.writeBytes(buffer, bounds[0], bounds[1] - bounds[0]);
+        rawIndex[i + 1] = raw.writerIndex();
+        raw.writeByte(HttpCodecUtil.COLON);
+        raw.writeByte(HttpCodecUtil.SP);
+        raw.writeBytes(buffer, bounds[2], bounds[3] - bounds[2]);
+        rawIndex[i + 2] = raw.writerIndex();
+    }
+
+    /**
+     * Appends the continuation line read between start and end to the value of
+     * the last raw header
+     */
+    private void appendRawValue(ChannelBuffer buffer, int start, int end) {
+        start = findNonWhitespace(buffer, start, end);
+        end = findEndOfString(buffer, start, end);
+        validateHeaderValue(buffer, start, end);
+        ChannelBuffer raw = rawHeaders;
+        raw.writeByte(HttpCodecUtil.SP);
+        raw.writeBytes(buffer, start, end - start);
+        rawIndex[3 * rawCount - 1] = raw.writerIndex();
+    }
+
+    /**
+     * Checks the name read between start and end as
+     * {@link HttpCodecUtil#validateHeaderName(String)} does, without allocating it
+     */
+    private void validateHeaderName(ChannelBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i ++) {
+            switch (buffer.getByte(i)) {
+            case '\t': case '\n': case 0x0b: case '\f': case '\r':
+            case ' ':  case ',':  case ':':  case ';':  case '=':
+                HttpCodecUtil.validateHeaderName(toString(buffer, start, end));
                 break;
+            default:
+                if (buffer.getByte(i) < 0) {
+                    // non-ascii character
+                    HttpCodecUtil.validateHeaderName(toString(buffer, start, end));
+                }
             }
         }
+    }
 
-        valueStart = findNonWhitespace(sb, colonEnd);
-        if (valueStart == length) {
-            return new String[] {
-                    sb.substring(nameStart, nameEnd),
-                    ""
-            };
+    /**
+     * Checks the value read between start and end as
+     * {@link HttpCodecUtil#validateHeaderValue(String)} does, without allocating it.
+     * Since the value comes from one line, any CR or LF left in it is prohibited.
+     */
+    private void validateHeaderValue(ChannelBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i ++) {
+            switch (buffer.getByte(i)) {
+            case '\n': case 0x0b: case '\f': case '\r':
+                String value = toString(buffer, start, end);
+                HttpCodecUtil.validateHeaderValue(value);
+                throw new IllegalArgumentException(
+                        "value contains a prohibited character '\\r' or '\\n': " + value);
+            }
         }
+    }
 
-        valueEnd = findEndOfString(sb);
-        return new String[] {
-                sb.substring(nameStart, nameEnd),
-                sb.substring(valueStart, valueEnd)
-        };
+    /**
+     * @return the String of the bytes between start and end without the leading
+     *         and trailing whitespaces
+     */
+    private String trim(ChannelBuffer buffer, int start, int end) {
+        start = findNonWhitespace(buffer, start, end);
+        return toString(buffer, start, findEndOfString(buffer, start, end));
+    }
+
+    /**
+     * @return the String of the bytes between start and end, allocated once
+     */
+    private String toString(ChannelBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return "";
+        }
+        char[] chars = this.chars;
+        if (chars.length < length) {
+            chars = this.chars = new char[Math.max(length, chars.length << 1)];
+        }
+        for (int i = 0; i < length; i ++) {
+            chars[i] = (char) (buffer.getByte(start + i) & 0xFF);
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return Character.isWhitespace((char) (b & 0xFF));
+    }
+
+    private static int findNonWhitespace(ChannelBuffer buffer, int start, int end) {
+        int result;
+        for (result = start; result < end; result ++) {
+            if (!isWhitespace(buffer.getByte(result))) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static int findEndOfString(ChannelBuffer buffer, int start, int end) {
+        int result;
+        for (result = end; result > start; result --) {
+            if (!isWhitespace(buffer.getByte(result - 1))) {
+                break;
+            }
+        }
+        return result;
     }
 
     private int findNonWhitespace(String sb, int offset) {
@@ -18,10 +18,10 @@ package org.jboss.netty.handler.codec.http2;
 import static org.jboss.netty.buffer.ChannelBuffers.*;
 import static org.jboss.netty.handler.codec.http2.HttpCodecUtil.*;
 
-import java.io.UnsupportedEncodingException;
 import java.util.Map;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -41,6 +41,20 @@ import org.jboss.netty.util.CharsetUtil;
  * To implement the encoder of such a derived protocol, extend this class and
  * implement all abstract methods properly.
  *
+ * <h3>Encoding</h3>
+ *
+ * The well-known header names, the methods, the versions and the statuses are
+ * written from their bytes encoded once, and the other Strings are written in one
+ * pass, one byte per char, directly into the buffer.
+ * <p>
+ * The buffer of the initial line and the headers is allocated once, with the
+ * size of the encoded headers kept up to date by the message.  It is taken
+ * from the buffer factory of the channel, or from the one given to the
+ * constructor: for instance, the buffers of a
+ * {@link org.jboss.netty.buffer.DirectChannelBufferFactory} are slices of
+ * preallocated direct buffers, written to the socket without being copied
+ * first into a temporary direct buffer.
+ *
  * @author <a href="http://www.jboss.org/netty/">The Netty Project</a>
  * @author Andy Taylor (andy.taylor@jboss.org)
  * @author <a href="http://gleamynode.net/">Trustin Lee</a>
@@ -53,13 +67,32 @@ public abstract class HttpMessageEncoder extends OneToOneEncoder {
     private static final ChannelBuffer LAST_CHUNK =
         copiedBuffer("0\r\n\r\n", CharsetUtil.US_ASCII);
 
+    /**
+     * The estimated size of the headers of a message which does not keep it
+     */
+    private static final int DEFAULT_HEADERS_SIZE = 256;
+
+    private final ChannelBufferFactory headerBufferFactory;
+
     private volatile boolean chunked;
 
     /**
      * Creates a new instance.
      */
     protected HttpMessageEncoder() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param headerBufferFactory the factory of the buffers of the initial
+     *        lines and headers, or {@code null} to use the buffer factory of
+     *        the channel
+     */
+    protected HttpMessageEncoder(ChannelBufferFactory headerBufferFactory) {
         super();
+        this.headerBufferFactory = headerBufferFactory;
     }
 
     @Override
@@ -67,10 +100,21 @@ public abstract class HttpMessageEncoder extends OneToOneEncoder {
         if (msg instanceof HttpMessage) {
             HttpMessage m = (HttpMessage) msg;
             boolean chunked = this.chunked = HttpCodecUtil.isTransferEncodingChunked(m);
+            ChannelBuffer rawHeaders = m instanceof DefaultHttpMessage?
+                    ((DefaultHttpMessage) m).getRawHeaders() : null;
+            int headersSize = m instanceof DefaultHttpMessage?
+                    ((DefaultHttpMessage) m).getEncodedHeadersSize() : DEFAULT_HEADERS_SIZE;
+            // Only grows if encodeInitialLine writes more than estimated
             ChannelBuffer header = ChannelBuffers.dynamicBuffer(
-                    channel.getConfig().getBufferFactory());
+                    estimateInitialLineSize(m) + headersSize + 2,
+                    getHeaderBufferFactory(channel));
             encodeInitialLine(header, m);
-            encodeHeaders(header, m);
+            if (rawHeaders != null) {
+                // Headers left untouched since they were decoded
+                header.writeBytes(rawHeaders, rawHeaders.readerIndex(), rawHeaders.readableBytes());
+            } else {
+                encodeHeaders(header, m);
+            }
             header.writeByte(CR);
             header.writeByte(LF);
 
@@ -92,8 +136,11 @@ public abstract class HttpMessageEncoder extends OneToOneEncoder {
                 if (chunk.isLast()) {
                     chunked = false;
                     if (chunk instanceof HttpChunkTrailer) {
+                        int headersSize = chunk instanceof DefaultHttpChunkTrailer?
+                                ((DefaultHttpChunkTrailer) chunk).getEncodedHeadersSize()
+                                : DEFAULT_HEADERS_SIZE;
                         ChannelBuffer trailer = ChannelBuffers.dynamicBuffer(
-                                channel.getConfig().getBufferFactory());
+                                headersSize + 5, getHeaderBufferFactory(channel));
                         trailer.writeByte((byte) '0');
                         trailer.writeByte(CR);
                         trailer.writeByte(LF);
@@ -130,35 +177,54 @@ public abstract class HttpMessageEncoder extends OneToOneEncoder {
         return msg;
     }
 
-    private void encodeHeaders(ChannelBuffer buf, HttpMessage message) {
-        try {
+    private ChannelBufferFactory getHeaderBufferFactory(Channel channel) {
+        ChannelBufferFactory factory = headerBufferFactory;
+        return factory != null? factory : channel.getConfig().getBufferFactory();
+    }
+
+    private static void encodeHeaders(ChannelBuffer buf, HttpMessage message) {
+        if (message instanceof DefaultHttpMessage) {
+            // Without allocating the list of the headers
+            DefaultHttpMessage m = (DefaultHttpMessage) message;
+            int count = m.getHeaderCount();
+            for (int i = 0; i < count; i ++) {
+                encodeHeader(buf, m.getHeaderName(i), m.getHeaderValue(i));
+            }
+        } else {
             for (Map.Entry<String, String> h: message.getHeaders()) {
                 encodeHeader(buf, h.getKey(), h.getValue());
             }
-        } catch (UnsupportedEncodingException e) {
-            throw (Error) new Error().initCause(e);
         }
     }
 
-    private void encodeTrailingHeaders(ChannelBuffer buf, HttpChunkTrailer trailer) {
-        try {
-            for (Map.Entry<String, String> h: trailer.getHeaders()) {
-                encodeHeader(buf, h.getKey(), h.getValue());
-            }
-        } catch (UnsupportedEncodingException e) {
-            throw (Error) new Error().initCause(e);
+    private static void encodeTrailingHeaders(ChannelBuffer buf, HttpChunkTrailer trailer) {
+        for (Map.Entry<String, String> h: trailer.getHeaders()) {
+            encodeHeader(buf, h.getKey(), h.getValue());
         }
     }
 
-    private void encodeHeader(ChannelBuffer buf, String header, String value)
-            throws UnsupportedEncodingException {
-        buf.writeBytes(header.getBytes("ASCII"));
-        buf.writeByte(COLON);
-        buf.writeByte(SP);
-        buf.writeBytes(value.getBytes("ASCII"));
+    private static void encodeHeader(ChannelBuffer buf, String header, String value) {
+        byte[] name = HttpHeaderNameTable.getEncoded(header);
+        if (name != null) {
+            buf.writeBytes(name);
+        } else {
+            writeAscii(buf, header);
+            buf.writeByte(COLON);
+            buf.writeByte(SP);
+        }
+        writeAscii(buf, value);
         buf.writeByte(CR);
         buf.writeByte(LF);
     }
 
+    /**
+     * Returns the number of bytes that {@link #encodeInitialLine} writes for
+     * the given message, used to size the buffer of the initial line and the
+     * headers.  The default implementation returns 64.
+     */
+    protected int estimateInitialLineSize(HttpMessage message) {
+        return 64;
+    }
+
     protected abstract void encodeInitialLine(ChannelBuffer buf, HttpMessage message) throws Exception;
 }
@@ -121,6 +121,7 @@ public class HttpMethod implements Comparable<HttpMethod> {
     }
 
     private final String name;
+    private final byte[] bytes;
 
     /**
      * Creates a new HTTP method with the specified name.  You will not need to
@@ -147,6 +148,7 @@ public class HttpMethod implements Comparable<HttpMethod> {
         }
 
         this.name = name;
+        bytes = HttpCodecUtil.encodeAscii(name);
     }
 
     /**
@@ -156,6 +158,13 @@ public class HttpMethod implements Comparable<HttpMethod> {
         return name;
     }
 
+    /**
+     * Returns the name of this method encoded once, not to be modified.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
     @Override
     public int hashCode() {
         return getName().hashCode();
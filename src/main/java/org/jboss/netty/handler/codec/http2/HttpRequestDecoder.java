@@ -76,6 +76,32 @@ public class HttpRequestDecoder extends HttpMessageDecoder {
         super(maxInitialLineLength, maxHeaderSize, maxChunkSize);
     }
 
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     */
+    public HttpRequestDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent) {
+        super(maxInitialLineLength, maxHeaderSize, maxChunkSize, sliceContent);
+    }
+
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     * @param lazyHeaders True to parse the headers only when they are needed
+     */
+    public HttpRequestDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent, boolean lazyHeaders) {
+        super(maxInitialLineLength, maxHeaderSize, maxChunkSize, sliceContent,
+                lazyHeaders);
+    }
+
     @Override
     protected HttpMessage createMessage(String[] initialLine) throws Exception{
         return new DefaultHttpRequest(
@@ -18,6 +18,7 @@ package org.jboss.netty.handler.codec.http2;
 import static org.jboss.netty.handler.codec.http2.HttpCodecUtil.*;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 
 /**
  * Encodes an {@link HttpRequest} or an {@link HttpChunk} into
@@ -37,14 +38,32 @@ public class HttpRequestEncoder extends HttpMessageEncoder {
         super();
     }
 
+    /**
+     * Creates a new instance.
+     *
+     * @param headerBufferFactory the factory of the buffers of the request
+     *        lines and headers, such as a {@link org.jboss.netty.buffer.DirectChannelBufferFactory},
+     *        or {@code null} to use the buffer factory of the channel
+     */
+    public HttpRequestEncoder(ChannelBufferFactory headerBufferFactory) {
+        super(headerBufferFactory);
+    }
+
+    @Override
+    protected int estimateInitialLineSize(HttpMessage message) {
+        HttpRequest request = (HttpRequest) message;
+        return request.getMethod().getBytes().length + request.getUri().length() +
+                request.getProtocolVersion().getBytes().length + 4;
+    }
+
     @Override
     protected void encodeInitialLine(ChannelBuffer buf, HttpMessage message) throws Exception {
         HttpRequest request = (HttpRequest) message;
-        buf.writeBytes(request.getMethod().toString().getBytes("ASCII"));
+        buf.writeBytes(request.getMethod().getBytes());
         buf.writeByte(SP);
-        buf.writeBytes(request.getUri().getBytes("ASCII"));
+        writeAscii(buf, request.getUri());
         buf.writeByte(SP);
-        buf.writeBytes(request.getProtocolVersion().toString().getBytes("ASCII"));
+        buf.writeBytes(request.getProtocolVersion().getBytes());
         buf.writeByte(CR);
         buf.writeByte(LF);
     }
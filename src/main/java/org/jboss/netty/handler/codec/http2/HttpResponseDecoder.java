@@ -105,6 +105,32 @@ public class HttpResponseDecoder extends HttpMessageDecoder {
         super(maxInitialLineLength, maxHeaderSize, maxChunkSize);
     }
 
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     */
+    public HttpResponseDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent) {
+        super(maxInitialLineLength, maxHeaderSize, maxChunkSize, sliceContent);
+    }
+
+    /**
+     * Creates a new instance with the specified parameters.
+     *
+     * @param sliceContent True to use slices of the received buffers as content
+     *        instead of copies
+     * @param lazyHeaders True to parse the headers only when they are needed
+     */
+    public HttpResponseDecoder(
+            int maxInitialLineLength, int maxHeaderSize, int maxChunkSize,
+            boolean sliceContent, boolean lazyHeaders) {
+        super(maxInitialLineLength, maxHeaderSize, maxChunkSize, sliceContent,
+                lazyHeaders);
+    }
+
     @Override
     protected HttpMessage createMessage(String[] initialLine) {
         return new DefaultHttpResponse(HttpVersion.valueOf(initialLine[0]), new HttpResponseStatus(Integer.valueOf(initialLine[1]), initialLine[2]));
@@ -18,6 +18,7 @@ package org.jboss.netty.handler.codec.http2;
 import static org.jboss.netty.handler.codec.http2.HttpCodecUtil.*;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 
 /**
  * Encodes an {@link HttpResponse} or an {@link HttpChunk} into
@@ -30,6 +31,42 @@ import org.jboss.netty.buffer.ChannelBuffer;
  */
 public class HttpResponseEncoder extends HttpMessageEncoder {
 
+    /**
+     * The status lines of the standard statuses, by code, for HTTP/1.0 and HTTP/1.1
+     */
+    private static final byte[][] STATUS_LINES_1_0 = new byte[600][];
+    private static final byte[][] STATUS_LINES_1_1 = new byte[600][];
+
+    /**
+     * The standard statuses, by code
+     */
+    private static final HttpResponseStatus[] STATUSES = new HttpResponseStatus[600];
+
+    static {
+        for (int code = 100; code < STATUSES.length; code ++) {
+            HttpResponseStatus status = HttpResponseStatus.valueOf(code);
+            if (status != HttpResponseStatus.valueOf(code)) {
+                // Not a standard status: valueOf creates a new one each time
+                continue;
+            }
+            STATUSES[code] = status;
+            STATUS_LINES_1_0[code] = statusLine(HttpVersion.HTTP_1_0, status);
+            STATUS_LINES_1_1[code] = statusLine(HttpVersion.HTTP_1_1, status);
+        }
+    }
+
+    private static byte[] statusLine(HttpVersion version, HttpResponseStatus status) {
+        byte[] versionBytes = version.getBytes();
+        byte[] statusBytes = status.getBytes();
+        byte[] line = new byte[versionBytes.length + statusBytes.length + 3];
+        System.arraycopy(versionBytes, 0, line, 0, versionBytes.length);
+        line[versionBytes.length] = SP;
+        System.arraycopy(statusBytes, 0, line, versionBytes.length + 1, statusBytes.length);
+        line[line.length - 2] = CR;
+        line[line.length - 1] = LF;
+        return line;
+    }
+
     /**
      * Creates a new instance.
      */
@@ -37,14 +74,44 @@ public class HttpResponseEncoder extends HttpMessageEncoder {
         super();
     }
 
+    /**
+     * Creates a new instance.
+     *
+     * @param headerBufferFactory the factory of the buffers of the status
+     *        lines and headers, such as a {@link org.jboss.netty.buffer.DirectChannelBufferFactory},
+     *        or {@code null} to use the buffer factory of the channel
+     */
+    public HttpResponseEncoder(ChannelBufferFactory headerBufferFactory) {
+        super(headerBufferFactory);
+    }
+
+    @Override
+    protected int estimateInitialLineSize(HttpMessage message) {
+        HttpResponse response = (HttpResponse) message;
+        return response.getProtocolVersion().getBytes().length +
+                response.getStatus().getBytes().length + 3;
+    }
+
     @Override
     protected void encodeInitialLine(ChannelBuffer buf, HttpMessage message) throws Exception {
         HttpResponse response = (HttpResponse) message;
-        buf.writeBytes(response.getProtocolVersion().toString().getBytes("ASCII"));
-        buf.writeByte(SP);
-        buf.writeBytes(String.valueOf(response.getStatus().getCode()).getBytes("ASCII"));
+        HttpVersion version = response.getProtocolVersion();
+        HttpResponseStatus status = response.getStatus();
+        int code = status.getCode();
+        if (code < STATUSES.length && STATUSES[code] == status) {
+            // A standard status line, encoded once
+            if (version == HttpVersion.HTTP_1_1) {
+                buf.writeBytes(STATUS_LINES_1_1[code]);
+                return;
+            }
+            if (version == HttpVersion.HTTP_1_0) {
+                buf.writeBytes(STATUS_LINES_1_0[code]);
+                return;
+            }
+        }
+        buf.writeBytes(version.getBytes());
         buf.writeByte(SP);
-        buf.writeBytes(String.valueOf(response.getStatus().getReasonPhrase()).getBytes("ASCII"));
+        buf.writeBytes(status.getBytes());
         buf.writeByte(CR);
         buf.writeByte(LF);
     }
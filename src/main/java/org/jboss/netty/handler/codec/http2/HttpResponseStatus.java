@@ -413,6 +413,8 @@ public class HttpResponseStatus implements Comparable<HttpResponseStatus> {
 
     private final String reasonPhrase;
 
+    private final byte[] bytes;
+
     /**
      * Creates a new instance with the specified {@code code} and its
      * {@code reasonPhrase}.
@@ -440,6 +442,7 @@ public class HttpResponseStatus implements Comparable<HttpResponseStatus> {
 
         this.code = code;
         this.reasonPhrase = reasonPhrase;
+        bytes = HttpCodecUtil.encodeAscii(toString());
     }
 
     /**
@@ -456,6 +459,14 @@ public class HttpResponseStatus implements Comparable<HttpResponseStatus> {
         return reasonPhrase;
     }
 
+    /**
+     * Returns the code and the reason phrase of this status, as in the status
+     * line, encoded once, not to be modified.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
     @Override
     public int hashCode() {
         return getCode();
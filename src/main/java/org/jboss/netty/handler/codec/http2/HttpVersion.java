@@ -73,6 +73,7 @@ public class HttpVersion implements Comparable<HttpVersion> {
     private final int minorVersion;
     private final String text;
     private final boolean keepAliveDefault;
+    private final byte[] bytes;
 
     /**
      * @deprecated Use {@link #HttpVersion(String, boolean)} instead.
@@ -113,6 +114,7 @@ public class HttpVersion implements Comparable<HttpVersion> {
         minorVersion = Integer.parseInt(m.group(3));
         this.text = protocolName + '/' + majorVersion + '.' + minorVersion;
         this.keepAliveDefault = keepAliveDefault;
+        bytes = HttpCodecUtil.encodeAscii(this.text);
     }
 
     /**
@@ -166,6 +168,7 @@ public class HttpVersion implements Comparable<HttpVersion> {
         this.minorVersion = minorVersion;
         text = protocolName + '/' + majorVersion + '.' + minorVersion;
         this.keepAliveDefault = keepAliveDefault;
+        bytes = HttpCodecUtil.encodeAscii(text);
     }
 
     /**
@@ -196,6 +199,13 @@ public class HttpVersion implements Comparable<HttpVersion> {
         return text;
     }
 
+    /**
+     * Returns the text of this version encoded once, not to be modified.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
     /**
      * Returns {@code true} if and only if the connection is kept alive unless
      * the {@code "Connection"} header is set to {@code "close"} explicitly.
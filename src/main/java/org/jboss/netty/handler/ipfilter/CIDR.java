@@ -22,6 +22,10 @@ import java.net.UnknownHostException;
 import java.util.StringTokenizer;
 
 /**
+ * IPv4 ({@link CIDR4}) or IPv6 ({@link CIDR6}) subnet in CIDR notation.<br>
+ * Both are compared in the 128-bit address space of {@link IpAddresses}, an IPv4 subnet
+ * a.b.c.d/n being the IPv4 mapped subnet ::ffff:a.b.c.d/(96 + n).
+ *
  * @author frederic bregier
  */
 public abstract class CIDR implements Comparable<CIDR> {
@@ -127,6 +131,50 @@ public abstract class CIDR implements Comparable<CIDR> {
         }
         return newCIDR(addr, mask);
     }
+    /**
+     * @return the high 64 bits of the base address, IPv4 being mapped into IPv6
+     */
+    protected abstract long getBaseHigh();
+
+    /**
+     * @return the low 64 bits of the base address, IPv4 being mapped into IPv6
+     */
+    protected abstract long getBaseLow();
+
+    /**
+     * @return the mask length, IPv4 being mapped into IPv6 (96 + the IPv4 mask length)
+     */
+    protected abstract int getMappedMask();
+
+    public int compareTo(CIDR arg) {
+        int res = compare(getBaseHigh(), getBaseLow(), arg.getBaseHigh(), arg
+                .getBaseLow());
+        if (res != 0) {
+            return res;
+        }
+        if (arg.getMappedMask() == getMappedMask()) {
+            return 0;
+        } else if (arg.getMappedMask() < getMappedMask()) {
+            // greater Mask means less IpAddresses so -1
+            return -1;
+        }
+        return 1;
+    }
+
+    /**
+     * Compare two 128 bits unsigned values
+     * @return -1, 0 or 1 as the first value is less than, equal to or greater than the second
+     */
+    private static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return (high1 ^ Long.MIN_VALUE) < (high2 ^ Long.MIN_VALUE)? -1 : 1;
+        }
+        if (low1 != low2) {
+            return (low1 ^ Long.MIN_VALUE) < (low2 ^ Long.MIN_VALUE)? -1 : 1;
+        }
+        return 0;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#equals(java.lang.Object)
      */
@@ -166,6 +214,27 @@ public abstract class CIDR implements Comparable<CIDR> {
      */
     public abstract boolean contains(InetAddress inetAddress);
 
+    /**
+     * Compares the given IPv4 address against the CIDR and returns true if
+     * the ip is in the subnet-ip-range and false if not.
+     * @param ipv4 the IPv4 address as an integer
+     * @return returns true if the given IP address is inside the currently
+     * set network.
+     * @see IpAddresses
+     */
+    public abstract boolean contains(int ipv4);
+
+    /**
+     * Compares the given IPv6 address against the CIDR and returns true if
+     * the ip is in the subnet-ip-range and false if not.
+     * @param high the high 64 bits of the IPv6 address
+     * @param low the low 64 bits of the IPv6 address
+     * @return returns true if the given IP address is inside the currently
+     * set network.
+     * @see IpAddresses
+     */
+    public abstract boolean contains(long high, long low);
+
     /** Convert an IPv4 or IPv6 textual representation into an
      *  InetAddress.
      * @param addr
@@ -174,6 +243,11 @@ public abstract class CIDR implements Comparable<CIDR> {
      */
     private static InetAddress addressStringToInet(String addr)
             throws UnknownHostException {
+        byte[] address = IpAddresses.parse(addr);
+        if (address != null) {
+            // literal: no name resolution
+            return InetAddress.getByAddress(address);
+        }
         return InetAddress.getByName(addr);
     }
 
@@ -225,14 +299,14 @@ public abstract class CIDR implements Comparable<CIDR> {
     public static byte[] getIpV4FromIpV6(Inet6Address address)
             throws IllegalArgumentException {
         byte[] baddr = address.getAddress();
-        for (int i = 0; i < 9; i ++) {
+        for (int i = 0; i < 10; i ++) {
             if (baddr[i] != 0) {
                 throw new IllegalArgumentException(
                         "This IPv6 address cannot be used in IPv4 context");
             }
         }
-        if (baddr[10] != 0 && baddr[10] != 0xFF || baddr[11] != 0 &&
-                baddr[11] != 0xFF) {
+        if (baddr[10] != 0 && baddr[10] != (byte) 0xFF ||
+                baddr[11] != baddr[10]) {
             throw new IllegalArgumentException(
                     "This IPv6 address cannot be used in IPv4 context");
         }
@@ -240,7 +314,8 @@ public abstract class CIDR implements Comparable<CIDR> {
     }
 
     /**
-     * Compute a byte representation of IpV6 from a IpV4
+     * Compute a byte representation of IpV6 from a IpV4, as the IPv4 mapped
+     * address ::ffff:a.b.c.d
      * @param address
      * @return the byte representation
      * @throws IllegalArgumentException if the IpV6 cannot be mapped to IpV4
@@ -248,7 +323,7 @@ public abstract class CIDR implements Comparable<CIDR> {
     public static byte[] getIpV6FromIpV4(Inet4Address address)
             throws IllegalArgumentException {
         byte[] baddr = address.getAddress();
-        return new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, baddr[0],
-                baddr[1], baddr[2], baddr[3] };
+        return new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF,
+                (byte) 0xFF, baddr[0], baddr[1], baddr[2], baddr[3] };
     }
 }
@@ -48,7 +48,7 @@ public class CIDR4 extends CIDR {
         } catch (UnknownHostException e) {
             // this should never happen
         }
-        addressEndInt = addressInt + ipv4PrefixLengthToLength(cidrMask) - 1;
+        addressEndInt = addressInt | ~newmask;
     }
 
     @Override
@@ -61,35 +61,19 @@ public class CIDR4 extends CIDR {
         }
     }
 
-    public int compareTo(CIDR arg) {
-        if (arg instanceof CIDR6) {
-            byte[] address = getIpV4FromIpV6((Inet6Address) arg.baseAddress);
-            int net = ipv4AddressToInt(address);
-            if (net == addressInt && arg.cidrMask == cidrMask) {
-                return 0;
-            }
-            if (net < addressInt) {
-                return 1;
-            } else if (net > addressInt) {
-                return -1;
-            } else if (arg.cidrMask < cidrMask) {
-                return -1;
-            }
-            return 1;
-        }
-        CIDR4 o = (CIDR4) arg;
-        if (o.addressInt == addressInt && o.cidrMask == cidrMask) {
-            return 0;
-        }
-        if (o.addressInt < addressInt) {
-            return 1;
-        } else if (o.addressInt > addressInt) {
-            return -1;
-        } else if (o.cidrMask < cidrMask) {
-            // greater Mask means less IpAddresses so -1
-            return -1;
-        }
-        return 1;
+    @Override
+    protected long getBaseHigh() {
+        return 0;
+    }
+
+    @Override
+    protected long getBaseLow() {
+        return IpAddresses.mappedLow(addressInt);
+    }
+
+    @Override
+    protected int getMappedMask() {
+        return IpAddresses.IPV4_MAPPED_PREFIX_LENGTH + cidrMask;
     }
 
     /* (non-Javadoc)
@@ -97,20 +81,33 @@ public class CIDR4 extends CIDR {
      */
     @Override
     public boolean contains(InetAddress inetAddress) {
-        int search = ipv4AddressToInt(inetAddress);
-        return search >= addressInt && search <= addressEndInt;
+        byte[] address = IpAddresses.normalize(inetAddress.getAddress());
+        if (address.length != 4) {
+            // not an IPv4 nor an IPv4 mapped address
+            return false;
+        }
+        return contains(IpAddresses.toInt(address));
     }
 
-    /** Given an IPv4 baseAddress length, return the block length.  I.e., a
-     *  baseAddress length of 24 will return 256. */
-    private static int ipv4PrefixLengthToLength(int prefix_length) {
-        return 1 << 32 - prefix_length;
+    @Override
+    public boolean contains(int search) {
+        // unsigned comparison
+        return (search ^ Integer.MIN_VALUE) >= (addressInt ^ Integer.MIN_VALUE) &&
+                (search ^ Integer.MIN_VALUE) <= (addressEndInt ^ Integer.MIN_VALUE);
+    }
+
+    @Override
+    public boolean contains(long high, long low) {
+        return IpAddresses.isIpV4Mapped(high, low) && contains((int) low);
     }
 
     /** Given a baseAddress length, return a netmask.  I.e, a baseAddress length
      *  of 24 will return 0xFFFFFF00. */
     private static int ipv4PrefixLengthToMask(int prefix_length) {
-        return ~((1 << 32 - prefix_length) - 1);
+        if (prefix_length == 0) {
+            return 0;
+        }
+        return -1 << 32 - prefix_length;
     }
 
     /** Convert an integer into an (IPv4) InetAddress.
@@ -15,8 +15,6 @@
  */
 package org.jboss.netty.handler.ipfilter;
 
-import java.math.BigInteger;
-import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -25,6 +23,11 @@ import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
 /**
+ * IPv6 implementation of {@link CIDR}.<br>
+ * The base and end addresses are kept as two longs (high and low 64 bits), so that
+ * the check of an address only uses mask operations and allocates nothing.<br>
+ * An IPv4 address is checked as its IPv4 mapped form ::ffff:a.b.c.d.
+ *
  * @author frederic bregier
  */
 public class CIDR6 extends CIDR {
@@ -33,14 +36,24 @@ public class CIDR6 extends CIDR {
             .getInstance(CIDR6.class);
 
     /**
-     * The big integer for the base address
+     * The high 64 bits of the base address
+     */
+    private final long addressHigh;
+
+    /**
+     * The low 64 bits of the base address
+     */
+    private final long addressLow;
+
+    /**
+     * The high 64 bits of the mask
      */
-    private BigInteger addressBigInt;
+    private final long maskHigh;
 
     /**
-     * The big integer for the end address
+     * The low 64 bits of the mask
      */
-    private final BigInteger addressEndBigInt;
+    private final long maskLow;
 
     /**
      * @param newaddress
@@ -48,55 +61,42 @@ public class CIDR6 extends CIDR {
      */
     protected CIDR6(Inet6Address newaddress, int newmask) {
         cidrMask = newmask;
-        addressBigInt = ipv6AddressToBigInteger(newaddress);
-        BigInteger mask = ipv6CidrMaskToMask(newmask);
+        byte[] address = newaddress.getAddress();
+        maskHigh = ipv6CidrMaskToMask(newmask);
+        maskLow = ipv6CidrMaskToMask(newmask - 64);
+        addressHigh = IpAddresses.high(address) & maskHigh;
+        addressLow = IpAddresses.low(address) & maskLow;
         try {
-            addressBigInt = addressBigInt.and(mask);
-            baseAddress = bigIntToIPv6Address(addressBigInt);
+            baseAddress = longsToIPv6Address(addressHigh, addressLow);
         } catch (UnknownHostException e) {
             // this should never happen.
         }
-        addressEndBigInt = addressBigInt.add(
-                ipv6CidrMaskToBaseAddress(cidrMask)).subtract(BigInteger.ONE);
     }
 
     @Override
     public InetAddress getEndAddress() {
         try {
-            return bigIntToIPv6Address(addressEndBigInt);
+            return longsToIPv6Address(addressHigh | ~maskHigh, addressLow |
+                    ~maskLow);
         } catch (UnknownHostException e) {
             logger.error("invalid ip address calculated as an end address");
             return null;
         }
     }
 
-    public int compareTo(CIDR arg) {
-        if (arg instanceof CIDR4) {
-            BigInteger net = ipv6AddressToBigInteger(arg.baseAddress);
-            int res = net.compareTo(addressBigInt);
-            if (res == 0) {
-                if (arg.cidrMask == cidrMask) {
-                    return 0;
-                } else if (arg.cidrMask < cidrMask) {
-                    return -1;
-                }
-                return 1;
-            }
-            return res;
-        }
-        CIDR6 o = (CIDR6) arg;
-        if (o.addressBigInt.equals(addressBigInt) && o.cidrMask == cidrMask) {
-            return 0;
-        }
-        int res = o.addressBigInt.compareTo(addressBigInt);
-        if (res == 0) {
-            if (o.cidrMask < cidrMask) {
-                // greater Mask means less IpAddresses so -1
-                return -1;
-            }
-            return 1;
-        }
-        return res;
+    @Override
+    protected long getBaseHigh() {
+        return addressHigh;
+    }
+
+    @Override
+    protected long getBaseLow() {
+        return addressLow;
+    }
+
+    @Override
+    protected int getMappedMask() {
+        return cidrMask;
     }
 
     /* (non-Javadoc)
@@ -104,70 +104,49 @@ public class CIDR6 extends CIDR {
      */
     @Override
     public boolean contains(InetAddress inetAddress) {
-        BigInteger search = ipv6AddressToBigInteger(inetAddress);
-        return search.compareTo(addressBigInt) >= 0 &&
-                search.compareTo(addressEndBigInt) <= 0;
+        byte[] address = inetAddress.getAddress();
+        if (address.length == 4) {
+            // As ::ffff:a.b.c.d
+            return contains(IpAddresses.toInt(address));
+        }
+        return contains(IpAddresses.high(address), IpAddresses.low(address));
     }
 
-    /** Given an IPv6 baseAddress length, return the block length.  I.e., a
-     *  baseAddress length of 96 will return 2**32. */
-    private static BigInteger ipv6CidrMaskToBaseAddress(int cidrMask) {
-        return BigInteger.ONE.shiftLeft(128 - cidrMask);
+    @Override
+    public boolean contains(int ipv4) {
+        // As ::ffff:a.b.c.d
+        return contains(0, IpAddresses.mappedLow(ipv4));
     }
 
-    private static BigInteger ipv6CidrMaskToMask(int cidrMask) {
-        return BigInteger.ONE.shiftLeft(128 - cidrMask)
-                .subtract(BigInteger.ONE).not();
+    @Override
+    public boolean contains(long high, long low) {
+        return (high & maskHigh) == addressHigh && (low & maskLow) == addressLow;
     }
 
-    /** Given an IPv6 address, convert it into a BigInteger.
-     * @param addr
-     * @return the integer representation of the InetAddress
-     *
-     *  @throws IllegalArgumentException if the address is not an IPv6
-     *  address.
-     */
-    private static BigInteger ipv6AddressToBigInteger(InetAddress addr) {
-        byte[] ipv6;
-        if (addr instanceof Inet4Address) {
-            ipv6 = getIpV6FromIpV4((Inet4Address) addr);
-        } else {
-            ipv6 = addr.getAddress();
+    /** Given a mask length (relative to a 64 bits half of an IPv6 address), return
+     *  the mask of this half.  I.e., a mask length of 16 will return 0xFFFF000000000000. */
+    private static long ipv6CidrMaskToMask(int cidrMask) {
+        if (cidrMask <= 0) {
+            return 0;
         }
-        if (ipv6[0] == -1) {
-            return new BigInteger(1, ipv6);
+        if (cidrMask >= 64) {
+            return -1L;
         }
-        return new BigInteger(ipv6);
+        return -1L << 64 - cidrMask;
     }
 
-    /** Convert a big integer into an IPv6 address.
-    * @param addr
-    * @return the inetAddress from the integer
-    *
-    *  @throws UnknownHostException if the big integer is too large,
-    *  and thus an invalid IPv6 address.
+    /** Convert two longs into an IPv6 address.
+    * @param high
+    * @param low
+    * @return the inetAddress from the longs
+    * @throws UnknownHostException
     */
-    private static InetAddress bigIntToIPv6Address(BigInteger addr)
+    private static InetAddress longsToIPv6Address(long high, long low)
             throws UnknownHostException {
         byte[] a = new byte[16];
-        byte[] b = addr.toByteArray();
-        if (b.length > 16 && !(b.length == 17 && b[0] == 0)) {
-            throw new UnknownHostException("invalid IPv6 address (too big)");
-        }
-        if (b.length == 16) {
-            return InetAddress.getByAddress(b);
-        }
-        // handle the case where the IPv6 address starts with "FF".
-        if (b.length == 17) {
-            System.arraycopy(b, 1, a, 0, 16);
-        } else {
-            // copy the address into a 16 byte array, zero-filled.
-            int p = 16 - b.length;
-            System.arraycopy(b, 0, a, p, b.length);
-            /* equivalent to
-             for (int i = 0; i < b.length; i ++) {
-                a[p + i] = b[i];
-            }*/
+        for (int i = 0; i < 8; i ++) {
+            a[i] = (byte) (high >>> 56 - (i << 3));
+            a[i + 8] = (byte) (low >>> 56 - (i << 3));
         }
         return InetAddress.getByAddress(a);
     }
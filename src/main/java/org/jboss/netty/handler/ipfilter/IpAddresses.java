@@ -0,0 +1,251 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetAddress;
+
+/**
+ * Utility class to get the primitive form of an IP address, as used by {@link IpRawSet}:<br>
+ * <ul>
+ * <li>an IPv4 address is an integer, the first byte being the most significant one,</li>
+ * <li>an IPv6 address is two longs, the high 64 bits then the low 64 bits.</li>
+ * </ul>
+ * Both families share one 128-bit address space, where an IPv4 address a.b.c.d is the
+ * IPv4 mapped address ::ffff:a.b.c.d, so that a client seen as 1.2.3.4 or as
+ * ::ffff:1.2.3.4 by a dual stack listener is the same address.
+ *
+ * @author frederic bregier
+ *
+ */
+public final class IpAddresses {
+    /**
+     * Low 64 bits of the IPv4 mapped prefix ::ffff:0:0/96
+     */
+    private static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+    /**
+     * Length of the IPv4 mapped prefix ::ffff:0:0/96
+     */
+    public static final int IPV4_MAPPED_PREFIX_LENGTH = 96;
+
+    /**
+     * @param address an IPv4 address as 4 bytes
+     * @return the integer representation of the address
+     */
+    public static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 |
+                (address[2] & 0xFF) << 8 | address[3] & 0xFF;
+    }
+
+    /**
+     * @param inetAddress an IPv4 address
+     * @return the integer representation of the address
+     */
+    public static int toInt(InetAddress inetAddress) {
+        return toInt(inetAddress.getAddress());
+    }
+
+    /**
+     * @param address an IPv6 address as 16 bytes
+     * @return the high 64 bits of the address
+     */
+    public static long high(byte[] address) {
+        return toLong(address, 0);
+    }
+
+    /**
+     * @param address an IPv6 address as 16 bytes
+     * @return the low 64 bits of the address
+     */
+    public static long low(byte[] address) {
+        return toLong(address, 8);
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @return True if the address is an IPv4 mapped address (::ffff:a.b.c.d), so
+     *          the same as the IPv4 address (int) low
+     */
+    public static boolean isIpV4Mapped(long high, long low) {
+        return high == 0 && (low & 0xFFFFFFFF00000000L) == IPV4_MAPPED_PREFIX;
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an integer
+     * @return the low 64 bits of the IPv4 mapped address ::ffff:a.b.c.d, the high
+     *          64 bits being 0
+     */
+    public static long mappedLow(int ipv4) {
+        return IPV4_MAPPED_PREFIX | ipv4 & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @param address an IPv4 (4 bytes) or IPv6 (16 bytes) address
+     * @return the IPv4 address as 4 bytes if the address is an IPv4 mapped address,
+     *          else the address itself
+     */
+    public static byte[] normalize(byte[] address) {
+        if (address.length == 16 && isIpV4Mapped(high(address), low(address))) {
+            byte[] ipv4 = new byte[4];
+            System.arraycopy(address, 12, ipv4, 0, 4);
+            return ipv4;
+        }
+        return address;
+    }
+
+    /**
+     * Parse the textual representation of an IPv4 (a.b.c.d) or IPv6 (including the ::
+     * and trailing a.b.c.d notations) address, without any name resolution.
+     * @param addr
+     * @return the address as 4 or 16 bytes, or null if addr is not an IP literal
+     */
+    public static byte[] parse(String addr) {
+        int length = addr.length();
+        if (length > 2 && addr.charAt(0) == '[' &&
+                addr.charAt(length - 1) == ']') {
+            return parseIpV6(addr, 1, length - 1);
+        }
+        if (addr.indexOf(':') >= 0) {
+            return parseIpV6(addr, 0, length);
+        }
+        byte[] address = new byte[4];
+        if (!parseIpV4(addr, 0, length, address, 0)) {
+            return null;
+        }
+        return address;
+    }
+
+    /**
+     * Parse a.b.c.d from addr[start, end[ into address[offset, offset + 4[
+     * @return False if this is not a valid IPv4 literal
+     */
+    private static boolean parseIpV4(String addr, int start, int end,
+            byte[] address, int offset) {
+        int nb = 0;
+        int value = -1;
+        for (int i = start; i < end; i ++) {
+            char c = addr.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value < 0? c - '0' : value * 10 + c - '0';
+                if (value > 255) {
+                    return false;
+                }
+            } else if (c == '.' && value >= 0 && nb < 3) {
+                address[offset + nb ++] = (byte) value;
+                value = -1;
+            } else {
+                return false;
+            }
+        }
+        if (value < 0 || nb != 3) {
+            return false;
+        }
+        address[offset + nb] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Parse an IPv6 literal from addr[start, end[
+     * @return the 16 bytes of the address, or null if this is not a valid IPv6 literal
+     */
+    private static byte[] parseIpV6(String addr, int start, int end) {
+        byte[] address = new byte[16];
+        // position in address of the "::" if any
+        int compressed = -1;
+        int pos = 0;
+        int i = start;
+        if (end - start >= 2 && addr.charAt(i) == ':') {
+            if (addr.charAt(i + 1) != ':') {
+                return null;
+            }
+            compressed = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (pos == 16) {
+                return null;
+            }
+            int groupStart = i;
+            int value = 0;
+            while (i < end && i - groupStart < 5) {
+                int digit = Character.digit(addr.charAt(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                value = value << 4 | digit;
+                i ++;
+            }
+            if (i < end && addr.charAt(i) == '.') {
+                // trailing IPv4
+                if (pos > 12 ||
+                        !parseIpV4(addr, groupStart, end, address, pos)) {
+                    return null;
+                }
+                pos += 4;
+                break;
+            }
+            if (i == groupStart || i - groupStart > 4) {
+                return null;
+            }
+            address[pos ++] = (byte) (value >>> 8);
+            address[pos ++] = (byte) value;
+            if (i == end) {
+                break;
+            }
+            if (addr.charAt(i) != ':' || ++ i == end) {
+                return null;
+            }
+            if (addr.charAt(i) == ':') {
+                if (compressed >= 0) {
+                    return null;
+                }
+                compressed = pos;
+                i ++;
+            }
+        }
+        if (compressed >= 0) {
+            int moved = pos - compressed;
+            if (moved == 16) {
+                return null;
+            }
+            System.arraycopy(address, compressed, address, 16 - moved, moved);
+            for (int j = compressed; j < 16 - moved; j ++) {
+                address[j] = 0;
+            }
+        } else if (pos != 16) {
+            return null;
+        }
+        return address;
+    }
+
+    /**
+     * @param address
+     * @param offset
+     * @return the long made of the 8 bytes from offset
+     */
+    private static long toLong(byte[] address, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i ++) {
+            value = value << 8 | address[offset + i] & 0xFF;
+        }
+        return value;
+    }
+
+    private IpAddresses() {
+        // Unused
+    }
+}
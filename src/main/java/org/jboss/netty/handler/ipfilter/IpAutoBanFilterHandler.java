@@ -0,0 +1,530 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Handler that temporarily bans the addresses reported as abusive (in the way of fail2ban).<br>
+ * <br>
+ * Other handlers (for instance an authentication layer or a decoder that sees bad requests)
+ * report an address through one of the <tt>report</tt> methods. When an address is reported
+ * threshold times within findTime ms, it is banned for banDuration ms: its new connections are
+ * refused, through the <tt>handleRefusedChannel</tt> method that can be overridden.
+ * Addresses can be grouped by prefix (ipv4PrefixLength and ipv6PrefixLength), the whole prefix
+ * being then reported and banned together.<br>
+ * <br>
+ * The expiry of the entries is driven by a timing wheel ticking on the given {@link Timer}:
+ * each entry is in the slot of its expiry time, and at each tick only the entries of the
+ * current slot are checked, so there is neither one timer per entry nor any full scan.
+ * The number of entries is bounded by maxEntries: when it is reached, the reports of new
+ * addresses are ignored (and counted in <tt>getDroppedReports</tt>), while the addresses
+ * already reported or banned are still handled.<br>
+ * <br>
+ * <b>This handler should be created only once and reused on every pipeline since it handles
+ * a global status of what is allowed or blocked.</b> When you shutdown your application,
+ * release the timer by calling <tt>releaseExternalResources()</tt>.
+ *
+ * @author frederic bregier
+ *
+ */
+@Sharable
+public class IpAutoBanFilterHandler extends IpFilteringHandler implements
+        ExternalResourceReleasable {
+    /**
+     * Default delay in ms between two ticks of the timing wheel
+     */
+    public static final long DEFAULT_TICK_DURATION = 1000;
+
+    /**
+     * Number of slots of the timing wheel
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * State of one address or prefix
+     */
+    private static final class Entry {
+        final IpPrefixKey key;
+
+        /**
+         * Number of reports since windowStart
+         */
+        int offenses;
+
+        long windowStart;
+
+        /**
+         * End of the ban, 0 if not banned
+         */
+        volatile long bannedUntil;
+
+        /**
+         * True once removed from the map, so that it is no more updated
+         */
+        boolean removed;
+
+        Entry(IpPrefixKey key) {
+            this.key = key;
+        }
+
+        /**
+         * @param findTime
+         * @return the time after which this entry is useless (under the lock of the entry)
+         */
+        long expiry(long findTime) {
+            return Math.max(bannedUntil, windowStart + findTime);
+        }
+    }
+
+    private final ConcurrentMap<IpPrefixKey, Entry> entries = new ConcurrentHashMap<IpPrefixKey, Entry>();
+
+    /**
+     * Slots of the timing wheel
+     */
+    private final List<Queue<Entry>> wheel = new ArrayList<Queue<Entry>>(
+            WHEEL_SIZE);
+
+    private final Timer timer;
+
+    private final int threshold;
+
+    private final long findTime;
+
+    private final long banDuration;
+
+    private final int maxEntries;
+
+    private final int ipv4PrefixLength;
+
+    private final int ipv6PrefixLength;
+
+    private final long tickDuration;
+
+    /**
+     * Last tick whose slot was processed (only used by the timer thread)
+     */
+    private long lastTick;
+
+    private final AtomicLong bans = new AtomicLong(0);
+
+    private final AtomicLong droppedReports = new AtomicLong(0);
+
+    private final AtomicLong refusedConnections = new AtomicLong(0);
+
+    /**
+     * Boolean associated with the release of this IpAutoBanFilterHandler.
+     */
+    private final AtomicBoolean release = new AtomicBoolean(false);
+
+    /**
+     * Class to implement the tick of the timing wheel
+     */
+    private class TickTask implements TimerTask {
+        public void run(Timeout timeout) throws Exception {
+            if (release.get() || timeout.isCancelled()) {
+                return;
+            }
+            try {
+                tick(System.currentTimeMillis());
+            } finally {
+                if (!release.get()) {
+                    timer.newTimeout(this, tickDuration, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param timer
+     *            the Timer driving the timing wheel (for instance a {@link HashedWheelTimer})
+     * @param threshold
+     *            the number of reports within findTime that bans an address
+     * @param findTime
+     *            the delay in ms during which the reports are counted
+     * @param banDuration
+     *            the duration in ms of a ban
+     * @param maxEntries
+     *            the maximum number of reported or banned addresses (or prefixes)
+     * @param ipv4PrefixLength
+     *            the length of the IPv4 prefixes reported and banned together (32 for each address)
+     * @param ipv6PrefixLength
+     *            the length of the IPv6 prefixes reported and banned together (128 for each address)
+     * @param tickDuration
+     *            the delay in ms between two ticks of the timing wheel, which is the precision
+     *            of the expiry
+     */
+    public IpAutoBanFilterHandler(Timer timer, int threshold, long findTime,
+            long banDuration, int maxEntries, int ipv4PrefixLength,
+            int ipv6PrefixLength, long tickDuration) {
+        if (timer == null) {
+            throw new NullPointerException("timer");
+        }
+        if (threshold <= 0) {
+            throw new IllegalArgumentException(
+                    "threshold must be a positive integer: " + threshold);
+        }
+        if (findTime <= 0) {
+            throw new IllegalArgumentException(
+                    "findTime must be a positive integer: " + findTime);
+        }
+        if (banDuration <= 0) {
+            throw new IllegalArgumentException(
+                    "banDuration must be a positive integer: " + banDuration);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException(
+                    "maxEntries must be a positive integer: " + maxEntries);
+        }
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32) {
+            throw new IllegalArgumentException(
+                    "ipv4PrefixLength must be between 0 and 32: " +
+                            ipv4PrefixLength);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException(
+                    "ipv6PrefixLength must be between 0 and 128: " +
+                            ipv6PrefixLength);
+        }
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException(
+                    "tickDuration must be a positive integer: " + tickDuration);
+        }
+        this.timer = timer;
+        this.threshold = threshold;
+        this.findTime = findTime;
+        this.banDuration = banDuration;
+        this.maxEntries = maxEntries;
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+        this.tickDuration = tickDuration;
+        for (int i = 0; i < WHEEL_SIZE; i ++) {
+            wheel.add(new ConcurrentLinkedQueue<Entry>());
+        }
+        lastTick = System.currentTimeMillis() / tickDuration;
+        timer.newTimeout(new TickTask(), tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ban per address, with the default tick duration
+     * @param timer
+     *            the Timer driving the timing wheel (for instance a {@link HashedWheelTimer})
+     * @param threshold
+     *            the number of reports within findTime that bans an address
+     * @param findTime
+     *            the delay in ms during which the reports are counted
+     * @param banDuration
+     *            the duration in ms of a ban
+     * @param maxEntries
+     *            the maximum number of reported or banned addresses
+     */
+    public IpAutoBanFilterHandler(Timer timer, int threshold, long findTime,
+            long banDuration, int maxEntries) {
+        this(timer, threshold, findTime, banDuration, maxEntries, 32, 128,
+                DEFAULT_TICK_DURATION);
+    }
+
+    private IpPrefixKey newKey(InetAddress inetAddress) {
+        return IpPrefixKey.newKey(inetAddress.getAddress(), ipv4PrefixLength,
+                ipv6PrefixLength);
+    }
+
+    /**
+     * @param key
+     * @param now
+     * @return the entry of the key, created if needed, or null if maxEntries is reached
+     */
+    private Entry getOrCreate(IpPrefixKey key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        if (entries.size() >= maxEntries) {
+            return null;
+        }
+        entry = new Entry(key);
+        entry.windowStart = now;
+        Entry previous = entries.putIfAbsent(key, entry);
+        if (previous != null) {
+            return previous;
+        }
+        schedule(entry, now + findTime);
+        return entry;
+    }
+
+    /**
+     * Put the entry in the slot of the first tick not before the given time
+     */
+    private void schedule(Entry entry, long time) {
+        long tick = (time + tickDuration - 1) / tickDuration;
+        wheel.get((int) (tick % WHEEL_SIZE)).add(entry);
+    }
+
+    /**
+     * Report an abusive behavior of the given address
+     * @param inetAddress
+     * @return True if the address is banned after this report
+     */
+    public boolean report(InetAddress inetAddress) {
+        if (inetAddress == null) {
+            throw new NullPointerException("inetAddress");
+        }
+        IpPrefixKey key = newKey(inetAddress);
+        long now = System.currentTimeMillis();
+        for (;;) {
+            Entry entry = getOrCreate(key, now);
+            if (entry == null) {
+                droppedReports.incrementAndGet();
+                return false;
+            }
+            synchronized (entry) {
+                if (entry.removed) {
+                    // expired meanwhile
+                    continue;
+                }
+                if (entry.bannedUntil > now) {
+                    return true;
+                }
+                if (now - entry.windowStart >= findTime) {
+                    entry.windowStart = now;
+                    entry.offenses = 0;
+                }
+                entry.offenses ++;
+                if (entry.offenses < threshold) {
+                    return false;
+                }
+                entry.offenses = 0;
+                entry.bannedUntil = now + banDuration;
+            }
+            bans.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Report an abusive behavior of the remote address of the given channel
+     * @param channel
+     * @return True if the address is banned after this report
+     */
+    public boolean report(Channel channel) {
+        SocketAddress remoteAddress = channel.getRemoteAddress();
+        if (!(remoteAddress instanceof InetSocketAddress)) {
+            return false;
+        }
+        return report(((InetSocketAddress) remoteAddress).getAddress());
+    }
+
+    /**
+     * Ban the given address now, whatever the number of reports
+     * @param inetAddress
+     * @param duration the duration of the ban in ms
+     * @return True if the address is banned, False if maxEntries is reached
+     */
+    public boolean ban(InetAddress inetAddress, long duration) {
+        if (inetAddress == null) {
+            throw new NullPointerException("inetAddress");
+        }
+        if (duration <= 0) {
+            throw new IllegalArgumentException(
+                    "duration must be a positive integer: " + duration);
+        }
+        IpPrefixKey key = newKey(inetAddress);
+        long now = System.currentTimeMillis();
+        for (;;) {
+            Entry entry = getOrCreate(key, now);
+            if (entry == null) {
+                droppedReports.incrementAndGet();
+                return false;
+            }
+            synchronized (entry) {
+                if (entry.removed) {
+                    // expired meanwhile
+                    continue;
+                }
+                entry.bannedUntil = Math.max(entry.bannedUntil, now + duration);
+            }
+            bans.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Remove the ban and the reports of the given address
+     * @param inetAddress
+     */
+    public void unban(InetAddress inetAddress) {
+        if (inetAddress == null) {
+            throw new NullPointerException("inetAddress");
+        }
+        IpPrefixKey key = newKey(inetAddress);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        // as the expiry, so that a concurrent report or ban retries with a new entry
+        synchronized (entry) {
+            if (entries.remove(key, entry)) {
+                entry.removed = true;
+            }
+        }
+    }
+
+    /**
+     * @param inetAddress
+     * @return True if the given address is currently banned
+     */
+    public boolean isBanned(InetAddress inetAddress) {
+        Entry entry = entries.get(newKey(inetAddress));
+        return entry != null &&
+                entry.bannedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Process the slots of the wheel up to now
+     * @param now
+     */
+    private void tick(long now) {
+        long currentTick = now / tickDuration;
+        // at most one turn of the wheel
+        long first = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+        for (long t = first; t <= currentTick; t ++) {
+            Queue<Entry> slot = wheel.get((int) (t % WHEEL_SIZE));
+            // only the entries present now, the rescheduled ones may come back in this slot
+            for (int nb = slot.size(); nb > 0; nb --) {
+                Entry entry = slot.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entries.get(entry.key) != entry) {
+                    // already removed
+                    continue;
+                }
+                long expiry;
+                synchronized (entry) {
+                    expiry = entry.expiry(findTime);
+                    if (expiry <= now) {
+                        entry.removed = true;
+                        entries.remove(entry.key, entry);
+                        continue;
+                    }
+                }
+                // later turn of the wheel, or extended by a ban
+                schedule(entry, expiry);
+            }
+        }
+        lastTick = currentTick;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#accept(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected boolean accept(ChannelHandlerContext ctx, ChannelEvent e,
+            InetSocketAddress inetSocketAddress) throws Exception {
+        if (entries.isEmpty()) {
+            return true;
+        }
+        if (isBanned(inetSocketAddress.getAddress())) {
+            refusedConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleRefusedChannel(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected ChannelFuture handleRefusedChannel(ChannelHandlerContext ctx,
+            ChannelEvent e, InetSocketAddress inetSocketAddress)
+            throws Exception {
+        // Do nothing: could be overridden
+        return null;
+    }
+
+    @Override
+    protected boolean continues(ChannelHandlerContext ctx, ChannelEvent e)
+            throws Exception {
+        return false;
+    }
+
+    /**
+     * @return the number of addresses (or prefixes) currently reported or banned
+     */
+    public int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bans since the creation of this handler
+     */
+    public long getBans() {
+        return bans.get();
+    }
+
+    /**
+     * @return the number of reports ignored since maxEntries was reached
+     */
+    public long getDroppedReports() {
+        return droppedReports.get();
+    }
+
+    /**
+     * @return the number of connections refused since the creation of this handler
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.util.ExternalResourceReleasable#releaseExternalResources()
+     */
+    public void releaseExternalResources() {
+        release.set(true);
+        entries.clear();
+        timer.stop();
+    }
+
+    @Override
+    public String toString() {
+        return "IpAutoBanFilterHandler with Threshold: " + threshold +
+                " Find Time: " + findTime + " Ban Duration: " + banDuration +
+                " Entries: " + entries.size() + " Bans: " + bans.get() +
+                " Refused: " + refusedConnections.get();
+    }
+}
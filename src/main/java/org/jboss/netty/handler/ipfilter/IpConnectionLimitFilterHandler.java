@@ -0,0 +1,278 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+
+/**
+ * Handler that limits the number of concurrent connections per address and per address
+ * prefix (for instance at most 2 connections per address and 20 per /24).<br>
+ * <br>
+ * Each address and each prefix (the remote address masked with ipv4PrefixLength or
+ * ipv6PrefixLength) has an atomic counter of its connected channels. A new connection is
+ * refused, through the <tt>handleRefusedChannel</tt> method that can be overridden, if one of
+ * its counters is already at its maximum. The counters are taken once per accepted channel
+ * and given back exactly once when it is disconnected or closed, and a counter back to 0 is
+ * removed from its map, so that the maps only hold the currently connected addresses.<br>
+ * <br>
+ * <b>This handler should be created only once and reused on every pipeline since it handles
+ * a global status of what is allowed or blocked.</b>
+ *
+ * @author frederic bregier
+ *
+ */
+@Sharable
+public class IpConnectionLimitFilterHandler extends IpFilteringHandler {
+    /**
+     * Counters of the connected channels per address
+     */
+    private final ConcurrentMap<IpPrefixKey, AtomicInteger> addressCounters = new ConcurrentHashMap<IpPrefixKey, AtomicInteger>();
+
+    /**
+     * Counters of the connected channels per prefix
+     */
+    private final ConcurrentMap<IpPrefixKey, AtomicInteger> prefixCounters = new ConcurrentHashMap<IpPrefixKey, AtomicInteger>();
+
+    /**
+     * Keys taken by each accepted channel, removed when they are given back
+     */
+    private final ChannelLocal<IpPrefixKey[]> channelKeys = new ChannelLocal<IpPrefixKey[]>();
+
+    private final int maxPerAddress;
+
+    private final int maxPerPrefix;
+
+    private final int ipv4PrefixLength;
+
+    private final int ipv6PrefixLength;
+
+    private final AtomicLong refusedConnections = new AtomicLong(0);
+
+    /**
+     * @param maxPerAddress
+     *            the maximum number of concurrent connections per address (0 means no limit)
+     * @param maxPerPrefix
+     *            the maximum number of concurrent connections per prefix (0 means no limit)
+     * @param ipv4PrefixLength
+     *            the length of the IPv4 prefixes
+     * @param ipv6PrefixLength
+     *            the length of the IPv6 prefixes
+     */
+    public IpConnectionLimitFilterHandler(int maxPerAddress, int maxPerPrefix,
+            int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (maxPerAddress < 0) {
+            throw new IllegalArgumentException(
+                    "maxPerAddress must be positive or 0: " + maxPerAddress);
+        }
+        if (maxPerPrefix < 0) {
+            throw new IllegalArgumentException(
+                    "maxPerPrefix must be positive or 0: " + maxPerPrefix);
+        }
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32) {
+            throw new IllegalArgumentException(
+                    "ipv4PrefixLength must be between 0 and 32: " +
+                            ipv4PrefixLength);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException(
+                    "ipv6PrefixLength must be between 0 and 128: " +
+                            ipv6PrefixLength);
+        }
+        this.maxPerAddress = maxPerAddress;
+        this.maxPerPrefix = maxPerPrefix;
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    /**
+     * Limit per address only
+     * @param maxPerAddress
+     *            the maximum number of concurrent connections per address
+     */
+    public IpConnectionLimitFilterHandler(int maxPerAddress) {
+        this(maxPerAddress, 0, 32, 128);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#accept(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected boolean accept(ChannelHandlerContext ctx, ChannelEvent e,
+            InetSocketAddress inetSocketAddress) throws Exception {
+        byte[] address = inetSocketAddress.getAddress().getAddress();
+        IpPrefixKey addressKey = null;
+        IpPrefixKey prefixKey = null;
+        if (maxPerAddress > 0) {
+            addressKey = IpPrefixKey.newKey(address, 32, 128);
+            if (!acquire(addressCounters, addressKey, maxPerAddress)) {
+                refusedConnections.incrementAndGet();
+                return false;
+            }
+        }
+        if (maxPerPrefix > 0) {
+            prefixKey = IpPrefixKey.newKey(address, ipv4PrefixLength,
+                    ipv6PrefixLength);
+            if (!acquire(prefixCounters, prefixKey, maxPerPrefix)) {
+                if (addressKey != null) {
+                    release(addressCounters, addressKey);
+                }
+                refusedConnections.incrementAndGet();
+                return false;
+            }
+        }
+        channelKeys.set(e.getChannel(), new IpPrefixKey[] { addressKey,
+                prefixKey });
+        return true;
+    }
+
+    /**
+     * Increment the counter of the key if it is under max
+     * @param counters
+     * @param key
+     * @param max
+     * @return True if the counter was incremented
+     */
+    private static boolean acquire(
+            ConcurrentMap<IpPrefixKey, AtomicInteger> counters,
+            IpPrefixKey key, int max) {
+        for (;;) {
+            AtomicInteger counter = counters.get(key);
+            if (counter == null) {
+                counter = counters.putIfAbsent(key, new AtomicInteger(1));
+                if (counter == null) {
+                    return true;
+                }
+            }
+            for (;;) {
+                int current = counter.get();
+                if (current == 0) {
+                    // being removed: help and retry with a new counter
+                    counters.remove(key, counter);
+                    break;
+                }
+                if (current >= max) {
+                    return false;
+                }
+                if (counter.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrement the counter of the key, removing it at 0. A counter at 0 is never
+     * incremented again, so that the removal is safe.
+     * @param counters
+     * @param key
+     */
+    private static void release(
+            ConcurrentMap<IpPrefixKey, AtomicInteger> counters,
+            IpPrefixKey key) {
+        AtomicInteger counter = counters.get(key);
+        if (counter != null && counter.decrementAndGet() == 0) {
+            counters.remove(key, counter);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleRefusedChannel(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected ChannelFuture handleRefusedChannel(ChannelHandlerContext ctx,
+            ChannelEvent e, InetSocketAddress inetSocketAddress)
+            throws Exception {
+        // Do nothing: could be overridden
+        return null;
+    }
+
+    @Override
+    protected boolean continues(ChannelHandlerContext ctx, ChannelEvent e)
+            throws Exception {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
+     */
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e)
+            throws Exception {
+        try {
+            super.handleUpstream(ctx, e);
+        } finally {
+            if (e instanceof ChannelStateEvent) {
+                ChannelStateEvent evt = (ChannelStateEvent) e;
+                if (evt.getValue() == null &&
+                        evt.getState() == ChannelState.CONNECTED ||
+                        evt.getValue() == Boolean.FALSE &&
+                        evt.getState() == ChannelState.OPEN) {
+                    // DISCONNECTED or CLOSED: give back the counters only once
+                    IpPrefixKey[] keys = channelKeys.remove(e.getChannel());
+                    if (keys != null) {
+                        if (keys[0] != null) {
+                            release(addressCounters, keys[0]);
+                        }
+                        if (keys[1] != null) {
+                            release(prefixCounters, keys[1]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of addresses currently connected, if limited per address
+     */
+    public int getConnectedAddresses() {
+        return addressCounters.size();
+    }
+
+    /**
+     * @return the number of prefixes currently connected, if limited per prefix
+     */
+    public int getConnectedPrefixes() {
+        return prefixCounters.size();
+    }
+
+    /**
+     * @return the number of connections refused since the creation of this handler
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IpConnectionLimitFilterHandler with Max per Address: " +
+                maxPerAddress + " Max per Prefix: " + maxPerPrefix +
+                " Prefixes: /" + ipv4PrefixLength + " /" + ipv6PrefixLength +
+                " Refused: " + refusedConnections.get();
+    }
+}
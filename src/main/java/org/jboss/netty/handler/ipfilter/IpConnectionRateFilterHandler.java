@@ -0,0 +1,287 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+
+/**
+ * Handler that limits the rate of new connections per address prefix, for instance
+ * "at most 10 new connections per second per /24".<br>
+ * <br>
+ * Each prefix (the remote address masked with ipv4PrefixLength or ipv6PrefixLength) has a
+ * token bucket of maxBurst connections, refilled at connectionsPerSecond. A new connection
+ * takes one token, and is refused if there is none left, through the
+ * <tt>handleRefusedChannel</tt> method that can be overridden.<br>
+ * <br>
+ * The buckets are kept in a fixed number of stripes, each one being a map protected by its own
+ * lock, so that connections from different prefixes rarely contend. A bucket that has been
+ * idle long enough to be full again is the same as a new one: such buckets are removed from
+ * their stripe when it is used, so that the memory follows the number of recently active
+ * prefixes.<br>
+ * <br>
+ * <b>This handler should be created only once and reused on every pipeline since it handles
+ * a global status of what is allowed or blocked.</b>
+ *
+ * @author frederic bregier
+ *
+ */
+@Sharable
+public class IpConnectionRateFilterHandler extends IpFilteringHandler {
+    /**
+     * Number of bits of the stripe index, taken from the high bits of the hash
+     * of the key (the low bits being used by the HashMap of the stripe)
+     */
+    private static final int STRIPE_BITS = 6;
+
+    /**
+     * Number of stripes
+     */
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    /**
+     * One token in the bucket, the tokens being counted in thousandths
+     */
+    private static final long TOKEN = 1000;
+
+    /**
+     * Token bucket of one prefix, only accessed under the lock of its stripe
+     */
+    private static final class Bucket {
+        /**
+         * Tokens in thousandths
+         */
+        long tokens;
+
+        /**
+         * Time of the last refill
+         */
+        long lastTime;
+
+        Bucket(long tokens, long lastTime) {
+            this.tokens = tokens;
+            this.lastTime = lastTime;
+        }
+    }
+
+    /**
+     * One stripe of buckets
+     */
+    private static final class Stripe {
+        final Map<IpPrefixKey, Bucket> buckets = new HashMap<IpPrefixKey, Bucket>();
+
+        /**
+         * Time of the last removal of the full buckets
+         */
+        long lastPurge;
+
+        Stripe() {
+            super();
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final long connectionsPerSecond;
+
+    private final long maxBurst;
+
+    private final int ipv4PrefixLength;
+
+    private final int ipv6PrefixLength;
+
+    /**
+     * Time in ms for an empty bucket to be full again
+     */
+    private final long refillTime;
+
+    private final AtomicLong refusedConnections = new AtomicLong(0);
+
+    /**
+     * @param connectionsPerSecond
+     *            the number of new connections allowed per second and per prefix
+     * @param maxBurst
+     *            the maximum number of new connections allowed at once per prefix
+     * @param ipv4PrefixLength
+     *            the length of the IPv4 prefixes (32 to limit each address)
+     * @param ipv6PrefixLength
+     *            the length of the IPv6 prefixes (128 to limit each address)
+     */
+    public IpConnectionRateFilterHandler(long connectionsPerSecond,
+            long maxBurst, int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (connectionsPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "connectionsPerSecond must be a positive integer: " +
+                            connectionsPerSecond);
+        }
+        if (maxBurst <= 0) {
+            throw new IllegalArgumentException(
+                    "maxBurst must be a positive integer: " + maxBurst);
+        }
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32) {
+            throw new IllegalArgumentException(
+                    "ipv4PrefixLength must be between 0 and 32: " +
+                            ipv4PrefixLength);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException(
+                    "ipv6PrefixLength must be between 0 and 128: " +
+                            ipv6PrefixLength);
+        }
+        this.connectionsPerSecond = connectionsPerSecond;
+        this.maxBurst = maxBurst;
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+        // TOKEN * connectionsPerSecond thousandths are refilled each 1000 ms
+        refillTime = (maxBurst * 1000 + connectionsPerSecond - 1) /
+                connectionsPerSecond;
+        for (int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Limit per /24 for IPv4 and per /64 for IPv6, with a burst equal to the rate
+     * @param connectionsPerSecond
+     *            the number of new connections allowed per second and per prefix
+     */
+    public IpConnectionRateFilterHandler(long connectionsPerSecond) {
+        this(connectionsPerSecond, connectionsPerSecond, 24, 64);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#accept(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected boolean accept(ChannelHandlerContext ctx, ChannelEvent e,
+            InetSocketAddress inetSocketAddress) throws Exception {
+        IpPrefixKey key = IpPrefixKey.newKey(inetSocketAddress.getAddress()
+                .getAddress(), ipv4PrefixLength, ipv6PrefixLength);
+        if (tryAcquire(key, System.currentTimeMillis())) {
+            return true;
+        }
+        refusedConnections.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param key
+     * @param now
+     * @return True if a token was taken from the bucket of the key
+     */
+    private boolean tryAcquire(IpPrefixKey key, long now) {
+        Stripe stripe = stripes[key.hashCode() >>> 32 - STRIPE_BITS];
+        synchronized (stripe) {
+            if (now - stripe.lastPurge >= refillTime) {
+                purge(stripe, now);
+            }
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                stripe.buckets.put(key, new Bucket(maxBurst * TOKEN - TOKEN,
+                        now));
+                return true;
+            }
+            refill(bucket, now);
+            if (bucket.tokens < TOKEN) {
+                return false;
+            }
+            bucket.tokens -= TOKEN;
+            return true;
+        }
+    }
+
+    private void refill(Bucket bucket, long now) {
+        long elapsed = now - bucket.lastTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        bucket.lastTime = now;
+        if (elapsed >= refillTime) {
+            bucket.tokens = maxBurst * TOKEN;
+        } else {
+            bucket.tokens = Math.min(maxBurst * TOKEN, bucket.tokens +
+                    elapsed * connectionsPerSecond);
+        }
+    }
+
+    /**
+     * Remove the buckets idle long enough to be full again
+     * @param stripe
+     * @param now
+     */
+    private void purge(Stripe stripe, long now) {
+        stripe.lastPurge = now;
+        Iterator<Bucket> iterator = stripe.buckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastTime >= refillTime) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleRefusedChannel(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
+     */
+    @Override
+    protected ChannelFuture handleRefusedChannel(ChannelHandlerContext ctx,
+            ChannelEvent e, InetSocketAddress inetSocketAddress)
+            throws Exception {
+        // Do nothing: could be overridden
+        return null;
+    }
+
+    @Override
+    protected boolean continues(ChannelHandlerContext ctx, ChannelEvent e)
+            throws Exception {
+        return false;
+    }
+
+    /**
+     * @return the number of prefixes currently tracked
+     */
+    public int getTrackedPrefixes() {
+        int size = 0;
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                size += stripe.buckets.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of connections refused since the creation of this handler
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IpConnectionRateFilterHandler with Rate: " +
+                connectionsPerSecond + "/s Burst: " + maxBurst + " Prefixes: /" +
+                ipv4PrefixLength + " /" + ipv6PrefixLength + " Refused: " +
+                refusedConnections.get();
+    }
+}
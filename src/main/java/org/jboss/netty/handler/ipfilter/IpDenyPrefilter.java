@@ -0,0 +1,374 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+/**
+ * Bloom filter of the prefixes of all the DENY rules of a rule set, used by
+ * {@link IpFilterRuleIndex} to accept at once most of the addresses that no DENY rule
+ * contains: if none of the prefixes of an address is in the filter, no DENY rule can
+ * contain it, so it is allowed whatever the ALLOW rules are. Otherwise (including the
+ * false positives of the filter), the rule set gives the precise decision.<br>
+ * <br>
+ * The prefixes are stored for a few prefix lengths only (the usual ones and the shortest
+ * one used by the DENY rules), a DENY subnet being stored as its prefix at the longest such
+ * length not greater than its own, so that the check of an address costs a few hash probes
+ * per length. The ranges of {@link IpRangeFilterRule} are stored as the subnets covering them.<br>
+ * <br>
+ * It can only be built when all the DENY rules are {@link IpSubnetFilterRule},
+ * {@link IpV4SubnetFilterRule} or {@link IpRangeFilterRule}, without any DENY ALL rule.<br>
+ * The prefixes are kept in the 128-bit address space of {@link IpAddresses}: an IPv6 prefix
+ * within ::ffff:0:0/96 is stored as an IPv4 prefix, so that an IPv4 address and its IPv4
+ * mapped form are checked with the same probes.<br>
+ * <br>
+ * This object is immutable once built.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpDenyPrefilter {
+    /**
+     * Number of bits per inserted prefix
+     */
+    private static final int BITS_PER_ENTRY = 10;
+
+    /**
+     * Number of hash probes per prefix
+     */
+    private static final int PROBES = 7;
+
+    /**
+     * Usual IPv4 prefix lengths
+     */
+    private static final int[] IPV4_LENGTHS = { 8, 16, 24, 32 };
+
+    /**
+     * Usual IPv6 prefix lengths
+     */
+    private static final int[] IPV6_LENGTHS = { 16, 32, 48, 64, 96, 128 };
+
+    /**
+     * Bits of the filter
+     */
+    private long[] bits;
+
+    /**
+     * Number of bits - 1 (power of 2)
+     */
+    private int mask;
+
+    /**
+     * Prefix lengths used for IPv4, in ascending order
+     */
+    private int[] ipv4Lengths;
+
+    /**
+     * Prefix lengths used for IPv6, in ascending order
+     */
+    private int[] ipv6Lengths;
+
+    /**
+     * Shortest IPv4 and IPv6 prefix lengths of the DENY rules (during the build)
+     */
+    private int ipv4MinLength = 33;
+
+    private int ipv6MinLength = 129;
+
+    /**
+     * Number of prefixes to insert (during the build)
+     */
+    private int count;
+
+    private IpDenyPrefilter() {
+    }
+
+    /**
+     * @param rules
+     * @return the prefilter of the DENY rules, or null if it cannot be built or is useless
+     */
+    static IpDenyPrefilter newPrefilter(IpFilterRule[] rules) {
+        IpDenyPrefilter prefilter = new IpDenyPrefilter();
+        // first pass: count and shortest lengths
+        if (!prefilter.visit(rules, false) || prefilter.count == 0) {
+            return null;
+        }
+        prefilter.ipv4Lengths = lengths(IPV4_LENGTHS, prefilter.ipv4MinLength);
+        prefilter.ipv6Lengths = lengths(IPV6_LENGTHS, prefilter.ipv6MinLength);
+        long nbBits = Math.max(64, (long) prefilter.count * BITS_PER_ENTRY);
+        int size = 64;
+        while (size < nbBits && size < 1 << 30) {
+            size <<= 1;
+        }
+        prefilter.bits = new long[size >>> 6];
+        prefilter.mask = size - 1;
+        // second pass: insertion
+        prefilter.visit(rules, true);
+        return prefilter;
+    }
+
+    /**
+     * @param usual
+     * @param minLength
+     * @return the usual lengths greater than minLength, plus minLength
+     */
+    private static int[] lengths(int[] usual, int minLength) {
+        if (minLength > usual[usual.length - 1]) {
+            // not used
+            return new int[0];
+        }
+        int nb = 1;
+        for (int length: usual) {
+            if (length > minLength) {
+                nb ++;
+            }
+        }
+        int[] lengths = new int[nb];
+        lengths[0] = minLength;
+        nb = 1;
+        for (int length: usual) {
+            if (length > minLength) {
+                lengths[nb ++] = length;
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Visit all the prefixes of the DENY rules
+     * @param rules
+     * @param insert False to only count them and compute the shortest lengths,
+     *          True to insert them
+     * @return False if one of the DENY rules cannot be represented
+     */
+    private boolean visit(IpFilterRule[] rules, boolean insert) {
+        for (IpFilterRule rule: rules) {
+            if (!rule.isDenyRule()) {
+                continue;
+            }
+            if (rule instanceof IpSubnet) {
+                CIDR cidr = ((IpSubnet) rule).getCidr();
+                if (cidr == null) {
+                    // DENY ALL
+                    return false;
+                }
+                addIpV6(cidr.getBaseHigh(), cidr.getBaseLow(), cidr
+                        .getMappedMask(), insert);
+            } else if (rule instanceof IpV4Subnet) {
+                IpV4Subnet subnet = (IpV4Subnet) rule;
+                if (subnet.isAll()) {
+                    return false;
+                }
+                addIpV4(subnet.getSubnet(), subnet.getCidrMask(), insert);
+            } else if (rule instanceof IpRangeFilterRule) {
+                IpRangeFilterRule range = (IpRangeFilterRule) rule;
+                int[] starts = range.getIpV4Starts();
+                int[] ends = range.getIpV4Ends();
+                for (int i = 0; i < starts.length; i ++) {
+                    addIpV4Range(starts[i], ends[i], insert);
+                }
+                long[] starts6 = range.getIpV6Starts();
+                long[] ends6 = range.getIpV6Ends();
+                for (int i = 0; i < starts6.length; i += 2) {
+                    addIpV6Range(starts6[i], starts6[i + 1], ends6[i],
+                            ends6[i + 1], insert);
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the subnets covering the range [start, end]
+     */
+    private void addIpV4Range(int start, int end, boolean insert) {
+        long current = start & 0xFFFFFFFFL;
+        long last = end & 0xFFFFFFFFL;
+        while (current <= last) {
+            // largest block aligned on current and not going after last
+            int size = current == 0? 32 : Long.numberOfTrailingZeros(current);
+            while (size > 0 && current + (1L << size) - 1 > last) {
+                size --;
+            }
+            addIpV4((int) current, 32 - size, insert);
+            current += 1L << size;
+        }
+    }
+
+    /**
+     * Add the subnets covering the range [start, end]
+     */
+    private void addIpV6Range(long startHigh, long startLow, long endHigh,
+            long endLow, boolean insert) {
+        long high = startHigh;
+        long low = startLow;
+        for (;;) {
+            // largest block aligned on current and not going after end
+            int size = low == 0? high == 0? 128 : 64 + Long
+                    .numberOfTrailingZeros(high) : Long
+                    .numberOfTrailingZeros(low);
+            long lastHigh;
+            long lastLow;
+            for (;;) {
+                if (size >= 64) {
+                    lastHigh = size == 128? -1L : high | (1L << size - 64) - 1;
+                    lastLow = -1L;
+                } else {
+                    lastHigh = high;
+                    lastLow = low | (1L << size) - 1;
+                }
+                if (size == 0 ||
+                        IpRangeFilterRule.compare(lastHigh, lastLow, endHigh,
+                                endLow) <= 0) {
+                    break;
+                }
+                size --;
+            }
+            addIpV6(high, low, 128 - size, insert);
+            if (lastHigh == endHigh && lastLow == endLow) {
+                return;
+            }
+            low = lastLow + 1;
+            high = low == 0? lastHigh + 1 : lastHigh;
+        }
+    }
+
+    private void addIpV4(int prefix, int length, boolean insert) {
+        if (!insert) {
+            count ++;
+            if (length < ipv4MinLength) {
+                ipv4MinLength = length;
+            }
+            return;
+        }
+        int used = usedLength(ipv4Lengths, length);
+        set(hash(true, 0, (long) prefix & ipv4Mask(used) & 0xFFFFFFFFL, used));
+    }
+
+    private void addIpV6(long high, long low, int length, boolean insert) {
+        int mapped = IpAddresses.IPV4_MAPPED_PREFIX_LENGTH;
+        if (length >= mapped && IpAddresses.isIpV4Mapped(high, low)) {
+            addIpV4((int) low, length - mapped, insert);
+            return;
+        }
+        if (length <= mapped && (high & ipv6Mask(length)) == 0 &&
+                ((IpAddresses.mappedLow(0) ^ low) & ipv6Mask(length - 64)) == 0) {
+            // contains all the IPv4 mapped addresses
+            addIpV4(0, 0, insert);
+        }
+        if (!insert) {
+            count ++;
+            if (length < ipv6MinLength) {
+                ipv6MinLength = length;
+            }
+            return;
+        }
+        int used = usedLength(ipv6Lengths, length);
+        set(hash(false, high & ipv6Mask(used), low & ipv6Mask(used - 64), used));
+    }
+
+    /**
+     * @return the longest used length not greater than length
+     */
+    private static int usedLength(int[] lengths, int length) {
+        int used = lengths[0];
+        for (int candidate: lengths) {
+            if (candidate > length) {
+                break;
+            }
+            used = candidate;
+        }
+        return used;
+    }
+
+    private static int ipv4Mask(int length) {
+        return length == 0? 0 : -1 << 32 - length;
+    }
+
+    private static long ipv6Mask(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (length >= 64) {
+            return -1L;
+        }
+        return -1L << 64 - length;
+    }
+
+    private static long hash(boolean ipv4, long high, long low, int length) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL ^
+                (length | (ipv4? 0x100 : 0)) * 0x165667B19E3779F9L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void set(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i ++) {
+            int bit = h1 + i * h2 & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean get(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i ++) {
+            int bit = h1 + i * h2 & mask;
+            if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an integer
+     * @return False if no DENY rule contains this address, True if one may contain it
+     */
+    boolean mayDeny(int ipv4) {
+        for (int length: ipv4Lengths) {
+            if (get(hash(true, 0, ipv4 & ipv4Mask(length) & 0xFFFFFFFFL,
+                    length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @return False if no DENY rule contains this address, True if one may contain it
+     */
+    boolean mayDeny(long high, long low) {
+        if (IpAddresses.isIpV4Mapped(high, low)) {
+            return mayDeny((int) low);
+        }
+        for (int length: ipv6Lengths) {
+            if (get(hash(false, high & ipv6Mask(length), low &
+                    ipv6Mask(length - 64), length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
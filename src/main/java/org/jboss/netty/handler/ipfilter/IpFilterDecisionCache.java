@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of the decisions of an {@link IpFilterRuleHandler}, keyed by the primitive
+ * form of the remote address in the 128-bit address space of {@link IpAddresses}, so that an
+ * IPv4 address and its IPv4 mapped form share one decision.<br>
+ * <br>
+ * The cache is a fixed array of slots (the size cap rounded up to a power of 2), each address
+ * going into one slot given by its hash: a new decision replaces the one of another address in
+ * the same slot, so the cache never grows and never needs any lock.<br>
+ * A decision is valid for ttl ms, and only for the rule set it was computed with: any change
+ * of the rules of the handler changes the version of its rule set, which invalidates all
+ * the cached decisions at once.<br>
+ * <br>
+ * It is optional and set through <tt>IpFilterRuleHandler.setDecisionCache</tt>:<br>
+ * <tt>handler.setDecisionCache(new IpFilterDecisionCache(4096, 60000));</tt>
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpFilterDecisionCache {
+    /**
+     * Result of get when there is no valid decision
+     */
+    static final int MISS = -1;
+
+    /**
+     * Result of get for a DENY decision
+     */
+    static final int DENY = 0;
+
+    /**
+     * Result of get for an ALLOW decision
+     */
+    static final int ALLOW = 1;
+
+    /**
+     * Cached decision, immutable
+     */
+    private static final class Entry {
+        final long high;
+        final long low;
+        final boolean allow;
+        final long version;
+        final long expiry;
+
+        Entry(long high, long low, boolean allow, long version, long expiry) {
+            this.high = high;
+            this.low = low;
+            this.allow = allow;
+            this.version = version;
+            this.expiry = expiry;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+
+    private final int mask;
+
+    private final long ttl;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxEntries
+     *            the maximum number of cached decisions (rounded up to a power of 2)
+     * @param ttl
+     *            the delay in ms during which a decision is valid
+     */
+    public IpFilterDecisionCache(int maxEntries, long ttl) {
+        if (maxEntries <= 0 || maxEntries > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "maxEntries must be between 1 and 2^30: " + maxEntries);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException(
+                    "ttl must be a positive integer: " + ttl);
+        }
+        int size = 1;
+        while (size < maxEntries) {
+            size <<= 1;
+        }
+        entries = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+        this.ttl = ttl;
+    }
+
+    private int slot(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * @param high the high 64 bits of the address (IPv4 being mapped into IPv6)
+     * @param low the low 64 bits of the address
+     * @param version the version of the current rule set
+     * @return ALLOW, DENY or MISS
+     */
+    int get(long high, long low, long version) {
+        Entry entry = entries.get(slot(high, low));
+        if (entry != null && entry.high == high &&
+                entry.low == low && entry.version == version &&
+                entry.expiry - System.currentTimeMillis() > 0) {
+            hits.incrementAndGet();
+            return entry.allow? ALLOW : DENY;
+        }
+        misses.incrementAndGet();
+        return MISS;
+    }
+
+    /**
+     * @param high the high 64 bits of the address (IPv4 being mapped into IPv6)
+     * @param low the low 64 bits of the address
+     * @param allow the decision
+     * @param version the version of the rule set used for the decision
+     */
+    void put(long high, long low, boolean allow, long version) {
+        entries.set(slot(high, low), new Entry(high, low, allow, version,
+                System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Remove all the cached decisions
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i ++) {
+            entries.set(i, null);
+        }
+    }
+
+    /**
+     * @return the number of checks answered by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of checks not answered by the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the maximum number of cached decisions
+     */
+    public int getMaxEntries() {
+        return entries.length();
+    }
+
+    /**
+     * @return the delay in ms during which a decision is valid
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Reset the hit and miss counters
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "IpFilterDecisionCache with Max Entries: " + entries.length() +
+                " TTL: " + ttl + " Hits: " + hits.get() + " Misses: " +
+                misses.get();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiler of an ordered list of {@link IpFilterRule} (as used by {@link IpFilterRuleHandler})
+ * into a minimal equivalent list, giving the same decision for any address.<br>
+ * <br>
+ * The {@link IpSubnetFilterRule}, {@link IpV4SubnetFilterRule} and {@link IpRangeFilterRule}
+ * are flattened into address intervals (in the 128-bit address space of {@link IpAddresses}),
+ * and only the part of each rule not already covered by the previous ones is kept, since the
+ * first matching rule decides (all the intervals being sorted then swept once, so that the
+ * cost grows as n log n with the number of rules):
+ * <ul>
+ * <li>a rule fully covered by the previous ones can never match: it is dropped and reported
+ *     as shadowed (see <tt>getShadowedRules</tt>),</li>
+ * <li>the remaining parts of the ALLOW rules on one side and of the DENY rules on the other
+ *     side are merged (overlapping and adjacent ranges), then rewritten as the fewest
+ *     {@link IpSubnetFilterRule} covering them, or as one {@link IpRangeFilterRule} if there
+ *     are more than <tt>maxSubnetRules</tt> of them,</li>
+ * <li>the ALLOW parts after the last other rule are dropped, since an address that no rule
+ *     contains is accepted.</li>
+ * </ul>
+ * Any other implementation of {@link IpFilterRule} is kept as is and at its place, the rules
+ * before and after it being merged separately.<br>
+ * <br>
+ * Example:<br>
+ * <tt>IpFilterRuleCompiler compiler = new IpFilterRuleCompiler(rules);</tt><br>
+ * <tt>ipFilterRuleHandler.setAll(compiler.getCompiledRules());</tt><br>
+ * or directly <tt>ipFilterRuleHandler.compile();</tt><br>
+ * <br>
+ * This object is immutable once built.
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpFilterRuleCompiler {
+    /**
+     * Default maximum number of {@link IpSubnetFilterRule} per merged part
+     */
+    public static final int DEFAULT_MAX_SUBNET_RULES = 64;
+
+    private final int maxSubnetRules;
+
+    private final int originalSize;
+
+    private final List<IpFilterRule> compiledRules = new ArrayList<IpFilterRule>();
+
+    private final List<IpFilterRule> shadowedRules = new ArrayList<IpFilterRule>();
+
+    /**
+     * @param rules the rules in order
+     */
+    public IpFilterRuleCompiler(Collection<IpFilterRule> rules) {
+        this(rules, DEFAULT_MAX_SUBNET_RULES);
+    }
+
+    /**
+     * @param rules the rules in order
+     * @param maxSubnetRules the maximum number of {@link IpSubnetFilterRule} for the merged
+     *          ALLOW or DENY part, above which one {@link IpRangeFilterRule} is used instead
+     */
+    public IpFilterRuleCompiler(Collection<IpFilterRule> rules,
+            int maxSubnetRules) {
+        if (rules == null) {
+            throw new NullPointerException("rules");
+        }
+        if (maxSubnetRules < 0) {
+            throw new IllegalArgumentException(
+                    "maxSubnetRules must be a positive integer: " +
+                            maxSubnetRules);
+        }
+        this.maxSubnetRules = maxSubnetRules;
+        IpFilterRule[] ruleArray = rules.toArray(new IpFilterRule[rules.size()]);
+        originalSize = ruleArray.length;
+        // the intervals of all the rules, and the position of the rule of each one
+        long[] bounds = new long[64];
+        int[] owners = new int[16];
+        int nbIntervals = 0;
+        // for each rule, the number of other rules before it, or -1 for an other rule
+        int[] groups = new int[ruleArray.length];
+        int nbOthers = 0;
+        for (int i = 0; i < ruleArray.length; i ++) {
+            IpFilterRule rule = ruleArray[i];
+            if (rule == null) {
+                throw new NullPointerException("IpFilterRule can not be null");
+            }
+            IpIntervalSet set = IpIntervalSet.of(rule);
+            if (set == null) {
+                groups[i] = -1;
+                nbOthers ++;
+                continue;
+            }
+            groups[i] = nbOthers;
+            int setSize = set.size();
+            if (nbIntervals + setSize > owners.length) {
+                int capacity = Math.max(owners.length << 1, nbIntervals + setSize);
+                owners = Arrays.copyOf(owners, capacity);
+                bounds = Arrays.copyOf(bounds, capacity << 2);
+            }
+            for (int j = 0; j < setSize; j ++) {
+                int index = nbIntervals << 2;
+                bounds[index] = set.getStartHigh(j);
+                bounds[index + 1] = set.getStartLow(j);
+                bounds[index + 2] = set.getEndHigh(j);
+                bounds[index + 3] = set.getEndLow(j);
+                owners[nbIntervals ++] = i;
+            }
+        }
+        // remaining parts of the ALLOW and DENY rules between two other rules
+        IpIntervalSet[] allowed = new IpIntervalSet[nbOthers + 1];
+        IpIntervalSet[] denied = new IpIntervalSet[nbOthers + 1];
+        for (int g = 0; g <= nbOthers; g ++) {
+            allowed[g] = new IpIntervalSet();
+            denied[g] = new IpIntervalSet();
+        }
+        boolean[] matched = new boolean[ruleArray.length];
+        sweep(bounds, owners, nbIntervals, ruleArray, groups, matched,
+                allowed, denied);
+        int group = 0;
+        for (int i = 0; i < ruleArray.length; i ++) {
+            if (groups[i] == -1) {
+                // other rule: kept at its place
+                emit(denied[group], false);
+                emit(allowed[group], true);
+                group ++;
+                compiledRules.add(ruleArray[i]);
+            } else if (!matched[i]) {
+                shadowedRules.add(ruleArray[i]);
+            }
+        }
+        // the last ALLOW parts are useless since allowed by default
+        emit(denied[group], false);
+    }
+
+    /**
+     * Split the address space into the segments where the first rule containing the
+     * addresses is the same, and add each segment to the ALLOW or DENY part of the
+     * group of this rule.<br>
+     * The segments are found in one pass over the starts and the ends of the intervals
+     * in ascending order, the intervals containing the current segment being kept in a
+     * heap by position of their rule. The segments are found in ascending order, so that
+     * the parts are built already sorted.
+     * @param bounds the intervals of the rules
+     * @param owners the position of the rule of each interval
+     * @param size the number of intervals
+     * @param rules
+     * @param groups the group of each rule
+     * @param matched set to True for the rules matching at least one address
+     * @param allowed the ALLOW part of each group
+     * @param denied the DENY part of each group
+     */
+    private static void sweep(long[] bounds, int[] owners, int size,
+            IpFilterRule[] rules, int[] groups, boolean[] matched,
+            IpIntervalSet[] allowed, IpIntervalSet[] denied) {
+        if (size == 0) {
+            return;
+        }
+        int[] byStart = IpIntervalSet.sortedOrder(bounds, 0, size);
+        int[] byEnd = IpIntervalSet.sortedOrder(bounds, 2, size);
+        int[] heap = new int[size];
+        int heapSize = 0;
+        int s = 0;
+        int e = 0;
+        // start of the current segment
+        long high = bounds[byStart[0] << 2];
+        long low = bounds[(byStart[0] << 2) + 1];
+        for (;;) {
+            // the intervals starting at the current segment
+            while (s < size &&
+                    IpRangeFilterRule.compare(bounds[byStart[s] << 2],
+                            bounds[(byStart[s] << 2) + 1], high, low) <= 0) {
+                heapSize = push(heap, heapSize, byStart[s ++], owners);
+            }
+            // the intervals ending before the current segment
+            while (heapSize > 0 && isBefore(bounds, heap[0], high, low)) {
+                heapSize = pop(heap, heapSize, owners);
+            }
+            while (e < size && isBefore(bounds, byEnd[e], high, low)) {
+                e ++;
+            }
+            // the next segment starts at the next start or after the next end
+            boolean last = true;
+            long nextHigh = 0;
+            long nextLow = 0;
+            if (s < size) {
+                last = false;
+                nextHigh = bounds[byStart[s] << 2];
+                nextLow = bounds[(byStart[s] << 2) + 1];
+            }
+            if (e < size) {
+                int index = byEnd[e] << 2;
+                long endHigh = bounds[index + 2];
+                long endLow = bounds[index + 3];
+                if (endHigh != -1L || endLow != -1L) {
+                    long afterLow = endLow + 1;
+                    long afterHigh = afterLow == 0? endHigh + 1 : endHigh;
+                    if (last ||
+                            IpRangeFilterRule.compare(afterHigh, afterLow,
+                                    nextHigh, nextLow) < 0) {
+                        nextHigh = afterHigh;
+                        nextLow = afterLow;
+                    }
+                    last = false;
+                }
+            }
+            if (heapSize > 0) {
+                int rule = owners[heap[0]];
+                matched[rule] = true;
+                IpIntervalSet part = rules[rule].isAllowRule()? allowed[groups[rule]]
+                        : denied[groups[rule]];
+                if (last) {
+                    part.add(high, low, -1L, -1L);
+                } else {
+                    part.add(high, low, nextLow == 0? nextHigh - 1 : nextHigh,
+                            nextLow - 1);
+                }
+            }
+            if (last) {
+                return;
+            }
+            high = nextHigh;
+            low = nextLow;
+        }
+    }
+
+    /**
+     * @return True if the interval ends before the given address
+     */
+    private static boolean isBefore(long[] bounds, int interval, long high,
+            long low) {
+        int index = interval << 2;
+        return IpRangeFilterRule.compare(bounds[index + 2], bounds[index + 3],
+                high, low) < 0;
+    }
+
+    /**
+     * Add the interval to the heap ordered by position of the rules
+     * @return the new size of the heap
+     */
+    private static int push(int[] heap, int heapSize, int interval,
+            int[] owners) {
+        int i = heapSize;
+        while (i > 0) {
+            int parent = i - 1 >>> 1;
+            if (owners[heap[parent]] <= owners[interval]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = interval;
+        return heapSize + 1;
+    }
+
+    /**
+     * Remove the interval of the first rule from the heap
+     * @return the new size of the heap
+     */
+    private static int pop(int[] heap, int heapSize, int[] owners) {
+        heapSize --;
+        int interval = heap[heapSize];
+        int i = 0;
+        for (;;) {
+            int child = (i << 1) + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize &&
+                    owners[heap[child + 1]] < owners[heap[child]]) {
+                child ++;
+            }
+            if (owners[interval] <= owners[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = interval;
+        return heapSize;
+    }
+
+    /**
+     * Add the rules matching exactly the given addresses
+     * @param set
+     * @param allow
+     */
+    private void emit(IpIntervalSet set, boolean allow) {
+        if (set.isEmpty()) {
+            return;
+        }
+        if (set.isAll()) {
+            compiledRules.add(new IpSubnetFilterRule(allow));
+            return;
+        }
+        List<long[]> prefixes = set.toPrefixes(maxSubnetRules);
+        if (prefixes == null) {
+            compiledRules.add(new IpRangeFilterRule(allow, set));
+            return;
+        }
+        for (long[] prefix: prefixes) {
+            compiledRules.add(newSubnetRule(allow, prefix[0], prefix[1],
+                    (int) prefix[2]));
+        }
+    }
+
+    private static IpSubnetFilterRule newSubnetRule(boolean allow, long high,
+            long low, int length) {
+        int mapped = IpAddresses.IPV4_MAPPED_PREFIX_LENGTH;
+        byte[] address;
+        if (length >= mapped && IpAddresses.isIpV4Mapped(high, low)) {
+            address = new byte[4];
+            for (int i = 0; i < 4; i ++) {
+                address[i] = (byte) (low >>> 24 - (i << 3));
+            }
+            length -= mapped;
+        } else {
+            address = new byte[16];
+            for (int i = 0; i < 8; i ++) {
+                address[i] = (byte) (high >>> 56 - (i << 3));
+                address[i + 8] = (byte) (low >>> 56 - (i << 3));
+            }
+        }
+        try {
+            return new IpSubnetFilterRule(allow, InetAddress
+                    .getByAddress(address), length);
+        } catch (UnknownHostException e) {
+            // this should never happen since the length and mask are valid
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return the minimal equivalent list of rules
+     */
+    public List<IpFilterRule> getCompiledRules() {
+        return Collections.unmodifiableList(compiledRules);
+    }
+
+    /**
+     * @return the rules that can never match since the previous rules cover them
+     */
+    public List<IpFilterRule> getShadowedRules() {
+        return Collections.unmodifiableList(shadowedRules);
+    }
+
+    @Override
+    public String toString() {
+        return "IpFilterRuleCompiler with Rules: " + originalSize +
+                " Compiled Rules: " + compiledRules.size() +
+                " Shadowed Rules: " + shadowedRules.size();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter of the matches of one {@link IpFilterRule}, with the time of its last match.<br>
+ * The count and the time of the last match are striped by thread (each stripe in its own
+ * cache line), so that the threads accepting connections do not contend on the same counter.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpFilterRuleCounter {
+    /**
+     * Number of stripes (power of 2)
+     */
+    private static final int STRIPES = 8;
+
+    /**
+     * Distance between two stripes in the array (8 longs = 64 bytes), the count of
+     * a stripe being followed by the time of its last match
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES *
+            PADDING);
+
+    /**
+     * Count one match
+     * @param now the current time in ms
+     */
+    void hit(long now) {
+        int stripe = (int) Thread.currentThread().getId() & STRIPES - 1;
+        cells.incrementAndGet(stripe * PADDING);
+        // written only once per ms
+        if (cells.get(stripe * PADDING + 1) < now) {
+            cells.lazySet(stripe * PADDING + 1, now);
+        }
+    }
+
+    /**
+     * @return the number of matches
+     */
+    long getHits() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i ++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the time in ms of the last match, or 0 if none
+     */
+    long getLastHit() {
+        long lastHit = 0;
+        for (int i = 0; i < STRIPES; i ++) {
+            lastHit = Math.max(lastHit, cells.get(i * PADDING + 1));
+        }
+        return lastHit;
+    }
+
+    /**
+     * Reset the number of matches and the time of the last match
+     */
+    void reset() {
+        for (int i = 0; i < STRIPES; i ++) {
+            cells.set(i * PADDING, 0);
+            cells.set(i * PADDING + 1, 0);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * File backed source of {@link IpFilterRule} for an {@link IpFilterRuleHandler}.<br>
+ * <br>
+ * The file is checked at each checkInterval (last modification time and length) and,
+ * when it has changed, it is parsed in the {@link Timer} thread and the whole list of
+ * the handler is replaced through <tt>setAll</tt>: the compiled rule set is built once and
+ * published with a single volatile swap, so the filtering never sees a half-applied file.
+ * If the file cannot be read or parsed, the previous rules are kept and a warning is logged.<br>
+ * <br>
+ * The format of the file is one rule per line, in order, as <tt>allow</tt> or <tt>deny</tt>
+ * followed by a subnet (CIDR or standard notation, or a single address) or by <tt>all</tt>.
+ * An IPv4 mapped address or subnet <tt>::ffff:a.b.c.d/n</tt> is read as <tt>a.b.c.d/(n - 96)</tt>.
+ * Empty lines and lines starting with '#' are ignored:<br>
+ * <pre>
+ * # local network
+ * allow 192.168.0.0/16
+ * deny 10.0.0.0/255.0.0.0
+ * deny 2001:db8::/32
+ * deny all
+ * </pre>
+ * The general use should be as follow:<br>
+ * <ul>
+ * <li><tt>IpFilterRuleFile ruleFile = new IpFilterRuleFile(handler, new File("rules.txt"), timer, 5000);</tt><br>
+ * The file is loaded once in the constructor, then checked every 5 seconds.</li>
+ * <li>When you shutdown your application, release the timer by calling:<br>
+ * <tt>ruleFile.releaseExternalResources();</tt></li>
+ * </ul>
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpFilterRuleFile implements ExternalResourceReleasable {
+    /**
+     * Internal logger
+     */
+    private static final InternalLogger logger = InternalLoggerFactory
+            .getInstance(IpFilterRuleFile.class);
+
+    /**
+     * Default delay in ms between two checks of the file
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+    private final IpFilterRuleHandler handler;
+
+    private final File file;
+
+    private final Timer timer;
+
+    private final long checkInterval;
+
+    /**
+     * Last modification time of the file when last checked
+     */
+    private volatile long lastModified;
+
+    /**
+     * Length of the file when last checked
+     */
+    private volatile long length;
+
+    /**
+     * Number of successful loads
+     */
+    private volatile long loads;
+
+    /**
+     * Boolean associated with the release of this IpFilterRuleFile.
+     */
+    private final AtomicBoolean release = new AtomicBoolean(false);
+
+    /**
+     * Class to implement the check at fix delay
+     */
+    private class CheckTask implements TimerTask {
+        public void run(Timeout timeout) throws Exception {
+            if (release.get() || timeout.isCancelled()) {
+                return;
+            }
+            try {
+                if (file.lastModified() != lastModified ||
+                        file.length() != length) {
+                    reload();
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot reload the rules from " + file +
+                        ", the previous rules are kept", e);
+            } finally {
+                if (!release.get()) {
+                    timer.newTimeout(this, checkInterval,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the file into the handler and start checking it for changes.
+     *
+     * @param handler
+     *            the handler whose rules are replaced by the content of the file
+     * @param file
+     *            the rules file
+     * @param timer
+     *            the Timer used to check the file (for instance a {@link HashedWheelTimer})
+     * @param checkInterval
+     *            the delay in ms between two checks of the file
+     * @throws IOException if the file cannot be read or parsed at construction
+     */
+    public IpFilterRuleFile(IpFilterRuleHandler handler, File file,
+            Timer timer, long checkInterval) throws IOException {
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        if (timer == null) {
+            throw new NullPointerException("timer");
+        }
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "checkInterval must be a positive integer: " +
+                            checkInterval);
+        }
+        this.handler = handler;
+        this.file = file;
+        this.timer = timer;
+        this.checkInterval = checkInterval;
+        reload();
+        timer.newTimeout(new CheckTask(), checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Load the file into the handler using the default check interval
+     *
+     * @param handler
+     *            the handler whose rules are replaced by the content of the file
+     * @param file
+     *            the rules file
+     * @param timer
+     *            the Timer used to check the file (for instance a {@link HashedWheelTimer})
+     * @throws IOException if the file cannot be read or parsed at construction
+     */
+    public IpFilterRuleFile(IpFilterRuleHandler handler, File file,
+            Timer timer) throws IOException {
+        this(handler, file, timer, DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Parse the file now and replace the rules of the handler.
+     * @throws IOException if the file cannot be read or parsed, in which case
+     *          the rules of the handler are unchanged
+     */
+    public synchronized void reload() throws IOException {
+        // Set before parsing, so that an invalid file is not parsed again until it changes
+        lastModified = file.lastModified();
+        length = file.length();
+        List<IpFilterRule> rules = parse(file);
+        handler.setAll(rules);
+        loads ++;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded " + rules.size() + " rules from " + file);
+        }
+    }
+
+    /**
+     * @param file
+     * @return the rules of the given file, in order
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static List<IpFilterRule> parse(File file) throws IOException {
+        List<IpFilterRule> rules = new ArrayList<IpFilterRule>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), CharsetUtil.US_ASCII));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber ++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                try {
+                    rules.add(parseRule(line));
+                } catch (UnknownHostException e) {
+                    throw new UnknownHostException(e.getMessage() + " at line " +
+                            lineNumber + " of " + file);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rules;
+    }
+
+    /**
+     * @param line a rule as "allow|deny subnet|all"
+     * @return the corresponding IpFilterRule
+     * @throws UnknownHostException if the rule is not valid
+     */
+    private static IpFilterRule parseRule(String line)
+            throws UnknownHostException {
+        int p = 0;
+        int length = line.length();
+        while (p < length && !Character.isWhitespace(line.charAt(p))) {
+            p ++;
+        }
+        String action = line.substring(0, p);
+        String subnet = line.substring(p).trim();
+        boolean allow;
+        if (action.equalsIgnoreCase("allow")) {
+            allow = true;
+        } else if (action.equalsIgnoreCase("deny")) {
+            allow = false;
+        } else {
+            throw new UnknownHostException("Invalid action used: " + line);
+        }
+        if (subnet.equalsIgnoreCase("all")) {
+            return new IpSubnetFilterRule(allow);
+        }
+        int slash = subnet.indexOf('/');
+        if (slash < 0) {
+            // single address
+            byte[] address = IpAddresses.parse(subnet);
+            if (address == null) {
+                throw new UnknownHostException("Invalid IP address used: " +
+                        line);
+            }
+            if (address.length == 16 &&
+                    IpAddresses.normalize(address).length == 4) {
+                return newMappedRule(allow, address, 128, line);
+            }
+            subnet = subnet + '/' + (address.length << 3);
+        } else {
+            byte[] address = IpAddresses.parse(subnet.substring(0, slash));
+            if (address != null && address.length == 16 &&
+                    IpAddresses.normalize(address).length == 4) {
+                int prefixLength;
+                try {
+                    prefixLength = Integer.parseInt(subnet.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new UnknownHostException("Invalid mask length used: " +
+                            line);
+                }
+                return newMappedRule(allow, address, prefixLength, line);
+            }
+        }
+        return new IpSubnetFilterRule(allow, subnet);
+    }
+
+    /**
+     * @param allow
+     * @param address an IPv4 mapped address ::ffff:a.b.c.d
+     * @param prefixLength the length of the prefix of the IPv6 address
+     * @param line
+     * @return the rule of the IPv4 subnet a.b.c.d/(prefixLength - 96), as in the
+     *          128-bit address space of {@link IpAddresses}
+     * @throws UnknownHostException if the prefix is not within the IPv4 mapped addresses
+     */
+    private static IpFilterRule newMappedRule(boolean allow, byte[] address,
+            int prefixLength, String line) throws UnknownHostException {
+        int ipv4PrefixLength = prefixLength - IpAddresses.IPV4_MAPPED_PREFIX_LENGTH;
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32) {
+            throw new UnknownHostException("Invalid mask length used: " + line);
+        }
+        return new IpSubnetFilterRule(allow, InetAddress.getByAddress(IpAddresses
+                .normalize(address)), ipv4PrefixLength);
+    }
+
+    /**
+     * @return the number of successful loads of the file
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return the rules file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.util.ExternalResourceReleasable#releaseExternalResources()
+     */
+    public void releaseExternalResources() {
+        release.set(true);
+        timer.stop();
+    }
+
+    @Override
+    public String toString() {
+        return "IpFilterRuleFile: " + file + " Loads: " + loads;
+    }
+}
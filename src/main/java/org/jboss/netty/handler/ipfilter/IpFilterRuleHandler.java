@@ -17,8 +17,8 @@ package org.jboss.netty.handler.ipfilter;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -26,6 +26,8 @@ import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
 
 /**
  * Implementation of Filter of IP based on ALLOW and DENY netmask (standard notations or CIDR notations).<br>
@@ -33,10 +35,14 @@ import org.jboss.netty.channel.ChannelHandler.Sharable;
  * This implementation could be changed by implementing a new {@link IpFilterRule} than default one
  * {@link IpV4SubnetFilterRule} (IPV4 support only) or {@link IpSubnetFilterRule} (IPV4 and IPV6 support).<br>
  * <br>
- * The check is done by going from step to step in the underlying array of IpFilterRule.<br>
- * Each {@link IpFilterRule} answers to the method accept if the {@link InetAddress} is accepted or not,
+ * The check is done as going from step to step in the underlying array of IpFilterRule: the first
+ * {@link IpFilterRule} that contains the {@link InetAddress} decides if it is accepted or not,
  * according to its implementation. If an InetAddress arrives at the end of the list, as in Firewall
  * usual rules, the InetAddress is therefore accepted by default.<br>
+ * The list is compiled at each change into a trie over the address bits for the
+ * {@link IpV4SubnetFilterRule} and {@link IpSubnetFilterRule}, so that the cost of the check depends
+ * on the prefix length and not on the number of rules. Other implementations of IpFilterRule are
+ * still checked one by one.<br>
  * For the {@link IpV4SubnetFilterRule} and {@link IpSubnetFilterRule} implementations:<br>
  * <ul>
  * <li>If it was constructed with True as first argument,
@@ -46,25 +52,58 @@ import org.jboss.netty.channel.ChannelHandler.Sharable;
  * </ul><br>
  * <br>
  * An empty list means allow all (no limitation).<br><br>
- * <b>For efficiency reason, you should not add/remove too frequently IpFilterRules to/from this handler.
+ * <b>For efficiency reason, you should not add/remove too frequently IpFilterRules to/from this handler,
+ * since each change rebuilds the compiled form of the list. To apply many changes at once,
+ * use <tt>setAll</tt> (or an {@link IpFilterRuleFile}) that rebuilds it only once.
+ * The <tt>compile</tt> method replaces the list by its minimal equivalent form
+ * (see {@link IpFilterRuleCompiler}).
  * You should prefer to replace an entry (<tt>set</tt> method) with an ALLOW/DENY ALL IpFilterRule
- * if possible.</b><br><br><br>
+ * if possible.</b><br><br>
+ * Optionally, an {@link IpFilterDecisionCache} keeps the decisions of the last checked addresses,
+ * an {@link IpDenyPrefilter} accepts at once most of the addresses that no DENY rule contains,
+ * and the matches of each rule can be counted (<tt>setRuleStatistics</tt>).<br><br><br>
  * <b>This handler should be created only once and reused on every pipeline since it handles
  * a global status of what is allowed or blocked.</b><br><br>
  *
- * Note that {@link IpSubnetFilterRule} which supports IPV4 and IPV6 should be used with as much as
- * possible no mixed IP protocol. Both IPV4 and IPV6 are supported but a mix (IpFilter in IPV6 notation
- * and the address from the channel in IPV4, or the reverse) can lead to wrong result.
+ * Note that IPV4 and IPV6 share one address space (see {@link IpAddresses}): an IPV4 address
+ * a.b.c.d is checked as the IPV4 mapped address ::ffff:a.b.c.d against the IPV6 rules, and only
+ * the IPV4 mapped addresses are checked against the IPV4 rules.
  * @author frederic bregier
  *
  */
 @Sharable
 public class IpFilterRuleHandler extends IpFilteringHandler {
+    /**
+     * Internal logger
+     */
+    private static final InternalLogger logger = InternalLoggerFactory
+            .getInstance(IpFilterRuleHandler.class);
+
     /**
      * List of {@link IpFilterRule}
      */
     private final CopyOnWriteArrayList<IpFilterRule> ipFilterRuleList = new CopyOnWriteArrayList<IpFilterRule>();
 
+    /**
+     * Compiled form of the list of {@link IpFilterRule}, rebuilt at each change of the list
+     */
+    private volatile IpFilterRuleIndex ipFilterRuleIndex = IpFilterRuleIndex.EMPTY;
+
+    /**
+     * Optional cache of the decisions
+     */
+    private volatile IpFilterDecisionCache decisionCache;
+
+    /**
+     * True if the {@link IpDenyPrefilter} is to be built with the rules
+     */
+    private volatile boolean denyPrefilter;
+
+    /**
+     * True if the matches of each rule are counted
+     */
+    private volatile boolean ruleStatistics;
+
     /**
      * Constructor from a new list of IpFilterRule
      * @param newList
@@ -72,6 +111,7 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
     public IpFilterRuleHandler(List<IpFilterRule> newList) {
         if (newList != null) {
             ipFilterRuleList.addAll(newList);
+            rebuild();
         }
     }
 
@@ -91,7 +131,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (ipFilterRule == null) {
             throw new NullPointerException("IpFilterRule can not be null");
         }
-        ipFilterRuleList.add(ipFilterRule);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.add(ipFilterRule);
+            rebuild();
+        }
     }
 
     /**
@@ -103,7 +146,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (ipFilterRule == null) {
             throw new NullPointerException("IpFilterRule can not be null");
         }
-        ipFilterRuleList.add(index, ipFilterRule);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.add(index, ipFilterRule);
+            rebuild();
+        }
     }
 
     /**
@@ -115,7 +161,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (c == null) {
             throw new NullPointerException("Collection can not be null");
         }
-        ipFilterRuleList.addAll(c);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.addAll(c);
+            rebuild();
+        }
     }
 
     /**
@@ -127,7 +176,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (c == null) {
             throw new NullPointerException("Collection can not be null");
         }
-        ipFilterRuleList.addAll(index, c);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.addAll(index, c);
+            rebuild();
+        }
     }
 
     /**
@@ -139,7 +191,11 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (c == null) {
             throw new NullPointerException("Collection can not be null");
         }
-        return ipFilterRuleList.addAllAbsent(c);
+        synchronized (ipFilterRuleList) {
+            int result = ipFilterRuleList.addAllAbsent(c);
+            rebuild();
+            return result;
+        }
     }
 
     /**
@@ -151,14 +207,92 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (ipFilterRule == null) {
             throw new NullPointerException("IpFilterRule can not be null");
         }
-        return ipFilterRuleList.addIfAbsent(ipFilterRule);
+        synchronized (ipFilterRuleList) {
+            boolean result = ipFilterRuleList.addIfAbsent(ipFilterRule);
+            rebuild();
+            return result;
+        }
+    }
+
+    /**
+     * Replace the whole list by the elements of the specified collection, in the order
+     * that they are returned by the specified collection's iterator.<br>
+     * The compiled form of the new list is built before the change, and is published
+     * at once, so that the accept method sees either the previous list or the new one.
+     * It is built again if the options or the compiled form change meanwhile.
+     * @param c
+     */
+    public void setAll(Collection<IpFilterRule> c) {
+        setAll(c, null);
+    }
+
+    /**
+     * Replace the whole list as <tt>setAll</tt>, only if it still contains the
+     * expected rules
+     * @param c
+     * @param expected the rules the list must contain (by identity and in order),
+     *          or null to replace it in any case
+     * @return False if the list was changed since expected was taken from it
+     */
+    private boolean setAll(Collection<IpFilterRule> c, IpFilterRule[] expected) {
+        if (c == null) {
+            throw new NullPointerException("Collection can not be null");
+        }
+        IpFilterRule[] rules = c.toArray(new IpFilterRule[c.size()]);
+        for (IpFilterRule rule: rules) {
+            if (rule == null) {
+                throw new NullPointerException("IpFilterRule can not be null");
+            }
+        }
+        for (;;) {
+            // built before the change, keeping the counters of the current rules
+            boolean prefilter = denyPrefilter;
+            boolean statistics = ruleStatistics;
+            IpFilterRuleIndex previous = ipFilterRuleIndex;
+            IpFilterRuleIndex index = new IpFilterRuleIndex(rules, prefilter,
+                    statistics? previous : null);
+            synchronized (ipFilterRuleList) {
+                if (expected != null && !isSameList(expected)) {
+                    return false;
+                }
+                if (prefilter != denyPrefilter || statistics != ruleStatistics ||
+                        previous != ipFilterRuleIndex) {
+                    // options or index changed meanwhile: built again
+                    continue;
+                }
+                ipFilterRuleList.clear();
+                ipFilterRuleList.addAll(Arrays.asList(rules));
+                ipFilterRuleIndex = index;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Must be called within a synchronized block on the list.
+     * @param rules
+     * @return True if the list contains exactly the given rules (by identity and in order)
+     */
+    private boolean isSameList(IpFilterRule[] rules) {
+        if (rules.length != ipFilterRuleList.size()) {
+            return false;
+        }
+        for (int i = 0; i < rules.length; i ++) {
+            if (ipFilterRuleList.get(i) != rules[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * Clear the list
      */
     public void clear() {
-        ipFilterRuleList.clear();
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.clear();
+            rebuild();
+        }
     }
 
     /**
@@ -210,7 +344,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (ipFilterRule == null) {
             throw new NullPointerException("IpFilterRule can not be null");
         }
-        ipFilterRuleList.remove(ipFilterRule);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.remove(ipFilterRule);
+            rebuild();
+        }
     }
 
     /**
@@ -219,7 +356,11 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
      * @return the element previously at the specified position
      */
     public IpFilterRule remove(int index) {
-        return ipFilterRuleList.remove(index);
+        synchronized (ipFilterRuleList) {
+            IpFilterRule result = ipFilterRuleList.remove(index);
+            rebuild();
+            return result;
+        }
     }
 
     /**
@@ -230,7 +371,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (c == null) {
             throw new NullPointerException("Collection can not be null");
         }
-        ipFilterRuleList.removeAll(c);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.removeAll(c);
+            rebuild();
+        }
     }
 
     /**
@@ -241,7 +385,10 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (c == null) {
             throw new NullPointerException("Collection can not be null");
         }
-        ipFilterRuleList.retainAll(c);
+        synchronized (ipFilterRuleList) {
+            ipFilterRuleList.retainAll(c);
+            rebuild();
+        }
     }
 
     /**
@@ -254,7 +401,41 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
         if (ipFilterRule == null) {
             throw new NullPointerException("IpFilterRule can not be null");
         }
-        return ipFilterRuleList.set(index, ipFilterRule);
+        synchronized (ipFilterRuleList) {
+            IpFilterRule result = ipFilterRuleList.set(index, ipFilterRule);
+            rebuild();
+            return result;
+        }
+    }
+
+    /**
+     * Replace the list by its minimal equivalent form, computed by an
+     * {@link IpFilterRuleCompiler}: the overlapping and adjacent subnets with the same
+     * action are merged, and the rules that can never match (since the previous rules
+     * cover them) are dropped and logged.<br>
+     * The counters of the rewritten rules (see <tt>setRuleStatistics</tt>) start again from 0.<br>
+     * The list is compiled without holding its lock, and compiled again if it was changed
+     * in the meantime.
+     * @return the dropped rules that could never match
+     */
+    public List<IpFilterRule> compile() {
+        IpFilterRuleCompiler compiler;
+        IpFilterRule[] rules;
+        do {
+            // snapshot of the list, compiled outside of the lock
+            rules = ipFilterRuleList.toArray(new IpFilterRule[0]);
+            compiler = new IpFilterRuleCompiler(Arrays.asList(rules));
+        } while (!setAll(compiler.getCompiledRules(), rules));
+        if (logger.isWarnEnabled()) {
+            for (IpFilterRule rule: compiler.getShadowedRules()) {
+                logger.warn("IpFilterRule never matched since covered by previous rules: " +
+                        rule);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(compiler.toString());
+        }
+        return compiler.getShadowedRules();
     }
 
     /**
@@ -271,22 +452,144 @@ public class IpFilterRuleHandler extends IpFilteringHandler {
     @Override
     protected boolean accept(ChannelHandlerContext ctx, ChannelEvent e,
             InetSocketAddress inetSocketAddress) throws Exception {
-        if (ipFilterRuleList.isEmpty()) {
+        return isAllowed(inetSocketAddress.getAddress());
+    }
+
+    /**
+     * Check the given address against the rules, as done for the remote address of each new
+     * connection, so that the same rules can be applied to another address of the client
+     * (for instance the one given by a proxy in a header of the request).
+     * @param inetAddress
+     * @return True if the address is allowed by the rules
+     */
+    public boolean isAllowed(InetAddress inetAddress) {
+        IpFilterRuleIndex index = ipFilterRuleIndex;
+        if (index.isEmpty()) {
             // No limitation neither in deny or allow, so accept
             return true;
         }
-        InetAddress inetAddress = inetSocketAddress.getAddress();
-        Iterator<IpFilterRule> iterator = ipFilterRuleList.iterator();
-        IpFilterRule ipFilterRule = null;
-        while (iterator.hasNext()) {
-            ipFilterRule = iterator.next();
-            if (ipFilterRule.contains(inetAddress)) {
-                // Match founds, is it a ALLOW or DENY rule
-                return ipFilterRule.isAllowRule();
+        byte[] address = inetAddress.getAddress();
+        // IPv4 as ::ffff:a.b.c.d, one key space for both families
+        boolean ipv4 = address.length == 4;
+        long high = ipv4? 0 : IpAddresses.high(address);
+        long low = ipv4? IpAddresses.mappedLow(IpAddresses.toInt(address))
+                : IpAddresses.low(address);
+        IpFilterDecisionCache cache = decisionCache;
+        if (cache != null) {
+            int decision = cache.get(high, low, index.getVersion());
+            if (decision != IpFilterDecisionCache.MISS) {
+                return decision == IpFilterDecisionCache.ALLOW;
             }
         }
-        // No limitation founds and no allow either, but as it is like Firewall rules, it is therefore accepted
-        return true;
+        boolean allow;
+        if (!index.mayDeny(high, low)) {
+            // No DENY rule contains this address
+            allow = true;
+        } else {
+            IpFilterRule ipFilterRule = index.lookup(high, low, inetAddress);
+            // No limitation founds and no allow either, but as it is like Firewall rules, it is therefore accepted
+            allow = ipFilterRule == null || ipFilterRule.isAllowRule();
+        }
+        if (cache != null) {
+            cache.put(high, low, allow, index.getVersion());
+        }
+        return allow;
+    }
+
+    /**
+     * Enable or disable the optional {@link IpDenyPrefilter}, a Bloom filter of the prefixes
+     * of the DENY rules rebuilt with the rules, so that most of the addresses that no DENY
+     * rule contains are accepted with a few hash probes. It is only used when all the DENY
+     * rules are {@link IpSubnetFilterRule}, {@link IpV4SubnetFilterRule} or
+     * {@link IpRangeFilterRule}, without any DENY ALL rule.
+     * @param enabled
+     */
+    public void setDenyPrefilter(boolean enabled) {
+        synchronized (ipFilterRuleList) {
+            denyPrefilter = enabled;
+            rebuild();
+        }
+    }
+
+    /**
+     * @return True if the {@link IpDenyPrefilter} is enabled and used by the current rules
+     */
+    public boolean isDenyPrefilterUsed() {
+        return ipFilterRuleIndex.hasDenyPrefilter();
+    }
+
+    /**
+     * Enable or disable the counting of the matches of each rule, so as to know which
+     * rules are used. The counters of a rule are kept while it stays in the list.<br>
+     * Note that the addresses accepted by the {@link IpDenyPrefilter} or answered by the
+     * {@link IpFilterDecisionCache} are not counted, since no rule is checked for them.
+     * @param enabled
+     */
+    public void setRuleStatistics(boolean enabled) {
+        synchronized (ipFilterRuleList) {
+            ruleStatistics = enabled;
+            rebuild();
+        }
+    }
+
+    /**
+     * @param ipFilterRule
+     * @return the number of addresses for which this rule was the first matching one,
+     *          or 0 if the rule is not in the list or if the matches are not counted
+     */
+    public long getRuleHits(IpFilterRule ipFilterRule) {
+        IpFilterRuleCounter counter = ipFilterRuleIndex.getCounter(ipFilterRule);
+        return counter == null? 0 : counter.getHits();
+    }
+
+    /**
+     * @param ipFilterRule
+     * @return the time in ms of the last match of this rule, or 0 if none
+     */
+    public long getRuleLastHit(IpFilterRule ipFilterRule) {
+        IpFilterRuleCounter counter = ipFilterRuleIndex.getCounter(ipFilterRule);
+        return counter == null? 0 : counter.getLastHit();
+    }
+
+    /**
+     * @return the number of addresses that no rule contains (accepted by default)
+     */
+    public long getDefaultHits() {
+        IpFilterRuleCounter counter = ipFilterRuleIndex.getDefaultCounter();
+        return counter == null? 0 : counter.getHits();
+    }
+
+    /**
+     * Reset the counters of all the rules
+     */
+    public void resetRuleStatistics() {
+        ipFilterRuleIndex.resetCounters();
+    }
+
+    /**
+     * Set the optional cache of the decisions, so that the rules are not evaluated again for
+     * an address already checked with the same rules.
+     * @param cache the cache to use, or null to not use any cache (default)
+     */
+    public void setDecisionCache(IpFilterDecisionCache cache) {
+        decisionCache = cache;
+    }
+
+    /**
+     * @return the cache of the decisions, or null if none
+     */
+    public IpFilterDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Rebuild the compiled form of the list, so that the accept method sees
+     * the new list at once. Must be called within a synchronized block on the list.
+     */
+    private void rebuild() {
+        ipFilterRuleIndex = new IpFilterRuleIndex(ipFilterRuleList
+                .toArray(new IpFilterRule[0]), denyPrefilter,
+                ruleStatistics? ipFilterRuleIndex : null);
     }
 
     /* (non-Javadoc)
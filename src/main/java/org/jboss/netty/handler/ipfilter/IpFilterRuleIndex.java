@@ -0,0 +1,378 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled form of an ordered array of {@link IpFilterRule}, used by {@link IpFilterRuleHandler}.<br>
+ * <br>
+ * The {@link IpSubnetFilterRule} and {@link IpV4SubnetFilterRule} are inserted into one
+ * {@link IpPrefixTrie} over the 128-bit address space of {@link IpAddresses}, an IPv4
+ * prefix a.b.c.d/n being inserted as ::ffff:a.b.c.d/(96 + n), each prefix holding the
+ * position of the first rule that uses it. The lookup returns therefore the first matching rule as the
+ * iteration over the rules would do, but with a cost depending on the prefix length.<br>
+ * Any other implementation of {@link IpFilterRule} is checked by calling its contains
+ * method, only if it comes before the rule found in the tries. The address is extracted
+ * once as primitive values, given as is to the rules implementing {@link IpRawSet}.<br>
+ * <br>
+ * An IPv4 address and its IPv4 mapped form ::ffff:a.b.c.d are therefore one and the
+ * same key, checked with one lookup against the rules of both families.<br>
+ * <br>
+ * Optionally, an {@link IpDenyPrefilter} allows at once most of the addresses that no
+ * DENY rule contains.<br>
+ * <br>
+ * This object is immutable once built.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpFilterRuleIndex {
+    /**
+     * Generator of the versions
+     */
+    private static final AtomicLong versionGenerator = new AtomicLong(0);
+
+    /**
+     * Empty index
+     */
+    static final IpFilterRuleIndex EMPTY = new IpFilterRuleIndex(
+            new IpFilterRule[0]);
+
+    /**
+     * Version of this index, different for each index built
+     */
+    private final long version = versionGenerator.incrementAndGet();
+
+    /**
+     * The rules in order
+     */
+    private final IpFilterRule[] rules;
+
+    /**
+     * Trie of the IPv4 and IPv6 rules, IPv4 being mapped into IPv6
+     */
+    private final IpPrefixTrie trie = new IpPrefixTrie();
+
+    /**
+     * Positions of the rules that cannot be inserted into the tries, in ascending order
+     */
+    private final int[] otherRules;
+
+    /**
+     * Optional prefilter of the DENY rules
+     */
+    private final IpDenyPrefilter denyPrefilter;
+
+    /**
+     * Optional counters of the matches of each rule
+     */
+    private final IpFilterRuleCounter[] counters;
+
+    /**
+     * Optional counter of the addresses that no rule contains
+     */
+    private final IpFilterRuleCounter defaultCounter;
+
+    /**
+     * @param rules the rules in order (the array is not copied)
+     */
+    IpFilterRuleIndex(IpFilterRule[] rules) {
+        this(rules, false, null);
+    }
+
+    /**
+     * @param rules the rules in order (the array is not copied)
+     * @param prefilter True to build the {@link IpDenyPrefilter} if possible
+     * @param previous the index whose counters are to be kept for the rules still
+     *          present, or null if the matches are not counted
+     */
+    IpFilterRuleIndex(IpFilterRule[] rules, boolean prefilter,
+            IpFilterRuleIndex previous) {
+        this.rules = rules;
+        denyPrefilter = prefilter? IpDenyPrefilter.newPrefilter(rules) : null;
+        if (previous == null) {
+            counters = null;
+            defaultCounter = null;
+        } else {
+            // keep the counters of the same rules (by identity)
+            Map<IpFilterRule, IpFilterRuleCounter> previousCounters = new IdentityHashMap<IpFilterRule, IpFilterRuleCounter>();
+            if (previous.counters != null) {
+                for (int i = 0; i < previous.rules.length; i ++) {
+                    previousCounters.put(previous.rules[i], previous.counters[i]);
+                }
+            }
+            counters = new IpFilterRuleCounter[rules.length];
+            for (int i = 0; i < rules.length; i ++) {
+                IpFilterRuleCounter counter = previousCounters.get(rules[i]);
+                counters[i] = counter == null? new IpFilterRuleCounter()
+                        : counter;
+            }
+            defaultCounter = previous.defaultCounter == null? new IpFilterRuleCounter()
+                    : previous.defaultCounter;
+        }
+        int[] others = new int[rules.length];
+        int nbOthers = 0;
+        for (int i = 0; i < rules.length; i ++) {
+            if (!insert(rules[i], i)) {
+                others[nbOthers ++] = i;
+            }
+        }
+        otherRules = new int[nbOthers];
+        System.arraycopy(others, 0, otherRules, 0, nbOthers);
+        trie.trim();
+    }
+
+    /**
+     * Insert the rule into the trie if possible
+     * @param rule
+     * @param position
+     * @return False if the rule cannot be inserted into the trie
+     */
+    private boolean insert(IpFilterRule rule, int position) {
+        if (rule instanceof IpSubnet) {
+            CIDR cidr = ((IpSubnet) rule).getCidr();
+            if (cidr == null) {
+                // ALL
+                trie.insert(0, 0, 0, position);
+                return true;
+            }
+            trie.insert(cidr.getBaseHigh(), cidr.getBaseLow(), cidr
+                    .getMappedMask(), position);
+            return true;
+        }
+        if (rule instanceof IpV4Subnet) {
+            IpV4Subnet subnet = (IpV4Subnet) rule;
+            if (subnet.isAll()) {
+                trie.insert(0, 0, 0, position);
+            } else {
+                insertIpV4(subnet.getSubnet(), subnet.getCidrMask(), position);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Insert the IPv4 prefix as its IPv4 mapped prefix
+     * @param ipv4
+     * @param prefixLength
+     * @param position
+     */
+    private void insertIpV4(int ipv4, int prefixLength, int position) {
+        trie.insert(0, IpAddresses.mappedLow(ipv4),
+                IpAddresses.IPV4_MAPPED_PREFIX_LENGTH + prefixLength, position);
+    }
+
+    /**
+     * @return the version of this index, greater than the one of any index built before
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param position the position of the matching rule, or NO_VALUE if none
+     * @return the matching rule, or null if none
+     */
+    private IpFilterRule matched(int position) {
+        if (counters != null) {
+            long now = System.currentTimeMillis();
+            if (position == IpPrefixTrie.NO_VALUE) {
+                defaultCounter.hit(now);
+            } else {
+                counters[position].hit(now);
+            }
+        }
+        return position == IpPrefixTrie.NO_VALUE? null : rules[position];
+    }
+
+    /**
+     * @param rule
+     * @return the counter of the given rule, or null if the rule is not in this index
+     *          or if the matches are not counted
+     */
+    IpFilterRuleCounter getCounter(IpFilterRule rule) {
+        if (counters == null) {
+            return null;
+        }
+        for (int i = 0; i < rules.length; i ++) {
+            if (rules[i] == rule) {
+                return counters[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the counter of the addresses that no rule contains, or null if
+     *          the matches are not counted
+     */
+    IpFilterRuleCounter getDefaultCounter() {
+        return defaultCounter;
+    }
+
+    /**
+     * Reset all the counters
+     */
+    void resetCounters() {
+        if (counters != null) {
+            for (IpFilterRuleCounter counter: counters) {
+                counter.reset();
+            }
+            defaultCounter.reset();
+        }
+    }
+
+    /**
+     * @return True if the {@link IpDenyPrefilter} is used
+     */
+    boolean hasDenyPrefilter() {
+        return denyPrefilter != null;
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an integer
+     * @return False if no DENY rule contains the address, so that it is allowed
+     *          without any lookup
+     */
+    boolean mayDeny(int ipv4) {
+        return denyPrefilter == null || denyPrefilter.mayDeny(ipv4);
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @return False if no DENY rule contains the address, so that it is allowed
+     *          without any lookup
+     */
+    boolean mayDeny(long high, long low) {
+        return denyPrefilter == null || denyPrefilter.mayDeny(high, low);
+    }
+
+    /**
+     * @return True if there is no rule
+     */
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+
+    /**
+     * @return the rules in order
+     */
+    IpFilterRule[] getRules() {
+        return rules;
+    }
+
+    /**
+     * @param inetAddress
+     * @return the first rule that contains the given address, or null if none
+     */
+    IpFilterRule lookup(InetAddress inetAddress) {
+        byte[] address = inetAddress.getAddress();
+        if (address.length == 4) {
+            return lookup(IpAddresses.toInt(address), inetAddress);
+        }
+        return lookup(IpAddresses.high(address), IpAddresses.low(address),
+                inetAddress);
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an integer
+     * @param inetAddress the same address as an InetAddress, or null to create it
+     *          only if a rule needs it
+     * @return the first rule that contains the given address, or null if none
+     */
+    IpFilterRule lookup(int ipv4, InetAddress inetAddress) {
+        int best = trie.lookup(0, IpAddresses.mappedLow(ipv4), 128);
+        for (int position: otherRules) {
+            if (position >= best) {
+                break;
+            }
+            IpFilterRule rule = rules[position];
+            boolean contained;
+            if (rule instanceof IpRawSet) {
+                contained = ((IpRawSet) rule).contains(ipv4);
+            } else {
+                if (inetAddress == null) {
+                    inetAddress = toInetAddress(new byte[] {
+                            (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16),
+                            (byte) (ipv4 >>> 8), (byte) ipv4 });
+                }
+                contained = rule.contains(inetAddress);
+            }
+            if (contained) {
+                return matched(position);
+            }
+        }
+        return matched(best);
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @param inetAddress the same address as an InetAddress, or null to create it
+     *          only if a rule needs it
+     * @return the first rule that contains the given address, or null if none
+     */
+    IpFilterRule lookup(long high, long low, InetAddress inetAddress) {
+        if (IpAddresses.isIpV4Mapped(high, low)) {
+            return lookup((int) low, inetAddress);
+        }
+        int best = trie.lookup(high, low, 128);
+        for (int position: otherRules) {
+            if (position >= best) {
+                break;
+            }
+            IpFilterRule rule = rules[position];
+            boolean contained;
+            if (rule instanceof IpRawSet) {
+                contained = ((IpRawSet) rule).contains(high, low);
+            } else {
+                if (inetAddress == null) {
+                    byte[] address = new byte[16];
+                    for (int i = 0; i < 8; i ++) {
+                        address[i] = (byte) (high >>> 56 - (i << 3));
+                        address[i + 8] = (byte) (low >>> 56 - (i << 3));
+                    }
+                    inetAddress = toInetAddress(address);
+                }
+                contained = rule.contains(inetAddress);
+            }
+            if (contained) {
+                return matched(position);
+            }
+        }
+        return matched(best);
+    }
+
+    /**
+     * @param address
+     * @return the InetAddress for the given address bytes
+     */
+    private static InetAddress toInetAddress(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // this should never happen since the length is valid
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+
+/**
+ * {@link ChannelPipelineFactory} that checks the remote address of each accepted channel
+ * against the rules of an {@link IpFilterRuleHandler} before the child pipeline is built.<br>
+ * <br>
+ * Used as the pipeline factory of a server, it first gives each accepted channel a pipeline
+ * holding one shared filtering handler only. When the channel is opened, this handler checks
+ * its remote address:
+ * <ul>
+ * <li>if it is refused, the channel is closed at once: the real pipeline (codecs, traffic
+ *     shaping, aggregators...) is never built, so a refused connection costs almost nothing,
+ *     which matters under a flood;</li>
+ * <li>if it is allowed, the pipeline of the wrapped factory is built, its handlers are moved
+ *     into the channel pipeline, the filtering handler removes itself and the event goes on
+ *     to the new handlers.</li>
+ * </ul>
+ * If the remote address is not known yet when the channel is opened, the OPEN and BOUND events
+ * are kept until the CONNECTED event, then replayed to the new handlers once allowed.<br>
+ * <br>
+ * Since the handlers built by the wrapped factory are moved from a pipeline that is never
+ * attached to the channel, the {@link org.jboss.netty.channel.LifeCycleAwareChannelHandler}
+ * among them see their beforeAdd and afterAdd methods called twice (once detached).<br>
+ * The handlers that need to see all the events of all the channels, such as
+ * {@link IpConnectionLimitFilterHandler}, are to be kept in the wrapped factory.<br>
+ * <br>
+ * Example:<br>
+ * <tt>bootstrap.setPipelineFactory(new IpFilteringPipelineFactory(myPipelineFactory, ipFilterRuleHandler));</tt>
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpFilteringPipelineFactory implements ChannelPipelineFactory {
+    /**
+     * Name of the filtering handler in the pipeline
+     */
+    public static final String NAME = "ipFilteringGate";
+
+    private final ChannelPipelineFactory factory;
+
+    private final IpFilterRuleHandler ruleHandler;
+
+    private final Gate gate = new Gate();
+
+    private final AtomicLong refusedChannels = new AtomicLong(0);
+
+    /**
+     * @param factory the factory of the pipelines of the allowed channels
+     * @param ruleHandler the rules checked against the remote address of each channel
+     */
+    public IpFilteringPipelineFactory(ChannelPipelineFactory factory,
+            IpFilterRuleHandler ruleHandler) {
+        if (factory == null) {
+            throw new NullPointerException("factory");
+        }
+        if (ruleHandler == null) {
+            throw new NullPointerException("ruleHandler");
+        }
+        this.factory = factory;
+        this.ruleHandler = ruleHandler;
+    }
+
+    public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast(NAME, gate);
+        return pipeline;
+    }
+
+    /**
+     * Returns the number of channels refused since the creation of this factory.
+     */
+    public long getRefusedChannels() {
+        return refusedChannels.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IpFilteringPipelineFactory with Refused: " +
+                refusedChannels.get();
+    }
+
+    /**
+     * Attachment of the channels refused
+     */
+    private static final Object REFUSED = new Object();
+
+    /**
+     * Attachment of the channels allowed, until the filtering handler is removed
+     */
+    private static final Object ALLOWED = new Object();
+
+    /**
+     * Filtering handler shared by all the pipelines, the events kept until the decision
+     * being attached to the context
+     */
+    @Sharable
+    private final class Gate implements ChannelUpstreamHandler {
+        Gate() {
+            super();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e)
+                throws Exception {
+            Object attachment = ctx.getAttachment();
+            if (attachment == REFUSED) {
+                // nothing goes further for a refused channel
+                return;
+            }
+            if (attachment == ALLOWED) {
+                ctx.sendUpstream(e);
+                return;
+            }
+            SocketAddress remoteAddress = ctx.getChannel().getRemoteAddress();
+            boolean decisive = e instanceof ChannelStateEvent &&
+                    ((ChannelStateEvent) e).getState() == ChannelState.CONNECTED;
+            if (!(remoteAddress instanceof InetSocketAddress) && !decisive) {
+                // kept until the remote address is known
+                List<ChannelEvent> events = (List<ChannelEvent>) attachment;
+                if (events == null) {
+                    events = new ArrayList<ChannelEvent>(2);
+                    ctx.setAttachment(events);
+                }
+                events.add(e);
+                return;
+            }
+            if (!(remoteAddress instanceof InetSocketAddress) ||
+                    !ruleHandler.isAllowed(((InetSocketAddress) remoteAddress)
+                            .getAddress())) {
+                ctx.setAttachment(REFUSED);
+                refusedChannels.incrementAndGet();
+                Channels.close(ctx.getChannel());
+                return;
+            }
+            ChannelPipeline pipeline = ctx.getPipeline();
+            for (Map.Entry<String, ChannelHandler> entry: factory.getPipeline()
+                    .toMap().entrySet()) {
+                pipeline.addLast(entry.getKey(), entry.getValue());
+            }
+            ctx.setAttachment(ALLOWED);
+            if (attachment != null) {
+                for (ChannelEvent event: (List<ChannelEvent>) attachment) {
+                    ctx.sendUpstream(event);
+                }
+            }
+            ctx.sendUpstream(e);
+            pipeline.remove(this);
+        }
+    }
+}
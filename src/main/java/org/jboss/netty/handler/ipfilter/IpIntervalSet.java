@@ -0,0 +1,344 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of addresses as sorted disjoint intervals in the 128-bit address space of
+ * {@link IpAddresses} (IPv4 being mapped into IPv6), used by {@link IpFilterRuleCompiler}.<br>
+ * <br>
+ * Each interval is stored as 4 longs in one array: the high and low 64 bits of its start,
+ * then the high and low 64 bits of its end (included). An interval added after the last one
+ * (or overlapping it from its start) is merged at once, the other ones are sorted and merged
+ * lazily, before any operation that needs it.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpIntervalSet {
+    /**
+     * Start and end of each interval
+     */
+    private long[] bounds = new long[16];
+
+    /**
+     * Number of intervals
+     */
+    private int size;
+
+    /**
+     * True if the intervals are sorted, disjoint and not adjacent
+     */
+    private boolean normalized = true;
+
+    IpIntervalSet() {
+    }
+
+    /**
+     * @param rule
+     * @return the set of the addresses contained by the rule, or null if the rule is not
+     *          an {@link IpSubnet}, {@link IpV4Subnet} or {@link IpRangeFilterRule}
+     */
+    static IpIntervalSet of(IpFilterRule rule) {
+        IpIntervalSet set = new IpIntervalSet();
+        if (rule instanceof IpSubnet) {
+            CIDR cidr = ((IpSubnet) rule).getCidr();
+            if (cidr == null) {
+                set.addPrefix(0, 0, 0);
+            } else {
+                set.addPrefix(cidr.getBaseHigh(), cidr.getBaseLow(), cidr
+                        .getMappedMask());
+            }
+        } else if (rule instanceof IpV4Subnet) {
+            IpV4Subnet subnet = (IpV4Subnet) rule;
+            if (subnet.isAll()) {
+                set.addPrefix(0, 0, 0);
+            } else {
+                set.addPrefix(0, IpAddresses.mappedLow(subnet.getSubnet()),
+                        IpAddresses.IPV4_MAPPED_PREFIX_LENGTH +
+                                subnet.getCidrMask());
+            }
+        } else if (rule instanceof IpRangeFilterRule) {
+            IpRangeFilterRule range = (IpRangeFilterRule) rule;
+            int[] starts = range.getIpV4Starts();
+            int[] ends = range.getIpV4Ends();
+            for (int i = 0; i < starts.length; i ++) {
+                set.add(0, IpAddresses.mappedLow(starts[i]), 0, IpAddresses
+                        .mappedLow(ends[i]));
+            }
+            long[] starts6 = range.getIpV6Starts();
+            long[] ends6 = range.getIpV6Ends();
+            for (int i = 0; i < starts6.length; i += 2) {
+                set.add(starts6[i], starts6[i + 1], ends6[i], ends6[i + 1]);
+            }
+        } else {
+            return null;
+        }
+        return set;
+    }
+
+    /**
+     * Add the interval [start, end]
+     */
+    void add(long startHigh, long startLow, long endHigh, long endLow) {
+        int index = size << 2;
+        if (index == bounds.length) {
+            bounds = Arrays.copyOf(bounds, index << 1);
+        }
+        if (size > 0 &&
+                touches(startHigh, startLow, bounds[index - 2], bounds[index - 1])) {
+            if (normalized &&
+                    IpRangeFilterRule.compare(startHigh, startLow,
+                            bounds[index - 4], bounds[index - 3]) >= 0) {
+                // overlapping or following at once the last one: merged
+                if (IpRangeFilterRule.compare(endHigh, endLow,
+                        bounds[index - 2], bounds[index - 1]) > 0) {
+                    bounds[index - 2] = endHigh;
+                    bounds[index - 1] = endLow;
+                }
+                return;
+            }
+            // not after the last one, to be sorted and merged
+            normalized = false;
+        }
+        bounds[index] = startHigh;
+        bounds[index + 1] = startLow;
+        bounds[index + 2] = endHigh;
+        bounds[index + 3] = endLow;
+        size ++;
+    }
+
+    /**
+     * Add all the addresses of the prefix
+     */
+    void addPrefix(long high, long low, int length) {
+        long maskHigh = mask(length);
+        long maskLow = mask(length - 64);
+        add(high & maskHigh, low & maskLow, high | ~maskHigh, low | ~maskLow);
+    }
+
+    /**
+     * @param length a mask length relative to a 64 bits half of an address
+     * @return the mask of this half
+     */
+    private static long mask(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (length >= 64) {
+            return -1L;
+        }
+        return -1L << 64 - length;
+    }
+
+    /**
+     * @return True if an interval starting at start overlaps or follows at once an
+     *          interval ending at end, the intervals being sorted by start
+     */
+    private static boolean touches(long startHigh, long startLow,
+            long endHigh, long endLow) {
+        if (endHigh == -1L && endLow == -1L) {
+            return true;
+        }
+        return IpRangeFilterRule.compare(startHigh, startLow,
+                endLow == -1L? endHigh + 1 : endHigh, endLow + 1) <= 0;
+    }
+
+    /**
+     * Sort the intervals by start and merge the overlapping or adjacent ones
+     */
+    private void normalize() {
+        if (normalized) {
+            return;
+        }
+        int[] order = sortedOrder(bounds, 0, size);
+        long[] unsorted = bounds;
+        long[] sorted = new long[Math.max(16, size << 2)];
+        int nb = 0;
+        for (int position: order) {
+            int i = position << 2;
+            if (nb > 0) {
+                int last = nb - 1 << 2;
+                long endHigh = sorted[last + 2];
+                long endLow = sorted[last + 3];
+                if (touches(unsorted[i], unsorted[i + 1], endHigh, endLow)) {
+                    // overlapping or adjacent
+                    if (IpRangeFilterRule.compare(unsorted[i + 2],
+                            unsorted[i + 3], endHigh, endLow) > 0) {
+                        sorted[last + 2] = unsorted[i + 2];
+                        sorted[last + 3] = unsorted[i + 3];
+                    }
+                    continue;
+                }
+            }
+            System.arraycopy(unsorted, i, sorted, nb << 2, 4);
+            nb ++;
+        }
+        bounds = sorted;
+        size = nb;
+        normalized = true;
+    }
+
+    /**
+     * @param bounds intervals stored as 4 longs each, as in this class
+     * @param offset 0 to sort by start, 2 to sort by end
+     * @param size the number of intervals
+     * @return the positions of the intervals sorted by start (or by end)
+     */
+    static int[] sortedOrder(long[] bounds, int offset, int size) {
+        return sortedOrder(bounds, offset, 4, size);
+    }
+
+    /**
+     * @param values addresses stored as 2 longs (high then low 64 bits) at offset
+     *          in each entry of stride longs
+     * @param offset
+     * @param stride
+     * @param size the number of entries
+     * @return the positions of the entries sorted by unsigned address, the equal
+     *          ones keeping their order
+     */
+    static int[] sortedOrder(long[] values, int offset, int stride, int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i ++) {
+            order[i] = i;
+        }
+        // bottom-up merge sort
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width <<= 1) {
+            for (int from = 0; from < size; from += width << 1) {
+                int middle = Math.min(from + width, size);
+                int to = Math.min(from + (width << 1), size);
+                int i = from;
+                int j = middle;
+                int k = from;
+                while (i < middle && j < to) {
+                    int a = order[i] * stride + offset;
+                    int b = order[j] * stride + offset;
+                    if (IpRangeFilterRule.compare(values[b], values[b + 1],
+                            values[a], values[a + 1]) < 0) {
+                        buffer[k ++] = order[j ++];
+                    } else {
+                        buffer[k ++] = order[i ++];
+                    }
+                }
+                while (i < middle) {
+                    buffer[k ++] = order[i ++];
+                }
+                while (j < to) {
+                    buffer[k ++] = order[j ++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+
+    /**
+     * @return the number of intervals, once merged
+     */
+    int size() {
+        normalize();
+        return size;
+    }
+
+    /**
+     * @return True if there is no address in this set
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return True if this set contains all the addresses
+     */
+    boolean isAll() {
+        normalize();
+        return size == 1 && bounds[0] == 0 && bounds[1] == 0 &&
+                bounds[2] == -1L && bounds[3] == -1L;
+    }
+
+    long getStartHigh(int index) {
+        return bounds[index << 2];
+    }
+
+    long getStartLow(int index) {
+        return bounds[(index << 2) + 1];
+    }
+
+    long getEndHigh(int index) {
+        return bounds[(index << 2) + 2];
+    }
+
+    long getEndLow(int index) {
+        return bounds[(index << 2) + 3];
+    }
+
+    /**
+     * @param max the maximum number of prefixes
+     * @return the prefixes covering exactly this set, each as {high, low, length},
+     *          or null if there are more than max prefixes
+     */
+    List<long[]> toPrefixes(int max) {
+        normalize();
+        List<long[]> prefixes = new ArrayList<long[]>();
+        for (int i = 0; i < size << 2; i += 4) {
+            long high = bounds[i];
+            long low = bounds[i + 1];
+            long endHigh = bounds[i + 2];
+            long endLow = bounds[i + 3];
+            for (;;) {
+                // largest block aligned on current and not going after end
+                int blockSize = low == 0? high == 0? 128 : 64 + Long
+                        .numberOfTrailingZeros(high) : Long
+                        .numberOfTrailingZeros(low);
+                long lastHigh;
+                long lastLow;
+                for (;;) {
+                    if (blockSize >= 64) {
+                        lastHigh = blockSize == 128? -1L : high |
+                                (1L << blockSize - 64) - 1;
+                        lastLow = -1L;
+                    } else {
+                        lastHigh = high;
+                        lastLow = low | (1L << blockSize) - 1;
+                    }
+                    if (blockSize == 0 ||
+                            IpRangeFilterRule.compare(lastHigh, lastLow,
+                                    endHigh, endLow) <= 0) {
+                        break;
+                    }
+                    blockSize --;
+                }
+                if (prefixes.size() == max) {
+                    return null;
+                }
+                prefixes.add(new long[] { high, low, 128 - blockSize });
+                if (lastHigh == endHigh && lastLow == endLow) {
+                    break;
+                }
+                low = lastLow + 1;
+                high = low == 0? lastHigh + 1 : lastHigh;
+            }
+        }
+        return prefixes;
+    }
+}
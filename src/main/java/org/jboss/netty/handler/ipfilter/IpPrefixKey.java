@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+/**
+ * Prefix of an address in the 128-bit address space of {@link IpAddresses}, used as a map key
+ * by the handlers that count per address or per prefix, so that an IPv4 address and its IPv4
+ * mapped form are counted together.<br>
+ * This object is immutable.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpPrefixKey {
+    private final long high;
+    private final long low;
+
+    /**
+     * Hash of the key, all its bits depending on all the bits of the address
+     * (as the low bits of a prefix are all zero)
+     */
+    private final int hash;
+
+    private IpPrefixKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+        long h = fmix64(fmix64(high) ^ low);
+        hash = (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * @param address the address as 4 or 16 bytes
+     * @param ipv4PrefixLength the length of the prefix if the address is an IPv4 one
+     *          (or an IPv4 mapped one)
+     * @param ipv6PrefixLength the length of the prefix if the address is an IPv6 one
+     * @return the key of the prefix of the address
+     */
+    static IpPrefixKey newKey(byte[] address, int ipv4PrefixLength,
+            int ipv6PrefixLength) {
+        address = IpAddresses.normalize(address);
+        if (address.length == 4) {
+            int mask = ipv4PrefixLength == 0? 0 : -1 << 32 - ipv4PrefixLength;
+            return new IpPrefixKey(0, IpAddresses.mappedLow(IpAddresses
+                    .toInt(address) & mask));
+        }
+        return new IpPrefixKey(IpAddresses.high(address) &
+                mask(ipv6PrefixLength), IpAddresses.low(address) &
+                mask(ipv6PrefixLength - 64));
+    }
+
+    /**
+     * @param length a mask length relative to a 64 bits half of an IPv6 address
+     * @return the mask of this half
+     */
+    private static long mask(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (length >= 64) {
+            return -1L;
+        }
+        return -1L << 64 - length;
+    }
+
+    /**
+     * @param k
+     * @return the finalization mix of MurmurHash3 of k
+     */
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof IpPrefixKey)) {
+            return false;
+        }
+        IpPrefixKey other = (IpPrefixKey) obj;
+        return other.high == high && other.low == low;
+    }
+}
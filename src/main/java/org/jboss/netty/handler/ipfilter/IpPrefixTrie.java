@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.util.Arrays;
+
+/**
+ * Binary trie over the bits of an address (up to 128 bits, most significant bit first),
+ * where each prefix holds the lowest value inserted for it.<br>
+ * <br>
+ * The address is given as two longs: the high 64 bits then the low 64 bits. An IPv4 address
+ * is given as its IPv4 mapped form ::ffff:a.b.c.d (see {@link IpAddresses}).<br>
+ * The lookup returns the lowest value among all the prefixes of the given address,
+ * so its cost depends on the prefix lengths, not on the number of prefixes.<br>
+ * The nodes are stored in arrays so that the lookup does not allocate anything.
+ *
+ * @author frederic bregier
+ *
+ */
+final class IpPrefixTrie {
+    /**
+     * Value returned when no prefix matches
+     */
+    static final int NO_VALUE = Integer.MAX_VALUE;
+
+    /**
+     * Children of each node (2 per node: bit 0 then bit 1). 0 means no child since
+     * the root (node 0) is never a child.
+     */
+    private int[] children;
+
+    /**
+     * Value of each node
+     */
+    private int[] values;
+
+    /**
+     * Number of nodes
+     */
+    private int size;
+
+    IpPrefixTrie() {
+        children = new int[32];
+        values = new int[16];
+        values[0] = NO_VALUE;
+        size = 1;
+    }
+
+    /**
+     * @param hi the high 64 bits of the address
+     * @param lo the low 64 bits of the address
+     * @param index the index of the bit (0 is the most significant bit)
+     * @return the bit of the address at the given index
+     */
+    static int bit(long hi, long lo, int index) {
+        if (index < 64) {
+            return (int) (hi >>> 63 - index) & 1;
+        }
+        return (int) (lo >>> 127 - index) & 1;
+    }
+
+    /**
+     * Insert the value for the given prefix, keeping the lowest value if the prefix
+     * already holds one.
+     * @param hi the high 64 bits of the prefix
+     * @param lo the low 64 bits of the prefix
+     * @param prefixLength the number of significant bits
+     * @param value
+     */
+    void insert(long hi, long lo, int prefixLength, int value) {
+        int node = 0;
+        for (int i = 0; i < prefixLength; i ++) {
+            int slot = (node << 1) + bit(hi, lo, i);
+            int child = children[slot];
+            if (child == 0) {
+                child = newNode();
+                children[slot] = child;
+            }
+            node = child;
+        }
+        if (value < values[node]) {
+            values[node] = value;
+        }
+    }
+
+    private int newNode() {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size << 1);
+            children = Arrays.copyOf(children, size << 2);
+        }
+        values[size] = NO_VALUE;
+        return size ++;
+    }
+
+    /**
+     * @param hi the high 64 bits of the address
+     * @param lo the low 64 bits of the address
+     * @param maxLength the number of bits of the address
+     * @return the lowest value of the prefixes of the given address, or NO_VALUE
+     */
+    int lookup(long hi, long lo, int maxLength) {
+        int node = 0;
+        int best = values[0];
+        for (int i = 0; i < maxLength; i ++) {
+            node = children[(node << 1) + bit(hi, lo, i)];
+            if (node == 0) {
+                break;
+            }
+            if (values[node] < best) {
+                best = values[node];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Release the unused part of the arrays once all prefixes are inserted
+     */
+    void trim() {
+        values = Arrays.copyOf(values, size);
+        children = Arrays.copyOf(children, size << 1);
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only database of IPv4 and IPv6 ranges, each associated with a class id (such as an
+ * ASN or a region), read from a memory-mapped file built by {@link IpRangeDatabaseBuilder}.<br>
+ * <br>
+ * The ranges are never copied into the heap: the file is mapped once, so that opening a
+ * database of millions of ranges is immediate, and each query is a binary search over the
+ * mapped sorted range starts. The pages of the file are shared by all the processes that map it,
+ * and loaded by the operating system as they are used.<br>
+ * <br>
+ * As for the rules (see {@link IpAddresses}), an IPv4 mapped address ::ffff:a.b.c.d is checked
+ * against the IPv4 ranges.<br>
+ * <br>
+ * It is an {@link IpSet} containing all the addresses of all the ranges, and <tt>getClassSet</tt>
+ * gives the {@link IpSet} of the addresses of one class, for instance to wrap it into an
+ * {@link IpFilterRule}.<br>
+ * <br>
+ * The file format (all values in big endian order) is:
+ * <ul>
+ * <li>a header of 4 integers: the magic number 0x49505244 ("IPRD"), the format version,
+ *     the number N4 of IPv4 ranges and the number N6 of IPv6 ranges,</li>
+ * <li>N4 integers for the start of the IPv4 ranges (sorted, unsigned), N4 integers for their end
+ *     (included) and N4 integers for their class id,</li>
+ * <li>padding up to a multiple of 8 bytes,</li>
+ * <li>2 x N6 longs for the start of the IPv6 ranges (high then low 64 bits, sorted, unsigned),
+ *     2 x N6 longs for their end (included) and N6 integers for their class id.</li>
+ * </ul>
+ * The ranges are disjoint, and no IPv6 range contains an IPv4 mapped address. The size of
+ * the file is limited to 2 GB.<br>
+ * <br>
+ * This object is immutable and thread safe.
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpRangeDatabase implements IpRawSet {
+    /**
+     * Magic number of the file format ("IPRD")
+     */
+    static final int MAGIC = 0x49505244;
+
+    /**
+     * Version of the file format
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Class id returned when no range contains the address
+     */
+    public static final int NO_CLASS = -1;
+
+    private final ByteBuffer buffer;
+
+    private final int ipv4Size;
+
+    private final int ipv6Size;
+
+    /**
+     * Offsets in bytes of the columns
+     */
+    private final int ipv4EndsOffset;
+
+    private final int ipv4ClassesOffset;
+
+    private final int ipv6StartsOffset;
+
+    private final int ipv6EndsOffset;
+
+    private final int ipv6ClassesOffset;
+
+    /**
+     * Map the given database file
+     * @param file a file written by {@link IpRangeDatabaseBuilder}
+     * @throws IOException if the file cannot be read or is not a valid database
+     */
+    public IpRangeDatabase(File file) throws IOException {
+        this(map(file));
+    }
+
+    /**
+     * @param buffer the content of a database (from position 0, not copied)
+     * @throws IOException if the content is not a valid database
+     */
+    public IpRangeDatabase(ByteBuffer buffer) throws IOException {
+        if (buffer == null) {
+            throw new NullPointerException("buffer");
+        }
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an IP range database");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported IP range database version: " +
+                    buffer.getInt(4));
+        }
+        ipv4Size = buffer.getInt(8);
+        ipv6Size = buffer.getInt(12);
+        if (ipv4Size < 0 || ipv6Size < 0 ||
+                buffer.limit() != fileSize(ipv4Size, ipv6Size)) {
+            throw new IOException("Truncated or corrupted IP range database");
+        }
+        ipv4EndsOffset = HEADER_SIZE + (ipv4Size << 2);
+        ipv4ClassesOffset = ipv4EndsOffset + (ipv4Size << 2);
+        ipv6StartsOffset = ipv6Offset(ipv4Size);
+        ipv6EndsOffset = ipv6StartsOffset + (ipv6Size << 4);
+        ipv6ClassesOffset = ipv6EndsOffset + (ipv6Size << 4);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("IP range database too large: " + file);
+            }
+            // the mapping stays valid once the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @param ipv4Size
+     * @return the offset in bytes of the IPv6 columns
+     */
+    static int ipv6Offset(int ipv4Size) {
+        long offset = HEADER_SIZE + ipv4Size * 12L;
+        return (int) (offset + 7 & ~7L);
+    }
+
+    /**
+     * @param ipv4Size
+     * @param ipv6Size
+     * @return the size in bytes of a database, or -1 if it is larger than 2 GB
+     */
+    static long fileSize(int ipv4Size, int ipv6Size) {
+        long size = (HEADER_SIZE + ipv4Size * 12L + 7 & ~7L) + ipv6Size * 36L;
+        return size > Integer.MAX_VALUE? -1 : size;
+    }
+
+    /**
+     * @param inetAddress
+     * @return the class id of the range containing the address, or NO_CLASS if none
+     */
+    public int getClassId(InetAddress inetAddress) {
+        byte[] address = inetAddress.getAddress();
+        if (address.length == 4) {
+            return getClassId(IpAddresses.toInt(address));
+        }
+        return getClassId(IpAddresses.high(address), IpAddresses.low(address));
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an integer
+     * @return the class id of the range containing the address, or NO_CLASS if none
+     */
+    public int getClassId(int ipv4) {
+        int key = ipv4 ^ Integer.MIN_VALUE;
+        int low = 0;
+        int high = ipv4Size - 1;
+        // find the last range starting before or at the address
+        while (low <= high) {
+            int mid = low + high >>> 1;
+            if ((buffer.getInt(HEADER_SIZE + (mid << 2)) ^ Integer.MIN_VALUE) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high >= 0 &&
+                (buffer.getInt(ipv4EndsOffset + (high << 2)) ^ Integer.MIN_VALUE) >= key) {
+            return buffer.getInt(ipv4ClassesOffset + (high << 2));
+        }
+        return NO_CLASS;
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @return the class id of the range containing the address, or NO_CLASS if none
+     */
+    public int getClassId(long high, long low) {
+        if (IpAddresses.isIpV4Mapped(high, low)) {
+            return getClassId((int) low);
+        }
+        int lowIndex = 0;
+        int highIndex = ipv6Size - 1;
+        // find the last range starting before or at the address
+        while (lowIndex <= highIndex) {
+            int mid = lowIndex + highIndex >>> 1;
+            int offset = ipv6StartsOffset + (mid << 4);
+            if (IpRangeFilterRule.compare(buffer.getLong(offset), buffer
+                    .getLong(offset + 8), high, low) <= 0) {
+                lowIndex = mid + 1;
+            } else {
+                highIndex = mid - 1;
+            }
+        }
+        if (highIndex >= 0) {
+            int offset = ipv6EndsOffset + (highIndex << 4);
+            if (IpRangeFilterRule.compare(buffer.getLong(offset), buffer
+                    .getLong(offset + 8), high, low) >= 0) {
+                return buffer.getInt(ipv6ClassesOffset + (highIndex << 2));
+            }
+        }
+        return NO_CLASS;
+    }
+
+    public boolean contains(InetAddress inetAddress) {
+        return getClassId(inetAddress) != NO_CLASS;
+    }
+
+    public boolean contains(int ipv4) {
+        return getClassId(ipv4) != NO_CLASS;
+    }
+
+    public boolean contains(long high, long low) {
+        return getClassId(high, low) != NO_CLASS;
+    }
+
+    /**
+     * @param classId
+     * @return the {@link IpSet} of the addresses of the ranges of the given class
+     */
+    public IpRawSet getClassSet(final int classId) {
+        return new IpRawSet() {
+            public boolean contains(InetAddress inetAddress) {
+                return getClassId(inetAddress) == classId;
+            }
+
+            public boolean contains(int ipv4) {
+                return getClassId(ipv4) == classId;
+            }
+
+            public boolean contains(long high, long low) {
+                return getClassId(high, low) == classId;
+            }
+        };
+    }
+
+    /**
+     * @return the number of IPv4 ranges
+     */
+    public int getIpV4Size() {
+        return ipv4Size;
+    }
+
+    /**
+     * @return the number of IPv6 ranges
+     */
+    public int getIpV6Size() {
+        return ipv6Size;
+    }
+
+    @Override
+    public String toString() {
+        return "IpRangeDatabase with IPv4 Ranges: " + ipv4Size +
+                " IPv6 Ranges: " + ipv6Size;
+    }
+}
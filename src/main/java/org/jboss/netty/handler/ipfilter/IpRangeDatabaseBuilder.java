@@ -0,0 +1,458 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Builder of the file of an {@link IpRangeDatabase}, from ranges given one by one or as CSV.<br>
+ * <br>
+ * The CSV format is one range per line, either <tt>start,end,classId</tt> (both addresses
+ * included) or <tt>subnet,classId</tt> (CIDR notation such as 10.10.10.0/24 or 2001:db8::/32),
+ * the class id being a positive integer. Any further field is ignored, as well as the
+ * double quotes around the fields, the empty lines and the lines starting with '#'.<br>
+ * <br>
+ * The ranges must not overlap; the adjacent ranges of the same class are merged.
+ * The part of an IPv6 range within the IPv4 mapped prefix ::ffff:0:0/96 is stored
+ * as an IPv4 range.<br>
+ * <br>
+ * Example:<br>
+ * <tt>IpRangeDatabaseBuilder builder = new IpRangeDatabaseBuilder();</tt><br>
+ * <tt>builder.addCsv(new FileReader("asn.csv"));</tt><br>
+ * <tt>builder.write(new File("asn.db"));</tt><br>
+ * <tt>IpRangeDatabase database = new IpRangeDatabase(new File("asn.db"));</tt>
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpRangeDatabaseBuilder {
+    private int[] ipv4Starts = new int[16];
+    private int[] ipv4Ends = new int[16];
+    private int[] ipv4Classes = new int[16];
+    private int ipv4Size;
+
+    private long[] ipv6Starts = new long[32];
+    private long[] ipv6Ends = new long[32];
+    private int[] ipv6Classes = new int[16];
+    private int ipv6Size;
+
+    /**
+     * True once the ranges are sorted and merged
+     */
+    private boolean merged = true;
+
+    public IpRangeDatabaseBuilder() {
+    }
+
+    /**
+     * Add the range of all the addresses of the subnet
+     * @param subnet a subnet in CIDR notation or a single address
+     * @param classId
+     * @throws UnknownHostException if the subnet is not valid
+     */
+    public void add(String subnet, int classId) throws UnknownHostException {
+        checkClassId(classId);
+        int p = subnet.indexOf('/');
+        byte[] address = parse(p < 0? subnet : subnet.substring(0, p));
+        int maxMask = address.length << 3;
+        int mask = maxMask;
+        if (p >= 0) {
+            try {
+                mask = Integer.parseInt(subnet.substring(p + 1));
+            } catch (NumberFormatException e) {
+                mask = -1;
+            }
+            if (mask < 0 || mask > maxMask) {
+                throw new UnknownHostException("Invalid mask length used: " +
+                        subnet);
+            }
+        }
+        long high;
+        long low;
+        if (address.length == 4) {
+            high = 0;
+            low = IpAddresses.mappedLow(IpAddresses.toInt(address));
+            mask += IpAddresses.IPV4_MAPPED_PREFIX_LENGTH;
+        } else {
+            high = IpAddresses.high(address);
+            low = IpAddresses.low(address);
+        }
+        long maskHigh = mask(mask);
+        long maskLow = mask(mask - 64);
+        addRange(high & maskHigh, low & maskLow, high | ~maskHigh, low |
+                ~maskLow, classId);
+    }
+
+    /**
+     * Add the range [start, end]
+     * @param start the first address of the range
+     * @param end the last address of the range, of the same family as start
+     * @param classId
+     * @throws UnknownHostException if the range is not valid
+     */
+    public void add(String start, String end, int classId)
+            throws UnknownHostException {
+        checkClassId(classId);
+        byte[] first = parse(start);
+        byte[] last = parse(end);
+        if (first.length != last.length) {
+            throw new UnknownHostException("Mixed IPv4 and IPv6 range: " +
+                    start + " - " + end);
+        }
+        long startHigh;
+        long startLow;
+        long endHigh;
+        long endLow;
+        if (first.length == 4) {
+            startHigh = 0;
+            startLow = IpAddresses.mappedLow(IpAddresses.toInt(first));
+            endHigh = 0;
+            endLow = IpAddresses.mappedLow(IpAddresses.toInt(last));
+        } else {
+            startHigh = IpAddresses.high(first);
+            startLow = IpAddresses.low(first);
+            endHigh = IpAddresses.high(last);
+            endLow = IpAddresses.low(last);
+        }
+        if (IpRangeFilterRule.compare(startHigh, startLow, endHigh, endLow) > 0) {
+            throw new UnknownHostException("Range end before its start: " +
+                    start + " - " + end);
+        }
+        addRange(startHigh, startLow, endHigh, endLow, classId);
+    }
+
+    /**
+     * Add the ranges read as CSV
+     * @param reader the source of the ranges, one per line (not closed by this method)
+     * @return the number of ranges read
+     * @throws IOException if the reader fails or if one of the lines is not valid
+     */
+    public int addCsv(Reader reader) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        BufferedReader bufferedReader = reader instanceof BufferedReader? (BufferedReader) reader
+                : new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        int nb = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber ++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                if (fields.length >= 3 && fields[0].indexOf('/') < 0) {
+                    add(field(fields[0]), field(fields[1]),
+                            classId(fields[2]));
+                } else if (fields.length >= 2) {
+                    add(field(fields[0]), classId(fields[1]));
+                } else {
+                    throw new UnknownHostException("Missing class id: " + line);
+                }
+            } catch (UnknownHostException e) {
+                throw new UnknownHostException(e.getMessage() + " at line " +
+                        lineNumber);
+            }
+            nb ++;
+        }
+        return nb;
+    }
+
+    private static String field(String field) {
+        String value = field.trim();
+        int length = value.length();
+        if (length >= 2 && value.charAt(0) == '"' &&
+                value.charAt(length - 1) == '"') {
+            value = value.substring(1, length - 1).trim();
+        }
+        return value;
+    }
+
+    private static int classId(String field) throws UnknownHostException {
+        String value = field(field);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new UnknownHostException("Invalid class id: " + value);
+        }
+    }
+
+    private static void checkClassId(int classId) {
+        if (classId < 0) {
+            throw new IllegalArgumentException(
+                    "classId must be a positive integer: " + classId);
+        }
+    }
+
+    private static byte[] parse(String addr) throws UnknownHostException {
+        byte[] address = IpAddresses.parse(addr.trim());
+        if (address == null) {
+            throw new UnknownHostException("Invalid IP address used: " + addr);
+        }
+        return address;
+    }
+
+    /**
+     * @param length a mask length relative to a 64 bits half of an IPv6 address
+     * @return the mask of this half
+     */
+    private static long mask(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (length >= 64) {
+            return -1L;
+        }
+        return -1L << 64 - length;
+    }
+
+    /**
+     * Add the range, its part within the IPv4 mapped prefix being added as an IPv4 range
+     */
+    private void addRange(long startHigh, long startLow, long endHigh,
+            long endLow, int classId) {
+        long mappedStart = IpAddresses.mappedLow(0);
+        long mappedEnd = IpAddresses.mappedLow(-1);
+        if (IpRangeFilterRule.compare(endHigh, endLow, 0, mappedStart) < 0 ||
+                IpRangeFilterRule.compare(startHigh, startLow, 0, mappedEnd) > 0) {
+            addIpV6(startHigh, startLow, endHigh, endLow, classId);
+            return;
+        }
+        int ipv4Start = 0;
+        int ipv4End = -1;
+        if (IpRangeFilterRule.compare(startHigh, startLow, 0, mappedStart) < 0) {
+            addIpV6(startHigh, startLow, 0, mappedStart - 1, classId);
+        } else {
+            ipv4Start = (int) startLow;
+        }
+        if (IpRangeFilterRule.compare(endHigh, endLow, 0, mappedEnd) > 0) {
+            addIpV6(0, mappedEnd + 1, endHigh, endLow, classId);
+        } else {
+            ipv4End = (int) endLow;
+        }
+        addIpV4(ipv4Start, ipv4End, classId);
+    }
+
+    private void addIpV4(int start, int end, int classId) {
+        if (ipv4Size == ipv4Starts.length) {
+            ipv4Starts = Arrays.copyOf(ipv4Starts, ipv4Size << 1);
+            ipv4Ends = Arrays.copyOf(ipv4Ends, ipv4Size << 1);
+            ipv4Classes = Arrays.copyOf(ipv4Classes, ipv4Size << 1);
+        }
+        ipv4Starts[ipv4Size] = start;
+        ipv4Ends[ipv4Size] = end;
+        ipv4Classes[ipv4Size] = classId;
+        ipv4Size ++;
+        merged = false;
+    }
+
+    private void addIpV6(long startHigh, long startLow, long endHigh,
+            long endLow, int classId) {
+        int index = ipv6Size << 1;
+        if (index == ipv6Starts.length) {
+            ipv6Starts = Arrays.copyOf(ipv6Starts, index << 1);
+            ipv6Ends = Arrays.copyOf(ipv6Ends, index << 1);
+            ipv6Classes = Arrays.copyOf(ipv6Classes, ipv6Size << 1);
+        }
+        ipv6Starts[index] = startHigh;
+        ipv6Starts[index + 1] = startLow;
+        ipv6Ends[index] = endHigh;
+        ipv6Ends[index + 1] = endLow;
+        ipv6Classes[ipv6Size] = classId;
+        ipv6Size ++;
+        merged = false;
+    }
+
+    /**
+     * @return the number of ranges, once merged
+     * @throws IllegalArgumentException if two ranges overlap
+     */
+    public int size() {
+        merge();
+        return ipv4Size + ipv6Size;
+    }
+
+    /**
+     * Sort the ranges by start and merge the adjacent ones of the same class
+     * @throws IllegalArgumentException if two ranges overlap
+     */
+    private void merge() {
+        if (merged) {
+            return;
+        }
+        mergeIpV4();
+        mergeIpV6();
+        merged = true;
+    }
+
+    private void mergeIpV4() {
+        // sort by unsigned start: start in the upper 32 bits, position in the lower ones
+        long[] keys = new long[ipv4Size];
+        for (int i = 0; i < ipv4Size; i ++) {
+            keys[i] = (long) (ipv4Starts[i] ^ Integer.MIN_VALUE) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] starts = new int[Math.max(16, ipv4Size)];
+        int[] ends = new int[starts.length];
+        int[] classes = new int[starts.length];
+        int size = 0;
+        for (long key: keys) {
+            int i = (int) key;
+            int start = ipv4Starts[i];
+            if (size > 0) {
+                long previousEnd = ends[size - 1] & 0xFFFFFFFFL;
+                if ((start & 0xFFFFFFFFL) <= previousEnd) {
+                    throw new IllegalArgumentException("Overlapping IPv4 ranges at " +
+                            toIpV4String(start));
+                }
+                if ((start & 0xFFFFFFFFL) == previousEnd + 1 &&
+                        classes[size - 1] == ipv4Classes[i]) {
+                    ends[size - 1] = ipv4Ends[i];
+                    continue;
+                }
+            }
+            starts[size] = start;
+            ends[size] = ipv4Ends[i];
+            classes[size] = ipv4Classes[i];
+            size ++;
+        }
+        ipv4Starts = starts;
+        ipv4Ends = ends;
+        ipv4Classes = classes;
+        ipv4Size = size;
+    }
+
+    private void mergeIpV6() {
+        int[] order = IpIntervalSet.sortedOrder(ipv6Starts, 0, 2, ipv6Size);
+        long[] starts = new long[Math.max(32, ipv6Size << 1)];
+        long[] ends = new long[starts.length];
+        int[] classes = new int[starts.length >> 1];
+        int size = 0;
+        for (int i: order) {
+            long startHigh = ipv6Starts[i << 1];
+            long startLow = ipv6Starts[(i << 1) + 1];
+            if (size > 0) {
+                int last = size - 1 << 1;
+                if (IpRangeFilterRule.compare(startHigh, startLow, ends[last],
+                        ends[last + 1]) <= 0) {
+                    throw new IllegalArgumentException(
+                            "Overlapping IPv6 ranges at " +
+                                    Long.toHexString(startHigh) + ':' +
+                                    Long.toHexString(startLow));
+                }
+                long nextLow = ends[last + 1] + 1;
+                long nextHigh = nextLow == 0? ends[last] + 1 : ends[last];
+                if (startHigh == nextHigh && startLow == nextLow &&
+                        classes[size - 1] == ipv6Classes[i]) {
+                    ends[last] = ipv6Ends[i << 1];
+                    ends[last + 1] = ipv6Ends[(i << 1) + 1];
+                    continue;
+                }
+            }
+            starts[size << 1] = startHigh;
+            starts[(size << 1) + 1] = startLow;
+            ends[size << 1] = ipv6Ends[i << 1];
+            ends[(size << 1) + 1] = ipv6Ends[(i << 1) + 1];
+            classes[size] = ipv6Classes[i];
+            size ++;
+        }
+        ipv6Starts = starts;
+        ipv6Ends = ends;
+        ipv6Classes = classes;
+        ipv6Size = size;
+    }
+
+    private static String toIpV4String(int ipv4) {
+        return (ipv4 >>> 24) + "." + (ipv4 >>> 16 & 0xFF) + '.' +
+                (ipv4 >>> 8 & 0xFF) + '.' + (ipv4 & 0xFF);
+    }
+
+    /**
+     * Write the database into the file
+     * @param file
+     * @throws IOException
+     * @throws IllegalArgumentException if two ranges overlap
+     */
+    public void write(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the database into the stream
+     * @param out the destination (not closed by this method)
+     * @throws IOException
+     * @throws IllegalArgumentException if two ranges overlap
+     */
+    public void write(OutputStream out) throws IOException {
+        merge();
+        long fileSize = IpRangeDatabase.fileSize(ipv4Size, ipv6Size);
+        if (fileSize < 0) {
+            throw new IOException("IP range database too large: " +
+                    ipv4Size + " IPv4 and " + ipv6Size + " IPv6 ranges");
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                out, 65536));
+        data.writeInt(IpRangeDatabase.MAGIC);
+        data.writeInt(IpRangeDatabase.VERSION);
+        data.writeInt(ipv4Size);
+        data.writeInt(ipv6Size);
+        writeInts(data, ipv4Starts, ipv4Size);
+        writeInts(data, ipv4Ends, ipv4Size);
+        writeInts(data, ipv4Classes, ipv4Size);
+        while (data.size() < IpRangeDatabase.ipv6Offset(ipv4Size)) {
+            // padding
+            data.writeByte(0);
+        }
+        for (int i = 0; i < ipv6Size << 1; i ++) {
+            data.writeLong(ipv6Starts[i]);
+        }
+        for (int i = 0; i < ipv6Size << 1; i ++) {
+            data.writeLong(ipv6Ends[i]);
+        }
+        writeInts(data, ipv6Classes, ipv6Size);
+        data.flush();
+    }
+
+    private static void writeInts(DataOutputStream data, int[] values, int size)
+            throws IOException {
+        for (int i = 0; i < size; i ++) {
+            data.writeInt(values[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IpRangeDatabaseBuilder with IPv4 Ranges: " + ipv4Size +
+                " IPv6 Ranges: " + ipv6Size;
+    }
+}
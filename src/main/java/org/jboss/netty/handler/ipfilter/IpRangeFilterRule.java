@@ -0,0 +1,476 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Ip V4 and Ip V6 filter rule made of a large set of subnets, typically loaded from a blocklist.<br>
+ * <br>
+ * Instead of one {@link IpSubnetFilterRule} (and its InetAddress objects) per subnet, the subnets
+ * are parsed without any name resolution and merged into sorted arrays of primitive start and end
+ * addresses, so that the memory used is a few bytes per range and the check is a binary search.<br>
+ * <br>
+ * The text format is one subnet per line, in CIDR notation (10.10.10.0/24, 2001:db8::/32) or as a
+ * single address. Empty lines and lines starting with '#' are ignored, as the end of a line
+ * after a '#'.<br>
+ * <br>
+ * The ranges are kept in the 128-bit address space of {@link IpAddresses}: the part of an IPv6
+ * range within the IPv4 mapped prefix ::ffff:0:0/96 is stored as an IPv4 range, so that an IPv4
+ * address and its IPv4 mapped form are checked with one search against the IPv4 ranges.<br>
+ * <br>
+ * Example:<br>
+ * <tt>IpRangeFilterRule blocklist = new IpRangeFilterRule(false, new FileReader("blocklist.txt"));</tt><br>
+ * <tt>ipFilterRuleHandler.add(0, blocklist);</tt><br>
+ * <br>
+ * This object is immutable once built.
+ *
+ * @author frederic bregier
+ *
+ */
+public class IpRangeFilterRule implements IpFilterRule, IpRawSet {
+    /**
+     * Is this IpRangeFilterRule an ALLOW or DENY rule
+     */
+    private final boolean isAllowRule;
+
+    /**
+     * Start of the IPv4 ranges, sorted (unsigned)
+     */
+    private final int[] ipv4Starts;
+
+    /**
+     * End (included) of the IPv4 ranges
+     */
+    private final int[] ipv4Ends;
+
+    /**
+     * Start of the IPv6 ranges (high then low 64 bits for each range), sorted (unsigned)
+     */
+    private final long[] ipv6Starts;
+
+    /**
+     * End (included) of the IPv6 ranges (high then low 64 bits for each range)
+     */
+    private final long[] ipv6Ends;
+
+    /**
+     * @param allow True for ALLOW, False for DENY
+     * @param subnets the subnets in CIDR notation or as single addresses
+     * @throws UnknownHostException if one of the subnets is not valid
+     */
+    public IpRangeFilterRule(boolean allow, Collection<String> subnets)
+            throws UnknownHostException {
+        this(allow, load(subnets));
+    }
+
+    /**
+     * @param allow True for ALLOW, False for DENY
+     * @param reader the source of the subnets, one per line (not closed by this constructor)
+     * @throws IOException if the reader fails
+     * @throws UnknownHostException if one of the subnets is not valid
+     */
+    public IpRangeFilterRule(boolean allow, Reader reader) throws IOException {
+        this(allow, load(reader));
+    }
+
+    /**
+     * @param allow True for ALLOW, False for DENY
+     * @param set the addresses of the rule
+     */
+    IpRangeFilterRule(boolean allow, IpIntervalSet set) {
+        this(allow, load(set));
+    }
+
+    private IpRangeFilterRule(boolean allow, RangeList ranges) {
+        isAllowRule = allow;
+        ranges.merge();
+        ipv4Starts = Arrays.copyOf(ranges.ipv4Starts, ranges.ipv4Size);
+        ipv4Ends = Arrays.copyOf(ranges.ipv4Ends, ranges.ipv4Size);
+        ipv6Starts = Arrays.copyOf(ranges.ipv6Starts, ranges.ipv6Size << 1);
+        ipv6Ends = Arrays.copyOf(ranges.ipv6Ends, ranges.ipv6Size << 1);
+    }
+
+    private static RangeList load(Collection<String> subnets)
+            throws UnknownHostException {
+        if (subnets == null) {
+            throw new NullPointerException("subnets");
+        }
+        RangeList ranges = new RangeList();
+        for (String subnet: subnets) {
+            ranges.add(subnet.trim());
+        }
+        return ranges;
+    }
+
+    private static RangeList load(IpIntervalSet set) {
+        RangeList ranges = new RangeList();
+        for (int i = 0; i < set.size(); i ++) {
+            ranges.addRange(set.getStartHigh(i), set.getStartLow(i), set
+                    .getEndHigh(i), set.getEndLow(i));
+        }
+        return ranges;
+    }
+
+    private static RangeList load(Reader reader) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        BufferedReader bufferedReader = reader instanceof BufferedReader? (BufferedReader) reader
+                : new BufferedReader(reader);
+        RangeList ranges = new RangeList();
+        String line;
+        int lineNumber = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber ++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            try {
+                ranges.add(line);
+            } catch (UnknownHostException e) {
+                throw new UnknownHostException(e.getMessage() + " at line " +
+                        lineNumber);
+            }
+        }
+        return ranges;
+    }
+
+    public boolean isAllowRule() {
+        return isAllowRule;
+    }
+
+    public boolean isDenyRule() {
+        return !isAllowRule;
+    }
+
+    public boolean contains(InetAddress inetAddress) {
+        byte[] address = inetAddress.getAddress();
+        if (address.length == 4) {
+            return contains(IpAddresses.toInt(address));
+        }
+        return contains(IpAddresses.high(address), IpAddresses.low(address));
+    }
+
+    public boolean contains(long high, long low) {
+        if (IpAddresses.isIpV4Mapped(high, low)) {
+            return contains((int) low);
+        }
+        return containsIpV6(high, low);
+    }
+
+    public boolean contains(int ipv4) {
+        int key = ipv4 ^ Integer.MIN_VALUE;
+        int low = 0;
+        int high = ipv4Starts.length - 1;
+        // find the last range starting before or at the address
+        while (low <= high) {
+            int mid = low + high >>> 1;
+            if ((ipv4Starts[mid] ^ Integer.MIN_VALUE) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && (ipv4Ends[high] ^ Integer.MIN_VALUE) >= key;
+    }
+
+    private boolean containsIpV6(long high, long low) {
+        int lowIndex = 0;
+        int highIndex = (ipv6Starts.length >> 1) - 1;
+        // find the last range starting before or at the address
+        while (lowIndex <= highIndex) {
+            int mid = lowIndex + highIndex >>> 1;
+            if (compare(ipv6Starts[mid << 1], ipv6Starts[(mid << 1) + 1], high,
+                    low) <= 0) {
+                lowIndex = mid + 1;
+            } else {
+                highIndex = mid - 1;
+            }
+        }
+        return highIndex >= 0 &&
+                compare(ipv6Ends[highIndex << 1], ipv6Ends[(highIndex << 1) + 1],
+                        high, low) >= 0;
+    }
+
+    /**
+     * @return the start of the IPv4 ranges (not copied, not to be modified)
+     */
+    int[] getIpV4Starts() {
+        return ipv4Starts;
+    }
+
+    /**
+     * @return the end of the IPv4 ranges (not copied, not to be modified)
+     */
+    int[] getIpV4Ends() {
+        return ipv4Ends;
+    }
+
+    /**
+     * @return the start of the IPv6 ranges, high then low 64 bits (not copied, not to be modified)
+     */
+    long[] getIpV6Starts() {
+        return ipv6Starts;
+    }
+
+    /**
+     * @return the end of the IPv6 ranges, high then low 64 bits (not copied, not to be modified)
+     */
+    long[] getIpV6Ends() {
+        return ipv6Ends;
+    }
+
+    /**
+     * @return the number of ranges, once merged
+     */
+    public int size() {
+        return ipv4Starts.length + (ipv6Starts.length >> 1);
+    }
+
+    @Override
+    public String toString() {
+        return (isAllowRule? "ALLOW " : "DENY ") + ipv4Starts.length +
+                " IPv4 ranges and " + (ipv6Starts.length >> 1) +
+                " IPv6 ranges";
+    }
+
+    /**
+     * Compare two 128 bits unsigned values
+     * @return a negative integer, zero, or a positive integer as the first value is
+     *          less than, equal to, or greater than the second
+     */
+    static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return (high1 ^ Long.MIN_VALUE) < (high2 ^ Long.MIN_VALUE)? -1 : 1;
+        }
+        if (low1 != low2) {
+            return (low1 ^ Long.MIN_VALUE) < (low2 ^ Long.MIN_VALUE)? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Growable primitive lists of ranges, used while loading
+     */
+    private static final class RangeList {
+        int[] ipv4Starts = new int[16];
+        int[] ipv4Ends = new int[16];
+        int ipv4Size;
+        long[] ipv6Starts = new long[16];
+        long[] ipv6Ends = new long[16];
+        int ipv6Size;
+
+        RangeList() {
+            super();
+        }
+
+        /**
+         * @param subnet a subnet in CIDR notation or a single address
+         * @throws UnknownHostException
+         */
+        void add(String subnet) throws UnknownHostException {
+            int p = subnet.indexOf('/');
+            String addr = p < 0? subnet : subnet.substring(0, p);
+            byte[] address = IpAddresses.parse(addr);
+            if (address == null) {
+                throw new UnknownHostException("Invalid IP address used: " +
+                        subnet);
+            }
+            int maxMask = address.length << 3;
+            int mask = maxMask;
+            if (p >= 0) {
+                try {
+                    mask = Integer.parseInt(subnet.substring(p + 1));
+                } catch (NumberFormatException e) {
+                    mask = -1;
+                }
+                if (mask < 0 || mask > maxMask) {
+                    throw new UnknownHostException("Invalid mask length used: " +
+                            subnet);
+                }
+            }
+            if (address.length == 4) {
+                int ipMask = mask == 0? 0 : -1 << 32 - mask;
+                int start = IpAddresses.toInt(address) & ipMask;
+                addIpV4(start, start | ~ipMask);
+            } else {
+                long maskHigh = mask <= 0? 0 : mask >= 64? -1L : -1L << 64 - mask;
+                long maskLow = mask <= 64? 0 : mask >= 128? -1L
+                        : -1L << 128 - mask;
+                long high = IpAddresses.high(address) & maskHigh;
+                long low = IpAddresses.low(address) & maskLow;
+                addRange(high, low, high | ~maskHigh, low | ~maskLow);
+            }
+        }
+
+        /**
+         * Add the IPv6 range, its part within the IPv4 mapped prefix being added
+         * as an IPv4 range
+         */
+        void addRange(long startHigh, long startLow, long endHigh,
+                long endLow) {
+            long mappedStart = IpAddresses.mappedLow(0);
+            long mappedEnd = IpAddresses.mappedLow(-1);
+            if (compare(endHigh, endLow, 0, mappedStart) < 0 ||
+                    compare(startHigh, startLow, 0, mappedEnd) > 0) {
+                addIpV6(startHigh, startLow, endHigh, endLow);
+                return;
+            }
+            int ipv4Start = 0;
+            int ipv4End = -1;
+            if (compare(startHigh, startLow, 0, mappedStart) < 0) {
+                addIpV6(startHigh, startLow, 0, mappedStart - 1);
+            } else {
+                ipv4Start = (int) startLow;
+            }
+            if (compare(endHigh, endLow, 0, mappedEnd) > 0) {
+                addIpV6(0, mappedEnd + 1, endHigh, endLow);
+            } else {
+                ipv4End = (int) endLow;
+            }
+            addIpV4(ipv4Start, ipv4End);
+        }
+
+        private void addIpV4(int start, int end) {
+            if (ipv4Size == ipv4Starts.length) {
+                ipv4Starts = Arrays.copyOf(ipv4Starts, ipv4Size << 1);
+                ipv4Ends = Arrays.copyOf(ipv4Ends, ipv4Size << 1);
+            }
+            ipv4Starts[ipv4Size] = start;
+            ipv4Ends[ipv4Size] = end;
+            ipv4Size ++;
+        }
+
+        private void addIpV6(long startHigh, long startLow, long endHigh,
+                long endLow) {
+            int index = ipv6Size << 1;
+            if (index == ipv6Starts.length) {
+                ipv6Starts = Arrays.copyOf(ipv6Starts, index << 1);
+                ipv6Ends = Arrays.copyOf(ipv6Ends, index << 1);
+            }
+            ipv6Starts[index] = startHigh;
+            ipv6Starts[index + 1] = startLow;
+            ipv6Ends[index] = endHigh;
+            ipv6Ends[index + 1] = endLow;
+            ipv6Size ++;
+        }
+
+        /**
+         * Sort the ranges by start and merge the overlapping or adjacent ones
+         */
+        void merge() {
+            mergeIpV4();
+            mergeIpV6();
+        }
+
+        private void mergeIpV4() {
+            if (ipv4Size == 0) {
+                return;
+            }
+            // sort by unsigned start: start in the upper 32 bits, position in the lower ones
+            long[] keys = new long[ipv4Size];
+            for (int i = 0; i < ipv4Size; i ++) {
+                keys[i] = (long) (ipv4Starts[i] ^ Integer.MIN_VALUE) << 32 | i;
+            }
+            Arrays.sort(keys);
+            int[] starts = new int[ipv4Size];
+            int[] ends = new int[ipv4Size];
+            int size = 0;
+            for (long key: keys) {
+                int i = (int) key;
+                int start = ipv4Starts[i];
+                int end = ipv4Ends[i];
+                if (size > 0 &&
+                        (start & 0xFFFFFFFFL) <= (ends[size - 1] & 0xFFFFFFFFL) + 1) {
+                    // overlapping or adjacent
+                    if ((end ^ Integer.MIN_VALUE) > (ends[size - 1] ^ Integer.MIN_VALUE)) {
+                        ends[size - 1] = end;
+                    }
+                } else {
+                    starts[size] = start;
+                    ends[size] = end;
+                    size ++;
+                }
+            }
+            ipv4Starts = starts;
+            ipv4Ends = ends;
+            ipv4Size = size;
+        }
+
+        private void mergeIpV6() {
+            if (ipv6Size == 0) {
+                return;
+            }
+            int[] order = IpIntervalSet.sortedOrder(ipv6Starts, 0, 2, ipv6Size);
+            long[] starts = new long[ipv6Size << 1];
+            long[] ends = new long[ipv6Size << 1];
+            int size = 0;
+            for (int position: order) {
+                int i = position << 1;
+                long startHigh = ipv6Starts[i];
+                long startLow = ipv6Starts[i + 1];
+                long endHigh = ipv6Ends[i];
+                long endLow = ipv6Ends[i + 1];
+                int last = size - 1 << 1;
+                if (size > 0 && isAdjacentOrOverlapping(ends[last],
+                        ends[last + 1], startHigh, startLow)) {
+                    if (IpRangeFilterRule.compare(endHigh, endLow, ends[last],
+                            ends[last + 1]) > 0) {
+                        ends[last] = endHigh;
+                        ends[last + 1] = endLow;
+                    }
+                } else {
+                    int index = size << 1;
+                    starts[index] = startHigh;
+                    starts[index + 1] = startLow;
+                    ends[index] = endHigh;
+                    ends[index + 1] = endLow;
+                    size ++;
+                }
+            }
+            ipv6Starts = starts;
+            ipv6Ends = ends;
+            ipv6Size = size;
+        }
+
+        /**
+         * @return True if start is less than or equal to end + 1
+         */
+        private static boolean isAdjacentOrOverlapping(long endHigh,
+                long endLow, long startHigh, long startLow) {
+            if (endHigh == -1L && endLow == -1L) {
+                // end is the last address
+                return true;
+            }
+            long nextLow = endLow + 1;
+            long nextHigh = nextLow == 0? endHigh + 1 : endHigh;
+            return IpRangeFilterRule.compare(startHigh, startLow, nextHigh,
+                    nextLow) <= 0;
+        }
+    }
+}
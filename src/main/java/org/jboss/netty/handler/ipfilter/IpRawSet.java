@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.ipfilter;
+
+/**
+ * This Interface defines an {@link IpSet} that can also check an address given
+ * in its primitive form, so that no InetAddress nor byte array is needed
+ * for each check.<br>
+ * <br>
+ * {@link IpFilterRuleHandler} extracts the primitive form of the remote address once
+ * per connection (see {@link IpAddresses}) and uses those methods for any
+ * {@link IpFilterRule} that implements this interface.
+ *
+ * @author frederic bregier
+ *
+ */
+public interface IpRawSet extends IpSet {
+    /**
+     * Compares the given IPv4 address against the IpSet and returns true if
+     * the address is contained in this IpSet and false if not.
+     * @param ipv4 the IPv4 address as an integer (first byte as most significant byte)
+     * @return returns true if the given IP address is contained in the current
+     * IpSet.
+     */
+    public boolean contains(int ipv4);
+
+    /**
+     * Compares the given IPv6 address against the IpSet and returns true if
+     * the address is contained in this IpSet and false if not.
+     * @param high the high 64 bits of the IPv6 address
+     * @param low the low 64 bits of the IPv6 address
+     * @return returns true if the given IP address is contained in the current
+     * IpSet.
+     */
+    public boolean contains(long high, long low);
+}
@@ -54,7 +54,7 @@ import java.net.UnknownHostException;
  * @author frederic bregier
  *
  */
-public class IpSubnet implements IpSet, Comparable<IpSubnet> {
+public class IpSubnet implements IpRawSet, Comparable<IpSubnet> {
     /**
      * Internal representation
      */
@@ -131,9 +131,32 @@ public class IpSubnet implements IpSet, Comparable<IpSubnet> {
         return cidr.contains(inetAddress);
     }
 
+    public boolean contains(int ipv4) {
+        if (cidr == null) {
+            // ANY
+            return true;
+        }
+        return cidr.contains(ipv4);
+    }
+
+    public boolean contains(long high, long low) {
+        if (cidr == null) {
+            // ANY
+            return true;
+        }
+        return cidr.contains(high, low);
+    }
+
+    /**
+     * @return the internal CIDR, or null if this IpSubnet is for ALL
+     */
+    CIDR getCidr() {
+        return cidr;
+    }
+
     @Override
     public String toString() {
-        return cidr.toString();
+        return cidr == null? "ALL" : cidr.toString();
     }
 
     @Override
@@ -42,7 +42,7 @@ import java.util.Vector;
  * @author frederic bregier
  *
  */
-public class IpV4Subnet implements IpSet, Comparable<IpV4Subnet> {
+public class IpV4Subnet implements IpRawSet, Comparable<IpV4Subnet> {
     private static final int SUBNET_MASK = 0x80000000;
 
     private static final int BYTE_ADDRESS_MASK = 0xFF;
@@ -60,7 +60,7 @@ public class IpV4Subnet implements IpSet, Comparable<IpV4Subnet> {
      */
     public IpV4Subnet() {
         // ALLOW or DENY ALL
-        mask = -1;
+        mask = 0;
         // other will be ignored
         inetAddress = null;
         subnet = 0;
@@ -202,7 +202,8 @@ public class IpV4Subnet implements IpSet, Comparable<IpV4Subnet> {
      * */
     private void setCidrNetMask(int cidrNetMask) {
         cidrMask = cidrNetMask;
-        mask = SUBNET_MASK >> cidrMask - 1;
+        mask = cidrMask == 0? 0 : SUBNET_MASK >> cidrMask - 1;
+        subnet &= mask;
     }
 
     /**
@@ -226,16 +227,62 @@ public class IpV4Subnet implements IpSet, Comparable<IpV4Subnet> {
      * set network.
      * */
     public boolean contains(InetAddress inetAddress1) {
-        if (mask == -1) {
+        if (inetAddress == null) {
             // ANY
             return true;
         }
-        return (toInt(inetAddress1) & mask) == subnet;
+        byte[] address = IpAddresses.normalize(inetAddress1.getAddress());
+        if (address.length != 4) {
+            // not an IPv4 nor an IPv4 mapped address
+            return false;
+        }
+        return (IpAddresses.toInt(address) & mask) == subnet;
+    }
+
+    public boolean contains(int ipv4) {
+        if (inetAddress == null) {
+            // ANY
+            return true;
+        }
+        return (ipv4 & mask) == subnet;
+    }
+
+    /**
+     * Only an IPv4 mapped address (::ffff:a.b.c.d) can be in an IPv4 subnet.
+     */
+    public boolean contains(long high, long low) {
+        if (inetAddress == null) {
+            // ANY
+            return true;
+        }
+        return IpAddresses.isIpV4Mapped(high, low) && contains((int) low);
+    }
+
+    /**
+     * @return True if this IpV4Subnet is for ALL
+     */
+    boolean isAll() {
+        return inetAddress == null;
+    }
+
+    /**
+     * @return the integer representation of the base address of this subnet
+     */
+    int getSubnet() {
+        return subnet;
+    }
+
+    /**
+     * @return the CIDR mask length
+     */
+    int getCidrMask() {
+        return cidrMask;
     }
 
     @Override
     public String toString() {
-        return inetAddress.getHostAddress() + "/" + cidrMask;
+        return inetAddress == null? "ALL" : inetAddress.getHostAddress() +
+                "/" + cidrMask;
     }
 
     @Override
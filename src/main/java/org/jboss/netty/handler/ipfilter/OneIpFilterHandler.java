@@ -15,16 +15,6 @@
  */
 package org.jboss.netty.handler.ipfilter;
 
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
-import org.jboss.netty.channel.ChannelEvent;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelState;
-import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 
 /**
@@ -32,73 +22,15 @@ import org.jboss.netty.channel.ChannelHandler.Sharable;
  * channel connected with the same InetAddress (IP).<br>
  * <br>
  *
- * Take care to not change isBlocked method except if you know what you are doing
- * since it is used to test if the current closed connection is to be removed
- * or not from the map of currently connected channel.
+ * This is an {@link IpConnectionLimitFilterHandler} limited to one connection per address.
+ * The address is given back when the channel is disconnected or closed.
  *
  * @author frederic bregier
  *
  */
 @Sharable
-public class OneIpFilterHandler extends IpFilteringHandler {
-    /**
-     * HashMap of current remote connected InetAddress
-     */
-    private final ConcurrentMap<InetAddress, Boolean> connectedSet = new ConcurrentHashMap<InetAddress, Boolean>();
-
-    /* (non-Javadoc)
-     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#accept(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
-     */
-    @Override
-    protected boolean accept(ChannelHandlerContext ctx, ChannelEvent e,
-            InetSocketAddress inetSocketAddress) throws Exception {
-        InetAddress inetAddress = inetSocketAddress.getAddress();
-        if (connectedSet.containsKey(inetAddress)) {
-            return false;
-        }
-        connectedSet.put(inetAddress, Boolean.TRUE);
-        return true;
+public class OneIpFilterHandler extends IpConnectionLimitFilterHandler {
+    public OneIpFilterHandler() {
+        super(1);
     }
-
-    /* (non-Javadoc)
-     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleRefusedChannel(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent, java.net.InetSocketAddress)
-     */
-    @Override
-    protected ChannelFuture handleRefusedChannel(ChannelHandlerContext ctx,
-            ChannelEvent e, InetSocketAddress inetSocketAddress)
-            throws Exception {
-        // Do nothing: could be overridden
-        return null;
-    }
-
-    @Override
-    protected boolean continues(ChannelHandlerContext ctx, ChannelEvent e)
-            throws Exception {
-        return false;
-    }
-
-    /* (non-Javadoc)
-     * @see org.jboss.netty.handler.ipfilter.IpFilteringHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
-     */
-    @Override
-    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e)
-            throws Exception {
-        super.handleUpstream(ctx, e);
-        // Try to remove entry from Map if already exists
-        if (e instanceof ChannelStateEvent) {
-            ChannelStateEvent evt = (ChannelStateEvent) e;
-            if (evt.getState() == ChannelState.CONNECTED) {
-                if (evt.getValue() == null) {
-                    // DISCONNECTED but was this channel blocked or not
-                    if (isBlocked(ctx)) {
-                        // remove inetsocketaddress from set since this channel was not blocked before
-                        InetSocketAddress inetSocketAddress = (InetSocketAddress) e
-                                .getChannel().getRemoteAddress();
-                        connectedSet.remove(inetSocketAddress.getAddress());
-                    }
-                }
-            }
-        }
-    }
-
 }
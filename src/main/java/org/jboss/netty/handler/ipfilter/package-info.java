@@ -22,15 +22,33 @@
  * <P>The main goal of this package is to allow to filter connections based on IP rules.
  * The main class is <tt>IpFilteringHandler</tt> which all filters will extend.</P>
  *
- * <P>Two IP filtering are proposed:<br>
+ * <P>Those IP filtering are proposed:<br>
  * <ul>
  * <li> <tt>{@link OneIpFilterHandler}</tt>: This filter proposes to allow only one connection by client's IP Address.
- * I.E. this filter will prevent two connections from the same client based on its IP address.</li><br><br>
+ * I.E. this filter will prevent two connections from the same client based on its IP address.
+ * It is a special case of <tt>{@link IpConnectionLimitFilterHandler}</tt>, which limits the number of
+ * concurrent connections per IP address and per address prefix.</li><br><br>
  *
  * <li> <tt>{@link IpFilterRuleHandler}</tt>: This filter proposes to allow or block IP range (based on standard notation
  * or on CIDR notation) when the connection is running. It relies on another class like
  * <tt>IpV4SubnetFilterRule</tt> (IPV4 support only) or <tt>IpSubnetFilterRule</tt> (IPV4 and IPV6 support)
- * which implements those Ip ranges.</li><br><br>
+ * which implements those Ip ranges. Large lists of subnets (such as blocklists) should rather be
+ * loaded into one <tt>{@link IpRangeFilterRule}</tt>. The rules can also be loaded from a file, and
+ * reloaded each time it changes, with an <tt>{@link IpFilterRuleFile}</tt>. A list of rules can be
+ * reduced to its minimal equivalent form, without the rules that can never match, with an
+ * <tt>{@link IpFilterRuleCompiler}</tt>. Databases of millions of classified ranges (such as
+ * ASN or region ranges) are built by an <tt>{@link IpRangeDatabaseBuilder}</tt> and
+ * memory-mapped by an <tt>{@link IpRangeDatabase}</tt>, usable as an IpSet.</li><br><br>
+
+ * <li> <tt>{@link IpConnectionRateFilterHandler}</tt>: This filter proposes to limit the rate of new
+ * connections per address prefix (for instance at most N new connections per second per /24).</li><br><br>
+
+ * <li> <tt>{@link IpAutoBanFilterHandler}</tt>: This filter proposes to temporarily ban the IP addresses
+ * reported as abusive by other handlers (in the way of fail2ban).</li><br><br>
+
+ * <li> <tt>{@link IpFilteringPipelineFactory}</tt>: This pipeline factory proposes to check the rules of an
+ * IpFilterRuleHandler before the pipeline of each accepted channel is built, so that a refused connection
+ * is closed without building its pipeline.</li><br><br>
  *
  * </ul></P>
  *
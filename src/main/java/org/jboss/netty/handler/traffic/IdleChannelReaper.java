@@ -0,0 +1,419 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jboss.netty.handler.traffic;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * IdleChannelReaper closes the channels that stay idle or that transfer less than a
+ * given number of bytes during a given period, using the {@link TrafficCounter} of their
+ * {@link ChannelTrafficShapingHandler}.<br>
+ * <br>
+ * Only one IdleChannelReaper should be created and shared by all pipelines, so that
+ * one {@link Timer} drives the checks for all channels instead of one timer per channel.
+ * At each scanInterval, at most batchSize registered channels are checked, the next ones
+ * being checked at the next scanInterval. Therefore a full scan of N channels takes
+ * N / batchSize scanIntervals, which is the precision of this reaper.<br><br>
+ *
+ * The general use should be as follow:<br>
+ * <ul>
+ * <li>Add in your pipeline this shared IdleChannelReaper after the ChannelTrafficShapingHandler:<br>
+ * <tt>IdleChannelReaper reaper = new IdleChannelReaper(timer, 60000, 120000, 1024);</tt><br>
+ * <tt>pipeline.addLast("CHANNEL_TRAFFIC_SHAPING", new ChannelTrafficShapingHandler(executor));</tt><br>
+ * <tt>pipeline.addLast("IDLE_REAPER", reaper);</tt><br>
+ * Channels are registered when connected and unregistered when closed.</li>
+ * <li>When a channel is to be reaped, the method <tt>reapChannel</tt> is called, which by default
+ * closes the channel. It could be overridden for instance to send a message before closing.</li>
+ * <li>When you shutdown your application, release the timer by calling:<br>
+ * <tt>reaper.releaseExternalResources();</tt></li>
+ * </ul>
+ *
+ * @author Frederic Bregier
+ */
+@Sharable
+public class IdleChannelReaper extends SimpleChannelUpstreamHandler implements
+        ExternalResourceReleasable {
+    /**
+     * Internal logger
+     */
+    static InternalLogger logger = InternalLoggerFactory
+            .getInstance(IdleChannelReaper.class);
+
+    /**
+     * Default delay between two scans: 1s
+     */
+    public static final long DEFAULT_SCAN_INTERVAL = 1000;
+
+    /**
+     * Default number of channels checked at each scan
+     */
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    /**
+     * Timer shared by all the registered channels
+     */
+    private final Timer timer;
+
+    /**
+     * Delay in ms without any read or write before a channel is reaped (0 means no check)
+     */
+    private final long idleTimeout;
+
+    /**
+     * Period in ms on which the minimal number of bytes is checked (0 means no check)
+     */
+    private final long lowActivityPeriod;
+
+    /**
+     * Minimal number of bytes read and written during lowActivityPeriod
+     */
+    private final long minBytes;
+
+    /**
+     * Delay between two scans
+     */
+    private final long scanInterval;
+
+    /**
+     * Maximum number of channels checked at each scan
+     */
+    private final int batchSize;
+
+    /**
+     * Registered channels by channel Id
+     */
+    private final ConcurrentMap<Integer, ReaperEntry> entries = new ConcurrentHashMap<Integer, ReaperEntry>();
+
+    /**
+     * Current position of the scan (only used by the timer thread)
+     */
+    private Iterator<ReaperEntry> cursor = null;
+
+    /**
+     * Number of reaped channels
+     */
+    private final AtomicLong reapedChannels = new AtomicLong(0);
+
+    /**
+     * Boolean associated with the release of this IdleChannelReaper.
+     */
+    private final AtomicBoolean release = new AtomicBoolean(false);
+
+    /**
+     * Registered channel and its state
+     */
+    private static class ReaperEntry {
+        /**
+         * The registered channel
+         */
+        final Channel channel;
+
+        /**
+         * The handler that owns the TrafficCounter of the channel
+         */
+        final AbstractTrafficShapingHandler trafficShapingHandler;
+
+        /**
+         * Start time of the current low activity period
+         */
+        long periodStart;
+
+        /**
+         * Cumulative bytes at the start of the current low activity period
+         */
+        long periodBytes;
+
+        ReaperEntry(Channel channel,
+                AbstractTrafficShapingHandler trafficShapingHandler, long now) {
+            this.channel = channel;
+            this.trafficShapingHandler = trafficShapingHandler;
+            periodStart = now;
+            periodBytes = -1;
+        }
+    }
+
+    /**
+     * Class to implement the scan at fix delay
+     */
+    private class ReaperTask implements TimerTask {
+        public void run(Timeout timeout) throws Exception {
+            if (release.get() || timeout.isCancelled()) {
+                return;
+            }
+            try {
+                scan(System.currentTimeMillis());
+            } finally {
+                if (!release.get()) {
+                    timer.newTimeout(this, scanInterval, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param timer
+     *            the shared Timer (for instance a {@link HashedWheelTimer})
+     * @param idleTimeout
+     *            the delay in ms without any read or write before a channel is reaped
+     *            (0 means no idle check)
+     * @param lowActivityPeriod
+     *            the period in ms during which at least minBytes must be read or written
+     *            (0 means no low activity check)
+     * @param minBytes
+     *            the minimal number of bytes read and written during lowActivityPeriod
+     * @param scanInterval
+     *            the delay in ms between two scans
+     * @param batchSize
+     *            the maximum number of channels checked at each scan
+     */
+    public IdleChannelReaper(Timer timer, long idleTimeout,
+            long lowActivityPeriod, long minBytes, long scanInterval,
+            int batchSize) {
+        if (timer == null) {
+            throw new NullPointerException("timer");
+        }
+        if (scanInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "scanInterval must be a positive integer: " + scanInterval);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "batchSize must be a positive integer: " + batchSize);
+        }
+        this.timer = timer;
+        this.idleTimeout = idleTimeout;
+        this.lowActivityPeriod = lowActivityPeriod;
+        this.minBytes = minBytes;
+        this.scanInterval = scanInterval;
+        this.batchSize = batchSize;
+        timer.newTimeout(new ReaperTask(), scanInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor using default scan interval and batch size
+     *
+     * @param timer
+     *            the shared Timer (for instance a {@link HashedWheelTimer})
+     * @param idleTimeout
+     *            the delay in ms without any read or write before a channel is reaped
+     *            (0 means no idle check)
+     * @param lowActivityPeriod
+     *            the period in ms during which at least minBytes must be read or written
+     *            (0 means no low activity check)
+     * @param minBytes
+     *            the minimal number of bytes read and written during lowActivityPeriod
+     */
+    public IdleChannelReaper(Timer timer, long idleTimeout,
+            long lowActivityPeriod, long minBytes) {
+        this(timer, idleTimeout, lowActivityPeriod, minBytes,
+                DEFAULT_SCAN_INTERVAL, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor for idle check only, using default scan interval and batch size
+     *
+     * @param timer
+     *            the shared Timer (for instance a {@link HashedWheelTimer})
+     * @param idleTimeout
+     *            the delay in ms without any read or write before a channel is reaped
+     */
+    public IdleChannelReaper(Timer timer, long idleTimeout) {
+        this(timer, idleTimeout, 0, 0);
+    }
+
+    /**
+     * Register a channel with the handler that owns its TrafficCounter
+     *
+     * @param channel
+     * @param trafficShapingHandler
+     */
+    public void register(Channel channel,
+            AbstractTrafficShapingHandler trafficShapingHandler) {
+        if (channel == null) {
+            throw new NullPointerException("channel");
+        }
+        if (trafficShapingHandler == null) {
+            throw new NullPointerException("trafficShapingHandler");
+        }
+        entries.put(channel.getId(), new ReaperEntry(channel,
+                trafficShapingHandler, System.currentTimeMillis()));
+    }
+
+    /**
+     * Unregister a channel
+     *
+     * @param channel
+     */
+    public void unregister(Channel channel) {
+        entries.remove(channel.getId());
+    }
+
+    /**
+     * Check the next batch of registered channels
+     *
+     * @param now
+     */
+    private void scan(long now) {
+        Iterator<ReaperEntry> iterator = cursor;
+        if (iterator == null || !iterator.hasNext()) {
+            // Start a new full scan
+            iterator = entries.values().iterator();
+        }
+        for (int i = 0; i < batchSize && iterator.hasNext(); i ++) {
+            check(iterator.next(), now);
+        }
+        cursor = iterator.hasNext()? iterator : null;
+    }
+
+    /**
+     * Check one registered channel and reap it if necessary
+     *
+     * @param entry
+     * @param now
+     */
+    private void check(ReaperEntry entry, long now) {
+        Channel channel = entry.channel;
+        TrafficCounter counter = entry.trafficShapingHandler
+                .getTrafficCounter();
+        if (counter == null || !channel.isOpen()) {
+            // Channel already closed
+            entries.remove(channel.getId(), entry);
+            return;
+        }
+        if (idleTimeout > 0 &&
+                now - counter.getLastActivityTime() >= idleTimeout) {
+            reap(entry, counter, true);
+            return;
+        }
+        if (lowActivityPeriod > 0) {
+            long bytes = counter.getCumulativeReadBytes() +
+                    counter.getCumulativeWrittenBytes();
+            if (entry.periodBytes < 0 || bytes < entry.periodBytes) {
+                // First check or cumulative counters reset: start a new period
+                entry.periodStart = now;
+                entry.periodBytes = bytes;
+            } else if (now - entry.periodStart >= lowActivityPeriod) {
+                if (bytes - entry.periodBytes < minBytes) {
+                    reap(entry, counter, false);
+                    return;
+                }
+                entry.periodStart = now;
+                entry.periodBytes = bytes;
+            }
+        }
+    }
+
+    /**
+     * @param entry
+     * @param counter
+     * @param idle
+     */
+    private void reap(ReaperEntry entry, TrafficCounter counter, boolean idle) {
+        if (!entries.remove(entry.channel.getId(), entry)) {
+            return;
+        }
+        reapedChannels.incrementAndGet();
+        try {
+            reapChannel(entry.channel, counter, idle);
+        } catch (Throwable e) {
+            logger.warn("Unexpected exception while reaping a channel", e);
+        }
+    }
+
+    /**
+     * Called when a channel is to be reaped. By default, the channel is closed.
+     * This method could be overridden for instance to send a message back before closing.
+     *
+     * @param channel
+     *            the channel to reap
+     * @param counter
+     *            the TrafficCounter of this channel
+     * @param idle
+     *            True if the channel was idle, False if the channel was under the minimal
+     *            number of bytes during the low activity period
+     */
+    protected void reapChannel(Channel channel, TrafficCounter counter,
+            boolean idle) {
+        channel.close();
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        ChannelTrafficShapingHandler handler = ctx.getPipeline().get(
+                ChannelTrafficShapingHandler.class);
+        if (handler != null && handler.getTrafficCounter() != null) {
+            register(ctx.getChannel(), handler);
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        unregister(ctx.getChannel());
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * @return the number of currently registered channels
+     */
+    public int getRegisteredChannels() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of channels reaped since the creation of this reaper
+     */
+    public long getReapedChannels() {
+        return reapedChannels.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.util.ExternalResourceReleasable#releaseExternalResources()
+     */
+    public void releaseExternalResources() {
+        release.set(true);
+        entries.clear();
+        timer.stop();
+    }
+
+    @Override
+    public String toString() {
+        return "IdleChannelReaper with Idle Timeout: " + idleTimeout +
+                " Low Activity Period: " + lowActivityPeriod +
+                " Min Bytes: " + minBytes + " Registered: " + entries.size() +
+                " Reaped: " + reapedChannels.get();
+    }
+}
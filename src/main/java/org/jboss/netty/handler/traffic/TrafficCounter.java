@@ -85,6 +85,16 @@ public class TrafficCounter {
      */
     private long lastReadBytes = 0;
 
+    /**
+     * Last Time a read occurred
+     */
+    private volatile long lastReadTime;
+
+    /**
+     * Last Time a write occurred
+     */
+    private volatile long lastWriteTime;
+
     /**
      * Delay between two captures
      */
@@ -244,6 +254,7 @@ public class TrafficCounter {
         this.executor = executor;
         this.name = name;
         lastCumulativeTime = System.currentTimeMillis();
+        lastReadTime = lastWriteTime = lastCumulativeTime;
         configure(checkInterval);
     }
 
@@ -280,6 +291,7 @@ public class TrafficCounter {
             throws InterruptedException {
         currentReadBytes.addAndGet(recv);
         cumulativeReadBytes.addAndGet(recv);
+        lastReadTime = System.currentTimeMillis();
     }
 
     /**
@@ -292,6 +304,7 @@ public class TrafficCounter {
     void bytesWriteFlowControl(long write) throws InterruptedException {
         currentWrittenBytes.addAndGet(write);
         cumulativeWrittenBytes.addAndGet(write);
+        lastWriteTime = System.currentTimeMillis();
     }
 
     /**
@@ -358,6 +371,27 @@ public class TrafficCounter {
         return lastTime.get();
     }
 
+    /**
+     * @return the Time in millisecond of the last read as of System.currentTimeMillis()
+     */
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    /**
+     * @return the Time in millisecond of the last write as of System.currentTimeMillis()
+     */
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * @return the Time in millisecond of the last read or write as of System.currentTimeMillis()
+     */
+    public long getLastActivityTime() {
+        return Math.max(lastReadTime, lastWriteTime);
+    }
+
     /**
      * @return the cumulativeWrittenBytes
      */
@@ -55,6 +55,12 @@
  * object. If not specified, it will used the {@link DefaultObjectSizeEstimator} implementation.<br><br>
  * </ul></P>
  *
+ * <P>An <tt>{@link IdleChannelReaper}</tt> can be added after a {@link ChannelTrafficShapingHandler}
+ * in order to close the channels that stay idle or that transfer less than a minimal number of bytes
+ * during a period, using the last activity time and the cumulative counters of their {@link TrafficCounter}.
+ * Only one IdleChannelReaper is to be shared by all channels, since it relies on one
+ * {@link org.jboss.netty.util.Timer} that checks the registered channels by batches.</P>
+ *
  * <P>Standard use could be as follow:</P>
  *
  * <P><ul>